@@ -0,0 +1,138 @@
+#!/usr/bin/env bash
+#
+# Measures playback start latency of songs through StreamController, the way an HLS player starts:
+# manifest from /songs/stream/{songId}/play, then the variant playlist when the manifest is a master
+# playlist, then the init segment (fMP4) and the first media segment, honouring EXT-X-BYTERANGE.
+#
+# Reported per song, median over the runs:
+#   ttfb      time to the first byte of the manifest
+#   seg_ttfb  time to the first byte of the first media segment, measured from the first request
+#   ttfa      time to first audio: the first media segment fully downloaded, measured from the first request
+#   seg_kb    size of the first media segment
+#
+# Compare layouts by passing one song transcoded with the plain 10 s layout and one with fast start
+# (transcode.hls.fast-start.enabled), e.g.:
+#
+#   scripts/hls-start-latency.sh -r 10 -l 50k plain=<songId> fast-start=<songId>
+#
+# Options:
+#   -u URL      base URL of service-music or of the gateway route (default http://localhost:8081)
+#   -t TOKEN    bearer token, its quality claim selects the manifest
+#   -q QUALITY  variant directory of the manifest returned by /play (default 128kbps)
+#   -r RUNS     runs per song (default 5)
+#   -l RATE     curl --limit-rate to emulate a mobile link, e.g. 50k (bytes per second)
+
+set -euo pipefail
+
+BASE_URL="http://localhost:8081"
+TOKEN=""
+QUALITY="128kbps"
+RUNS=5
+RATE=""
+
+while getopts "u:t:q:r:l:" opt; do
+  case "$opt" in
+    u) BASE_URL="$OPTARG" ;;
+    t) TOKEN="$OPTARG" ;;
+    q) QUALITY="$OPTARG" ;;
+    r) RUNS="$OPTARG" ;;
+    l) RATE="$OPTARG" ;;
+    *) sed -n '2,25p' "$0"; exit 1 ;;
+  esac
+done
+shift $((OPTIND - 1))
+
+if [ $# -eq 0 ]; then
+  sed -n '2,25p' "$0"
+  exit 1
+fi
+
+WORK_DIR=$(mktemp -d)
+trap 'rm -rf "$WORK_DIR"' EXIT
+
+# fetch URL OUTPUT [RANGE] -> prints "time_starttransfer time_total size_download"
+fetch() {
+  local args=(-sS -f -o "$2" -w '%{time_starttransfer} %{time_total} %{size_download}\n')
+  [ -n "$TOKEN" ] && args+=(-H "Authorization: Bearer $TOKEN")
+  [ -n "$RATE" ] && args+=(--limit-rate "$RATE")
+  [ -n "${3:-}" ] && args+=(-H "Range: bytes=$3")
+  curl "${args[@]}" "$1"
+}
+
+# first_entry PLAYLIST -> prints "URI RANGE" of the first media segment, RANGE is "-" without byte range
+first_entry() {
+  awk '
+    /^#EXT-X-BYTERANGE:/ { split(substr($0, 18), r, "@"); range = r[2] "-" (r[2] + r[1] - 1) }
+    /^[^#]/ && NF { print $0, (range == "" ? "-" : range); exit }
+  ' "$1"
+}
+
+# init_entry PLAYLIST -> prints "URI RANGE" of EXT-X-MAP, nothing for MPEG-TS
+init_entry() {
+  awk '
+    /^#EXT-X-MAP:/ {
+      uri = $0; sub(/.*URI="/, "", uri); sub(/".*/, "", uri)
+      range = "-"
+      if ($0 ~ /BYTERANGE="/) {
+        br = $0; sub(/.*BYTERANGE="/, "", br); sub(/".*/, "", br)
+        split(br, r, "@"); range = r[2] "-" (r[2] + r[1] - 1)
+      }
+      print uri, range; exit
+    }
+  ' "$1"
+}
+
+# Elapsed seconds since START, adding the time of sequential requests
+add() { awk -v a="$1" -v b="$2" 'BEGIN { printf "%.3f", a + b }'; }
+
+median() { sort -n | awk '{ v[NR] = $1 } END { printf "%.3f", (NR % 2) ? v[(NR + 1) / 2] : (v[NR / 2] + v[NR / 2 + 1]) / 2 }'; }
+
+measure() {
+  local song_id=$1 out=$2
+  local stream_url="$BASE_URL/songs/stream/$song_id"
+  local quality="$QUALITY" elapsed manifest="$WORK_DIR/manifest.m3u8" playlist
+
+  read -r ttfb total _ < <(fetch "$stream_url/play" "$manifest")
+  elapsed=$total
+  playlist=$manifest
+
+  if grep -q '^#EXT-X-STREAM-INF' "$manifest"; then
+    local variant
+    variant=$(grep -v '^#' "$manifest" | grep -m1 .)
+    quality=${variant%%/*}
+    playlist="$WORK_DIR/variant.m3u8"
+    read -r _ total _ < <(fetch "$stream_url/$variant" "$playlist")
+    elapsed=$(add "$elapsed" "$total")
+  fi
+
+  local uri range
+  read -r uri range < <(init_entry "$playlist") || true
+  if [ -n "${uri:-}" ]; then
+    [ "$range" = "-" ] && range=""
+    read -r _ total _ < <(fetch "$stream_url/$quality/$uri" "$WORK_DIR/init" "$range")
+    elapsed=$(add "$elapsed" "$total")
+  fi
+
+  read -r uri range < <(first_entry "$playlist")
+  [ "$range" = "-" ] && range=""
+  local seg_start seg_total seg_size
+  read -r seg_start seg_total seg_size < <(fetch "$stream_url/$quality/$uri" "$WORK_DIR/segment" "$range")
+
+  echo "$ttfb $(add "$elapsed" "$seg_start") $(add "$elapsed" "$seg_total") $seg_size" >> "$out"
+}
+
+printf '%-16s %-38s %8s %9s %8s %8s\n' "layout" "song" "ttfb" "seg_ttfb" "ttfa" "seg_kb"
+for arg in "$@"; do
+  label=${arg%%=*}
+  song_id=${arg#*=}
+  results="$WORK_DIR/$label.txt"
+  : > "$results"
+  for _ in $(seq "$RUNS"); do
+    measure "$song_id" "$results"
+  done
+  printf '%-16s %-38s %8s %9s %8s %8s\n' "$label" "$song_id" \
+    "$(cut -d' ' -f1 "$results" | median)" \
+    "$(cut -d' ' -f2 "$results" | median)" \
+    "$(cut -d' ' -f3 "$results" | median)" \
+    "$(cut -d' ' -f4 "$results" | median | awk '{ printf "%.1f", $1 / 1024 }')"
+done
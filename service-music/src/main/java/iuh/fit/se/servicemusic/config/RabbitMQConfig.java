@@ -14,8 +14,15 @@ public class RabbitMQConfig {
     public static final String EXCHANGE = "music_exchange";
     public static final String TRANSCODE_QUEUE = "transcode_queue";
     public static final String TRANSCODE_ROUTING_KEY = "transcode_key";
+    public static final String TRANSCODE_EXPRESS_QUEUE = "transcode_express_queue";
+    public static final String TRANSCODE_EXPRESS_ROUTING_KEY = "transcode_key.express";
+    public static final String TRANSCODE_STANDARD_QUEUE = "transcode_standard_queue";
+    public static final String TRANSCODE_STANDARD_ROUTING_KEY = "transcode_key.standard";
+    public static final int TRANSCODE_MAX_PRIORITY = 5;
+    public static final String TRANSCODE_CANCEL_ROUTING_KEY = "transcode_cancel_key";
     public static final String RESULT_QUEUE = "transcode_result_queue";
     public static final String RESULT_ROUTING_KEY = "transcode_result_key";
+    public static final String TRANSCODE_RENDER_ROUTING_KEY = "transcode_render_key";
 
     public static final String DLX_EXCHANGE = "music_dlx_exchange";
     public static final String TRANSCODE_DLQ = "transcode_dlq";
@@ -43,6 +50,29 @@ public class RabbitMQConfig {
                 .build();
     }
 
+    /**
+     * Lane for short uploads. Both lanes are priority queues so smaller files go first within a lane.
+     */
+    @Bean
+    public Queue transcodeExpressQueue() {
+        return QueueBuilder.durable(TRANSCODE_EXPRESS_QUEUE)
+                .withArgument("x-dead-letter-exchange", DLX_EXCHANGE)
+                .withArgument("x-dead-letter-routing-key", TRANSCODE_DLQ)
+                .withArgument("x-message-ttl", MESSAGE_TTL)
+                .maxPriority(TRANSCODE_MAX_PRIORITY)
+                .build();
+    }
+
+    @Bean
+    public Queue transcodeStandardQueue() {
+        return QueueBuilder.durable(TRANSCODE_STANDARD_QUEUE)
+                .withArgument("x-dead-letter-exchange", DLX_EXCHANGE)
+                .withArgument("x-dead-letter-routing-key", TRANSCODE_DLQ)
+                .withArgument("x-message-ttl", MESSAGE_TTL)
+                .maxPriority(TRANSCODE_MAX_PRIORITY)
+                .build();
+    }
+
     @Bean
     public Queue resultQueue() {
         return QueueBuilder.durable(RESULT_QUEUE)
@@ -69,6 +99,16 @@ public class RabbitMQConfig {
         return BindingBuilder.bind(transcodeQueue).to(exchange).with(TRANSCODE_ROUTING_KEY);
     }
 
+    @Bean
+    public Binding bindingTranscodeExpress(Queue transcodeExpressQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(transcodeExpressQueue).to(exchange).with(TRANSCODE_EXPRESS_ROUTING_KEY);
+    }
+
+    @Bean
+    public Binding bindingTranscodeStandard(Queue transcodeStandardQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(transcodeStandardQueue).to(exchange).with(TRANSCODE_STANDARD_ROUTING_KEY);
+    }
+
     @Bean
     public Binding bindingResult(Queue resultQueue, TopicExchange exchange) {
         return BindingBuilder.bind(resultQueue).to(exchange).with(RESULT_ROUTING_KEY);
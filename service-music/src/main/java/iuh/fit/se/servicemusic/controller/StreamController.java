@@ -4,10 +4,12 @@ import iuh.fit.se.servicemusic.service.StreamService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import java.util.UUID;
 
@@ -40,25 +42,61 @@ public class StreamController {
                 .body(response.resource());
     }
 
+    /**
+     * Serves the waveform peaks of a song in audiowaveform's binary format, for players to draw the seek bar.
+     *
+     * @param songId  the UUID of the song
+     * @param request the web request, used to answer a matching If-None-Match with 304 Not Modified
+     * @return a ResponseEntity containing the waveform as an InputStreamResource, with its ETag and the
+     *         Cache-Control header set to "public, max-age=3600"; 404 when the song has no waveform
+     */
+    @GetMapping("/{songId}/waveform")
+    public ResponseEntity<InputStreamResource> getWaveform(
+            @PathVariable UUID songId,
+            WebRequest request
+    ) {
+        String etag = streamService.getSongWaveformETag(songId);
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
+
+        StreamService.StreamResponse response = streamService.getSongWaveform(songId);
+
+        return ResponseEntity.ok()
+                .contentType(response.contentType())
+                .eTag(etag)
+                .header(HttpHeaders.CACHE_CONTROL, "public, max-age=3600")
+                .body(response.resource());
+    }
+
     /**
      * Serves a single song segment file for the specified song and quality.
      *
      * @param songId   the UUID of the song
      * @param quality  the requested quality level (e.g., bitrate or resolution identifier)
      * @param fileName the segment file name to retrieve
+     * @param range    optional Range header; single-file fMP4 variants address their segments with byte ranges
      * @return a ResponseEntity containing the segment as an InputStreamResource; the response's Content-Type
-     *         matches the segment media type and the Cache-Control header is set to "public, max-age=3600"
+     *         matches the segment media type and the Cache-Control header is set to "public, max-age=3600".
+     *         A satisfiable range is answered with 206 Partial Content and a Content-Range header, a malformed or
+     *         unsatisfiable one with 416 and a Content-Range header giving the file size.
      */
     @GetMapping("/{songId}/{quality}/{fileName}")
     public ResponseEntity<InputStreamResource> getSegment(
             @PathVariable UUID songId,
             @PathVariable String quality,
-            @PathVariable String fileName
+            @PathVariable String fileName,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range
     ) {
-        StreamService.StreamResponse response = streamService.getSongSegment(songId, quality, fileName);
+        StreamService.StreamResponse response = streamService.getSongSegment(songId, quality, fileName, range);
 
-        return ResponseEntity.ok()
+        ResponseEntity.BodyBuilder builder = response.contentRange() != null
+                ? ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).header(HttpHeaders.CONTENT_RANGE, response.contentRange())
+                : ResponseEntity.ok();
+
+        return builder
                 .contentType(response.contentType())
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
                 .header(HttpHeaders.CACHE_CONTROL, "public, max-age=3600")
                 .body(response.resource());
     }
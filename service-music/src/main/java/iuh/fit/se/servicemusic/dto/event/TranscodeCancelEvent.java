@@ -0,0 +1,20 @@
+package iuh.fit.se.servicemusic.dto.event;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.util.UUID;
+
+/**
+ * Stops the transcode job of a song on every transcode worker.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class TranscodeCancelEvent {
+    private UUID songId;
+    private String rawObjectKey;
+    private String reason;
+}
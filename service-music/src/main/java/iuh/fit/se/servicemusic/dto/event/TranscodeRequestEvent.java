@@ -13,4 +13,8 @@ import java.util.UUID;
 public class TranscodeRequestEvent {
     private UUID songId;
     private String rawObjectKey;
+    /**
+     * Set for catalog re-transcodes, see {@link iuh.fit.se.servicemusic.util.CatalogReprocessRunner}.
+     */
+    private String revision;
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import java.util.List;
 import java.util.UUID;
 
 @Data
@@ -16,4 +17,12 @@ public class TranscodeResultEvent {
     private int duration;
     private String status;
     private String message;
+    private List<String> qualityLevels;
+    private String waveformUrl;
+    private Double integratedLoudness;
+    private Double truePeak;
+    /**
+     * Revision of a catalog re-transcode, null for uploads.
+     */
+    private String revision;
 }
\ No newline at end of file
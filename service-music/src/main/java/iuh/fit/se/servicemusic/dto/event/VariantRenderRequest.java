@@ -0,0 +1,18 @@
+package iuh.fit.se.servicemusic.dto.event;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.util.UUID;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class VariantRenderRequest {
+    private UUID songId;
+    private String renditionPrefix;
+    private String quality;
+    private long expiresAt;
+}
@@ -0,0 +1,16 @@
+package iuh.fit.se.servicemusic.dto.event;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class VariantRenderResult {
+    private boolean success;
+    private long sizeBytes;
+    private String message;
+}
@@ -0,0 +1,44 @@
+package iuh.fit.se.servicemusic.entity;
+
+import iuh.fit.se.servicemusic.entity.enums.ReprocessStatus;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+@Entity
+@Table(name = "catalog_reprocess_items",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"revision", "song_id"}),
+        indexes = @Index(columnList = "revision, status"))
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class CatalogReprocessItem {
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @Column(nullable = false)
+    private String revision;
+
+    @Column(name = "song_id", nullable = false)
+    private UUID songId;
+
+    @Enumerated(EnumType.STRING)
+    private ReprocessStatus status;
+
+    /**
+     * Master playlist of the rendition no longer served (the replaced one, or the new one when it could not
+     * be swapped in), deleted once the retention has passed; null when there is nothing to delete.
+     */
+    private String obsoleteStreamUrl;
+
+    @Column(columnDefinition = "TEXT")
+    private String message;
+
+    private LocalDateTime requestedAt;
+    private LocalDateTime completedAt;
+}
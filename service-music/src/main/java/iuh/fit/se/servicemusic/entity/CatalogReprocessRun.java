@@ -0,0 +1,28 @@
+package iuh.fit.se.servicemusic.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Progress of re-transcoding the catalog for one encoding revision; songs are walked in id order
+ * so the run resumes after the last enqueued song.
+ */
+@Entity
+@Table(name = "catalog_reprocess_runs")
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class CatalogReprocessRun {
+    @Id
+    private String revision;
+
+    private UUID lastSongId;
+
+    private LocalDateTime startedAt;
+    private LocalDateTime finishedAt;
+}
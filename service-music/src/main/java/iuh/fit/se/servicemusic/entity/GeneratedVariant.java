@@ -0,0 +1,53 @@
+package iuh.fit.se.servicemusic.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * A variant rendered on first request from a tiered rendition's mezzanine, kept in storage until evicted.
+ */
+@Entity
+@Table(name = "generated_variants",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"rendition_prefix", "quality"}),
+        indexes = @Index(columnList = "pinned, last_accessed_at"))
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class GeneratedVariant {
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @Column(name = "song_id", nullable = false)
+    private UUID songId;
+
+    @Column(name = "rendition_prefix", nullable = false)
+    private String renditionPrefix;
+
+    @Column(nullable = false)
+    private String quality;
+
+    private long sizeBytes;
+
+    /**
+     * Playlist requests in the current pin window.
+     */
+    private long hits;
+
+    /**
+     * Popular enough in the last pin window to be kept regardless of its age and the cache size.
+     */
+    private boolean pinned;
+
+    private LocalDateTime createdAt;
+
+    @Column(name = "last_accessed_at")
+    private LocalDateTime lastAccessedAt;
+
+    private LocalDateTime windowStartedAt;
+}
@@ -5,7 +5,9 @@ import jakarta.persistence.*;
 import lombok.*;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
@@ -34,6 +36,27 @@ public class Song {
     private String streamUrl;
     private int duration;
 
+    /**
+     * HLS variants produced for this song (e.g. "128kbps"); empty for songs transcoded before the
+     * ladder was source-aware, which all have 128/256/320 kbps.
+     */
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "song_quality_levels", joinColumns = @JoinColumn(name = "song_id"))
+    @Column(name = "quality_level")
+    @Builder.Default
+    private List<String> qualityLevels = new ArrayList<>();
+
+    /**
+     * Waveform peaks of the song in audiowaveform's binary format, served by the stream endpoints.
+     */
+    private String waveformUrl;
+
+    /**
+     * Integrated loudness in LUFS and true peak in dBTP, from which players compute a normalization gain.
+     */
+    private Double loudness;
+    private Double truePeak;
+
     @ManyToMany(fetch = FetchType.LAZY, cascade = {CascadeType.PERSIST, CascadeType.MERGE})
     @JoinTable(
             name = "song_genres",
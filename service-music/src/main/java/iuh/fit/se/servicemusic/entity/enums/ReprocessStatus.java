@@ -0,0 +1,5 @@
+package iuh.fit.se.servicemusic.entity.enums;
+
+public enum ReprocessStatus {
+    QUEUED, SUCCEEDED, FAILED
+}
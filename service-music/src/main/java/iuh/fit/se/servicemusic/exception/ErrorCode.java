@@ -18,7 +18,10 @@ public enum ErrorCode {
     NOT_ELIGIBLE_FOR_ARTIST(1010, "Your subscription plan does not include artist features", HttpStatus.FORBIDDEN),
 
     ONBOARDING_ALREADY_COMPLETED(1011, "Onboarding already completed", HttpStatus.BAD_REQUEST),
-    USER_PREFERENCES_NOT_FOUND(1012, "User preferences not found", HttpStatus.NOT_FOUND);
+    USER_PREFERENCES_NOT_FOUND(1012, "User preferences not found", HttpStatus.NOT_FOUND),
+
+    WAVEFORM_NOT_FOUND(1013, "Waveform not found", HttpStatus.NOT_FOUND),
+    RANGE_NOT_SATISFIABLE(1014, "Requested range not satisfiable", HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
 
     private int code;
     private String message;
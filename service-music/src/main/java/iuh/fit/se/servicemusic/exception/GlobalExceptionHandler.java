@@ -1,5 +1,6 @@
 package iuh.fit.se.servicemusic.exception;
 
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -15,4 +16,15 @@ public class GlobalExceptionHandler {
         apiResponse.setMessage(errorCode.getMessage());
         return ResponseEntity.status(errorCode.getStatusCode()).body(apiResponse);
     }
+
+    @ExceptionHandler(value = RangeNotSatisfiableException.class)
+    ResponseEntity<ApiResponse> handlingRangeNotSatisfiableException(RangeNotSatisfiableException exception) {
+        ErrorCode errorCode = exception.getErrorCode();
+        ApiResponse apiResponse = new ApiResponse();
+        apiResponse.setCode(errorCode.getCode());
+        apiResponse.setMessage(errorCode.getMessage());
+        return ResponseEntity.status(errorCode.getStatusCode())
+                .header(HttpHeaders.CONTENT_RANGE, "bytes */" + exception.getSize())
+                .body(apiResponse);
+    }
 }
@@ -0,0 +1,16 @@
+package iuh.fit.se.servicemusic.exception;
+
+import lombok.Getter;
+
+/**
+ * A Range header that is malformed or starts past the end of the file; answered with 416 and the file's size.
+ */
+@Getter
+public class RangeNotSatisfiableException extends AppException {
+    private final long size;
+
+    public RangeNotSatisfiableException(long size) {
+        super(ErrorCode.RANGE_NOT_SATISFIABLE);
+        this.size = size;
+    }
+}
@@ -2,12 +2,15 @@ package iuh.fit.se.servicemusic.listener;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import iuh.fit.se.servicemusic.config.RabbitMQConfig;
+import iuh.fit.se.servicemusic.dto.event.TranscodeCancelEvent;
 import iuh.fit.se.servicemusic.entity.enums.Status;
 import iuh.fit.se.servicemusic.repository.SongRepository;
+import iuh.fit.se.servicemusic.util.CatalogReprocessRunner;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
@@ -20,6 +23,8 @@ public class DeadLetterQueueListener {
 
     private final SongRepository songRepository;
     private final ObjectMapper objectMapper;
+    private final RabbitTemplate rabbitTemplate;
+    private final CatalogReprocessRunner catalogReprocessRunner;
 
     @RabbitListener(queues = RabbitMQConfig.TRANSCODE_DLQ)
     public void handleTranscodeDLQ(Message message) {
@@ -30,9 +35,15 @@ public class DeadLetterQueueListener {
             Map<String, Object> messageData = objectMapper.readValue(messageBody, Map.class);
             String songIdStr = (String) messageData.get("songId");
 
-            if (songIdStr != null) {
+            String revision = (String) messageData.get("revision");
+
+            if (songIdStr != null && revision != null) {
+                // A failed re-transcode leaves the song on its current rendition
+                catalogReprocessRunner.handleFailure(UUID.fromString(songIdStr), revision, "Transcode job failed after maximum retries");
+            } else if (songIdStr != null) {
                 UUID songId = UUID.fromString(songIdStr);
                 updateSongStatusToFailed(songId, "Transcode job failed after maximum retries");
+                cancelTranscode(songId, (String) messageData.get("rawObjectKey"), "Song marked FAILED from the DLQ");
             }
 
             logMessageHeaders(message);
@@ -42,6 +53,15 @@ public class DeadLetterQueueListener {
         }
     }
 
+    /**
+     * A worker may still be encoding the failed song; stop it instead of letting it run to completion.
+     */
+    private void cancelTranscode(UUID songId, String rawObjectKey, String reason) {
+        TranscodeCancelEvent event = new TranscodeCancelEvent(songId, rawObjectKey, reason);
+        rabbitTemplate.convertAndSend(RabbitMQConfig.EXCHANGE, RabbitMQConfig.TRANSCODE_CANCEL_ROUTING_KEY, event);
+        log.info("Sent transcode cancel for songId: {}", songId);
+    }
+
     @RabbitListener(queues = RabbitMQConfig.RESULT_DLQ)
     public void handleResultDLQ(Message message) {
         try {
@@ -51,7 +71,11 @@ public class DeadLetterQueueListener {
             Map<String, Object> messageData = objectMapper.readValue(messageBody, Map.class);
             String songIdStr = (String) messageData.get("songId");
 
-            if (songIdStr != null) {
+            String revision = (String) messageData.get("revision");
+
+            if (songIdStr != null && revision != null) {
+                catalogReprocessRunner.handleFailure(UUID.fromString(songIdStr), revision, "Failed to process transcode result");
+            } else if (songIdStr != null) {
                 UUID songId = UUID.fromString(songIdStr);
                 updateSongStatusToFailed(songId, "Failed to process transcode result");
             }
@@ -4,29 +4,67 @@ import iuh.fit.se.servicemusic.config.RabbitMQConfig;
 import iuh.fit.se.servicemusic.dto.event.TranscodeResultEvent;
 import iuh.fit.se.servicemusic.entity.enums.Status;
 import iuh.fit.se.servicemusic.repository.SongRepository;
+import iuh.fit.se.servicemusic.util.CatalogReprocessRunner;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+
 @Component
 @RequiredArgsConstructor
 @Slf4j
 public class SongResultListener {
 
     private final SongRepository songRepository;
+    private final CatalogReprocessRunner catalogReprocessRunner;
 
     @RabbitListener(queues = RabbitMQConfig.RESULT_QUEUE)
     public void handleTranscodeResult(TranscodeResultEvent event) {
         log.info("Nhận kết quả Transcode cho Song ID: {} - Status: {}", event.getSongId(), event.getStatus());
 
+        if (event.getRevision() != null) {
+            // Re-transcode of a song that is already served, it only switches rendition on success
+            catalogReprocessRunner.handleResult(event);
+            return;
+        }
+
+        if ("CANCELLED".equals(event.getStatus())) {
+            // Cancelled on request (song failed or replaced), the song's state is already up to date
+            log.info("Transcode đã bị hủy cho Song ID: {}. {}", event.getSongId(), event.getMessage());
+            return;
+        }
+
         songRepository.findById(event.getSongId()).ifPresentOrElse(song -> {
             if ("SUCCESS".equals(event.getStatus())) {
                 song.setStatus(Status.ACTIVE);
                 song.setStreamUrl(event.getStreamUrl());
                 song.setDuration(event.getDuration());
+                if (event.getQualityLevels() != null) {
+                    song.setQualityLevels(new ArrayList<>(event.getQualityLevels()));
+                }
+                if (event.getWaveformUrl() != null) {
+                    song.setWaveformUrl(event.getWaveformUrl());
+                    song.setLoudness(event.getIntegratedLoudness());
+                    song.setTruePeak(event.getTruePeak());
+                }
 
                 log.info("Update thành công Song ID: {}. Stream URL: {}", song.getId(), song.getStreamUrl());
+            } else if ("PARTIAL".equals(event.getStatus())) {
+                // Playable with the first variants; a late partial must not shrink an already larger ladder
+                if (event.getQualityLevels() == null || event.getQualityLevels().size() <= song.getQualityLevels().size()) {
+                    return;
+                }
+                song.setStatus(Status.ACTIVE);
+                song.setStreamUrl(event.getStreamUrl());
+                song.setDuration(event.getDuration());
+                song.setQualityLevels(new ArrayList<>(event.getQualityLevels()));
+
+                log.info("Song ID: {} đã có thể phát với: {}", song.getId(), event.getQualityLevels());
+            } else if (song.getStatus() == Status.ACTIVE && !song.getQualityLevels().isEmpty()) {
+                // Already playable from a partial result, keep serving the variants that exist
+                log.error("Transcode các chất lượng còn lại thất bại cho Song ID: {}. Lỗi: {}", song.getId(), event.getMessage());
             } else {
                 song.setStatus(Status.FAILED);
                 log.error("Transcode thất bại cho Song ID: {}. Lỗi: {}", song.getId(), event.getMessage());
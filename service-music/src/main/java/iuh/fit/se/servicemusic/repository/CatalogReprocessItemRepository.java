@@ -0,0 +1,19 @@
+package iuh.fit.se.servicemusic.repository;
+
+import iuh.fit.se.servicemusic.entity.CatalogReprocessItem;
+import iuh.fit.se.servicemusic.entity.enums.ReprocessStatus;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public interface CatalogReprocessItemRepository extends JpaRepository<CatalogReprocessItem, UUID> {
+    Optional<CatalogReprocessItem> findByRevisionAndSongId(String revision, UUID songId);
+    long countByRevisionAndStatus(String revision, ReprocessStatus status);
+    List<CatalogReprocessItem> findByRevisionAndStatusAndRequestedAtBefore(String revision, ReprocessStatus status, LocalDateTime requestedAt);
+    List<CatalogReprocessItem> findByObsoleteStreamUrlNotNullAndCompletedAtBefore(LocalDateTime completedAt);
+}
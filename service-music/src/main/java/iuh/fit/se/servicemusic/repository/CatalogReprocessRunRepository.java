@@ -0,0 +1,9 @@
+package iuh.fit.se.servicemusic.repository;
+
+import iuh.fit.se.servicemusic.entity.CatalogReprocessRun;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface CatalogReprocessRunRepository extends JpaRepository<CatalogReprocessRun, String> {
+}
@@ -0,0 +1,43 @@
+package iuh.fit.se.servicemusic.repository;
+
+import iuh.fit.se.servicemusic.entity.GeneratedVariant;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public interface GeneratedVariantRepository extends JpaRepository<GeneratedVariant, UUID> {
+    Optional<GeneratedVariant> findByRenditionPrefixAndQuality(String renditionPrefix, String quality);
+    List<GeneratedVariant> findByPinnedFalseAndLastAccessedAtBefore(LocalDateTime lastAccessedAt);
+    List<GeneratedVariant> findByPinnedFalseOrderByLastAccessedAtAsc(Pageable pageable);
+
+    @Query("select coalesce(sum(v.sizeBytes), 0) from GeneratedVariant v")
+    long sumSizeBytes();
+
+    @Transactional
+    @Modifying
+    @Query("update GeneratedVariant v set v.hits = v.hits + :hits, v.lastAccessedAt = :accessedAt " +
+            "where v.renditionPrefix = :renditionPrefix and v.quality = :quality")
+    int addHits(@Param("renditionPrefix") String renditionPrefix, @Param("quality") String quality,
+                @Param("hits") long hits, @Param("accessedAt") LocalDateTime accessedAt);
+
+    /**
+     * Closes the pin windows started before the cutoff: variants with at least minHits playlist requests in it
+     * stay pinned for the next window, the others are unpinned.
+     */
+    @Transactional
+    @Modifying
+    @Query("update GeneratedVariant v set v.pinned = (case when v.hits >= :minHits then true else false end), " +
+            "v.hits = 0, v.windowStartedAt = :now where v.windowStartedAt < :cutoff")
+    int rollPinWindows(@Param("minHits") long minHits, @Param("cutoff") LocalDateTime cutoff,
+                       @Param("now") LocalDateTime now);
+}
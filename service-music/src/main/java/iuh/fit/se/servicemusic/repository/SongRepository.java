@@ -1,8 +1,13 @@
 package iuh.fit.se.servicemusic.repository;
 
 import iuh.fit.se.servicemusic.entity.Song;
+import iuh.fit.se.servicemusic.entity.enums.Status;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.util.List;
 import java.util.UUID;
 
 public interface SongRepository extends JpaRepository<Song, UUID> {
-}
\ No newline at end of file
+    List<Song> findByStatusAndIdGreaterThanOrderByIdAsc(Status status, UUID id, Pageable pageable);
+}
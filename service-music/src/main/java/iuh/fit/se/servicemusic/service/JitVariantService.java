@@ -0,0 +1,23 @@
+package iuh.fit.se.servicemusic.service;
+
+import java.util.UUID;
+
+public interface JitVariantService {
+    /**
+ * Render a cold variant of a tiered rendition from its mezzanine, waiting for the transcode service to store it.
+ * Concurrent requests for the same variant share one render.
+ *
+ * @param songId          the UUID of the song
+ * @param renditionPrefix the rendition the song is served from, e.g. "hls/{songId}/"
+ * @param quality         the variant to render, e.g. "128kbps"
+ * @return                true if the variant is in storage, false if rendering is disabled, failed or timed out
+ */
+boolean renderVariant(UUID songId, String renditionPrefix, String quality);
+    /**
+ * Count a playlist request of a variant; only rendered variants are tracked, for eviction and pinning.
+ *
+ * @param renditionPrefix the rendition the variant belongs to
+ * @param quality         the variant
+ */
+void recordAccess(String renditionPrefix, String quality);
+}
@@ -22,5 +22,33 @@ StreamResponse getSongManifest(UUID songId, String userQuality);
  * @return         a StreamResponse containing the segment's input stream resource and its media type
  */
 StreamResponse getSongSegment(UUID songId, String quality, String fileName);
-    record StreamResponse(InputStreamResource resource, MediaType contentType) {}
+    /**
+ * Retrieve a byte range of a segment file, as addressed by EXT-X-BYTERANGE in single-file fMP4 variants.
+ *
+ * @param songId   the UUID of the song
+ * @param quality  the requested quality level
+ * @param fileName the media file name
+ * @param range    the HTTP Range header value, or null for the whole file
+ * @return         a StreamResponse for the requested range; contentRange is set when a partial body is returned
+ */
+StreamResponse getSongSegment(UUID songId, String quality, String fileName, String range);
+    /**
+ * Retrieve the entity tag of a song's waveform, so unchanged waveforms are answered with 304 Not Modified.
+ *
+ * @param songId the UUID of the song
+ * @return       the ETag of the waveform object
+ */
+String getSongWaveformETag(UUID songId);
+    /**
+ * Retrieve the waveform peaks of a song, in audiowaveform's binary format.
+ *
+ * @param songId the UUID of the song
+ * @return       a StreamResponse containing the waveform resource and its media type
+ */
+StreamResponse getSongWaveform(UUID songId);
+    record StreamResponse(InputStreamResource resource, MediaType contentType, String contentRange) {
+        public StreamResponse(InputStreamResource resource, MediaType contentType) {
+            this(resource, contentType, null);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,300 @@
+package iuh.fit.se.servicemusic.service.impl;
+
+import io.minio.ListObjectsArgs;
+import io.minio.MinioClient;
+import io.minio.RemoveObjectArgs;
+import io.minio.RemoveObjectsArgs;
+import io.minio.Result;
+import io.minio.StatObjectArgs;
+import io.minio.errors.ErrorResponseException;
+import io.minio.messages.DeleteError;
+import io.minio.messages.DeleteObject;
+import io.minio.messages.Item;
+import iuh.fit.se.servicemusic.config.RabbitMQConfig;
+import iuh.fit.se.servicemusic.dto.event.VariantRenderRequest;
+import iuh.fit.se.servicemusic.dto.event.VariantRenderResult;
+import iuh.fit.se.servicemusic.entity.GeneratedVariant;
+import iuh.fit.se.servicemusic.repository.GeneratedVariantRepository;
+import iuh.fit.se.servicemusic.service.JitVariantService;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Just-in-time variants of tiered renditions: the transcode service only stores the mezzanine and a few
+ * popular variants of those, the others are rendered over RabbitMQ the first time a player asks for them.
+ * <p>
+ * Rendered variants are tracked in {@code generated_variants} and evicted from storage once unplayed for
+ * {@code ttl-hours}, or least recently played first while they take more than {@code max-bytes}. A variant
+ * with {@code pin-min-hits} playlist requests in a {@code pin-window-hours} window is pinned for the next
+ * window and not evicted. Evicted variants are rendered again on their next request.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class JitVariantServiceImpl implements JitVariantService {
+
+    private static final String VARIANT_PLAYLIST = "index.m3u8";
+    private static final int EVICTION_BATCH_SIZE = 100;
+
+    private final GeneratedVariantRepository variantRepository;
+    private final RabbitTemplate rabbitTemplate;
+    private final MinioClient minioClient;
+
+    @Value("${minio.bucket-name}")
+    private String bucketName;
+
+    @Value("${stream.jit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${spring.rabbitmq.template.reply-timeout:5000}")
+    private long renderTimeoutMs;
+
+    @Value("${stream.jit.ttl-hours:168}")
+    private long ttlHours;
+
+    @Value("${stream.jit.max-bytes:53687091200}")
+    private long maxBytes;
+
+    @Value("${stream.jit.pin-min-hits:20}")
+    private long pinMinHits;
+
+    @Value("${stream.jit.pin-window-hours:24}")
+    private long pinWindowHours;
+
+    private final Map<VariantKey, CompletableFuture<Boolean>> renders = new ConcurrentHashMap<>();
+
+    /**
+     * Rendered variants, so playlist requests of stored variants are not counted.
+     */
+    private final Set<VariantKey> generated = ConcurrentHashMap.newKeySet();
+    private final Map<VariantKey, LongAdder> hits = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() {
+        if (enabled) {
+            refreshGenerated();
+        }
+    }
+
+    @Override
+    public boolean renderVariant(UUID songId, String renditionPrefix, String quality) {
+        if (!enabled) {
+            return false;
+        }
+        VariantKey key = new VariantKey(renditionPrefix, quality);
+        CompletableFuture<Boolean> render = new CompletableFuture<>();
+        CompletableFuture<Boolean> running = renders.putIfAbsent(key, render);
+        if (running != null) {
+            try {
+                return running.get(renderTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        try {
+            boolean rendered = render(songId, key);
+            render.complete(rendered);
+            return rendered;
+        } catch (Exception e) {
+            log.error("Render of {} failed for songId: {}", quality, songId, e);
+            render.complete(false);
+            return false;
+        } finally {
+            renders.remove(key, render);
+        }
+    }
+
+    private boolean render(UUID songId, VariantKey key) throws Exception {
+        if (exists(key.renditionPrefix() + key.quality() + "/" + VARIANT_PLAYLIST)) {
+            // Stored at ingest or rendered by another instance: only the requested file is missing
+            return true;
+        }
+
+        // Recorded before rendering, so a variant whose reply timed out is still evicted
+        GeneratedVariant variant = variantRepository.findByRenditionPrefixAndQuality(key.renditionPrefix(), key.quality())
+                .orElseGet(() -> {
+                    LocalDateTime now = LocalDateTime.now();
+                    return GeneratedVariant.builder()
+                            .songId(songId)
+                            .renditionPrefix(key.renditionPrefix())
+                            .quality(key.quality())
+                            .createdAt(now)
+                            .lastAccessedAt(now)
+                            .windowStartedAt(now)
+                            .build();
+                });
+        try {
+            variant = variantRepository.save(variant);
+        } catch (DataIntegrityViolationException e) {
+            // Recorded meanwhile by another instance
+            variant = variantRepository.findByRenditionPrefixAndQuality(key.renditionPrefix(), key.quality()).orElseThrow();
+        }
+        generated.add(key);
+
+        long start = System.nanoTime();
+        VariantRenderResult result = rabbitTemplate.convertSendAndReceiveAsType(
+                RabbitMQConfig.EXCHANGE,
+                RabbitMQConfig.TRANSCODE_RENDER_ROUTING_KEY,
+                VariantRenderRequest.builder()
+                        .songId(songId)
+                        .renditionPrefix(key.renditionPrefix())
+                        .quality(key.quality())
+                        .expiresAt(System.currentTimeMillis() + renderTimeoutMs)
+                        .build(),
+                new ParameterizedTypeReference<VariantRenderResult>() {
+                });
+        if (result == null) {
+            log.warn("Render of {} for songId: {} timed out after {}ms", key.quality(), songId, renderTimeoutMs);
+            return false;
+        }
+        if (!result.isSuccess()) {
+            log.warn("Render of {} failed for songId: {}. Error: {}", key.quality(), songId, result.getMessage());
+            return false;
+        }
+
+        variant.setSizeBytes(result.getSizeBytes());
+        variantRepository.save(variant);
+        log.info("Rendered {} for songId: {} ({} bytes) in {}ms", key.quality(), songId, result.getSizeBytes(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    @Override
+    public void recordAccess(String renditionPrefix, String quality) {
+        VariantKey key = new VariantKey(renditionPrefix, quality);
+        if (generated.contains(key)) {
+            hits.computeIfAbsent(key, k -> new LongAdder()).increment();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${stream.jit.eviction-interval-ms:300000}")
+    public void evict() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            flushHits(now);
+            variantRepository.rollPinWindows(pinMinHits, now.minusHours(pinWindowHours), now);
+
+            for (GeneratedVariant variant : variantRepository.findByPinnedFalseAndLastAccessedAtBefore(now.minusHours(ttlHours))) {
+                remove(variant);
+            }
+
+            long totalBytes = variantRepository.sumSizeBytes();
+            if (totalBytes > maxBytes) {
+                for (GeneratedVariant variant : variantRepository.findByPinnedFalseOrderByLastAccessedAtAsc(
+                        PageRequest.of(0, EVICTION_BATCH_SIZE))) {
+                    if (totalBytes <= maxBytes) {
+                        break;
+                    }
+                    if (remove(variant)) {
+                        totalBytes -= variant.getSizeBytes();
+                    }
+                }
+                if (totalBytes > maxBytes) {
+                    log.warn("Rendered variants take {} bytes, above the {} bytes limit", totalBytes, maxBytes);
+                }
+            }
+            refreshGenerated();
+        } catch (Exception e) {
+            log.error("Rendered variant eviction failed", e);
+        }
+    }
+
+    private void flushHits(LocalDateTime now) {
+        hits.forEach((key, count) -> {
+            long sum = count.sumThenReset();
+            if (sum > 0) {
+                variantRepository.addHits(key.renditionPrefix(), key.quality(), sum, now);
+            }
+        });
+        hits.keySet().retainAll(generated);
+    }
+
+    /**
+     * Deletes a rendered variant from storage, unless it is being rendered.
+     *
+     * @return true if the variant was removed
+     */
+    private boolean remove(GeneratedVariant variant) throws Exception {
+        VariantKey key = new VariantKey(variant.getRenditionPrefix(), variant.getQuality());
+        if (renders.containsKey(key)) {
+            return false;
+        }
+        String variantPrefix = key.renditionPrefix() + key.quality() + "/";
+        // The playlist goes first, so a player asking for the variant meanwhile re-renders it instead of
+        // missing segments
+        minioClient.removeObject(RemoveObjectArgs.builder()
+                .bucket(bucketName)
+                .object(variantPrefix + VARIANT_PLAYLIST)
+                .build());
+        List<DeleteObject> objects = new ArrayList<>();
+        for (Result<Item> result : minioClient.listObjects(ListObjectsArgs.builder()
+                .bucket(bucketName)
+                .prefix(variantPrefix)
+                .recursive(true)
+                .build())) {
+            objects.add(new DeleteObject(result.get().objectName()));
+        }
+        if (!objects.isEmpty()) {
+            for (Result<DeleteError> error : minioClient.removeObjects(RemoveObjectsArgs.builder()
+                    .bucket(bucketName)
+                    .objects(objects)
+                    .build())) {
+                DeleteError deleteError = error.get();
+                log.warn("Could not delete {}: {}", deleteError.objectName(), deleteError.message());
+            }
+        }
+        variantRepository.delete(variant);
+        generated.remove(key);
+        log.info("Evicted rendered variant {} ({} bytes)", variantPrefix, variant.getSizeBytes());
+        return true;
+    }
+
+    private boolean exists(String objectKey) throws Exception {
+        try {
+            minioClient.statObject(StatObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(objectKey)
+                    .build());
+            return true;
+        } catch (ErrorResponseException e) {
+            if ("NoSuchKey".equals(e.errorResponse().code())) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void refreshGenerated() {
+        Set<VariantKey> keys = ConcurrentHashMap.newKeySet();
+        variantRepository.findAll().forEach(variant ->
+                keys.add(new VariantKey(variant.getRenditionPrefix(), variant.getQuality())));
+        generated.retainAll(keys);
+        generated.addAll(keys);
+    }
+
+    private record VariantKey(String renditionPrefix, String quality) {
+    }
+}
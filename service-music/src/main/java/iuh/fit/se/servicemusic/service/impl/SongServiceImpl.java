@@ -2,6 +2,7 @@ package iuh.fit.se.servicemusic.service.impl;
 
 import io.minio.GetPresignedObjectUrlArgs;
 import io.minio.MinioClient;
+import io.minio.StatObjectArgs;
 import io.minio.http.Method;
 import iuh.fit.se.servicemusic.config.RabbitMQConfig;
 import iuh.fit.se.servicemusic.dto.event.TranscodeRequestEvent;
@@ -41,6 +42,9 @@ public class SongServiceImpl implements SongService {
     @Value("${minio.bucket-name}")
     private String bucketName;
 
+    @Value("${transcode.express-max-size-mb:40}")
+    private long expressMaxSizeMb;
+
     private static final Set<String> ALLOWED_EXTENSIONS = Set.of(
             "mp3", "mp4", "m4a", "wav", "flac", "aac", "ogg", "wma", "webm", "mkv", "avi", "mov"
     );
@@ -112,14 +116,61 @@ public class SongServiceImpl implements SongService {
         log.info("Created song with ID: {}, title: {}, genres count: {}",
                 savedSong.getId(), savedSong.getTitle(), savedSong.getGenres().size());
 
-        TranscodeRequestEvent event = new TranscodeRequestEvent(savedSong.getId(), objectName);
-        rabbitTemplate.convertAndSend(RabbitMQConfig.EXCHANGE, RabbitMQConfig.TRANSCODE_ROUTING_KEY, event);
+        long sizeBytes = getObjectSize(objectName);
+        boolean express = sizeBytes >= 0 && sizeBytes <= expressMaxSizeMb * 1024 * 1024;
+        int priority = transcodePriority(sizeBytes, express);
+
+        TranscodeRequestEvent event = TranscodeRequestEvent.builder()
+                .songId(savedSong.getId())
+                .rawObjectKey(objectName)
+                .build();
+        rabbitTemplate.convertAndSend(RabbitMQConfig.EXCHANGE,
+                express ? RabbitMQConfig.TRANSCODE_EXPRESS_ROUTING_KEY : RabbitMQConfig.TRANSCODE_STANDARD_ROUTING_KEY,
+                event,
+                message -> {
+                    message.getMessageProperties().setPriority(priority);
+                    return message;
+                });
 
-        log.info("Sent transcode request for songId: {}", savedSong.getId());
+        log.info("Sent transcode request for songId: {} (lane: {}, priority: {})",
+                savedSong.getId(), express ? "express" : "standard", priority);
 
         return savedSong;
     }
 
+    /**
+     * Size of the uploaded raw object, or -1 when it cannot be read.
+     */
+    private long getObjectSize(String objectName) {
+        try {
+            return minioClient.statObject(StatObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(objectName)
+                    .build()).size();
+        } catch (Exception e) {
+            log.warn("Cannot stat uploaded object: {}. Error: {}", objectName, e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Shortest job first: encode time grows with file size, so smaller uploads get a higher priority. Priorities
+     * only order jobs within a lane, so the size is scaled over the lane's own range: up to express-max-size-mb
+     * for the express lane, from there to MAX_FILE_SIZE_MB for the standard lane.
+     */
+    private int transcodePriority(long sizeBytes, boolean express) {
+        if (sizeBytes < 0) {
+            return 0;
+        }
+        long laneMinBytes = express ? 0 : expressMaxSizeMb * 1024 * 1024;
+        long laneMaxBytes = express ? expressMaxSizeMb * 1024 * 1024 : MAX_FILE_SIZE_MB * 1024 * 1024;
+        double ratio = laneMaxBytes > laneMinBytes
+                ? (double) (sizeBytes - laneMinBytes) / (laneMaxBytes - laneMinBytes)
+                : 0;
+        ratio = Math.max(0.0, Math.min(1.0, ratio));
+        return (int) Math.round(RabbitMQConfig.TRANSCODE_MAX_PRIORITY * (1 - ratio));
+    }
+
     private void validateFileName(String fileName) {
         if (fileName == null || fileName.trim().isEmpty()) {
             throw new AppException(ErrorCode.INVALID_FILE_FORMAT);
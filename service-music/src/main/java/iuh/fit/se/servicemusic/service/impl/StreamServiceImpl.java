@@ -2,15 +2,27 @@ package iuh.fit.se.servicemusic.service.impl;
 
 import io.minio.GetObjectArgs;
 import io.minio.MinioClient;
+import io.minio.StatObjectArgs;
+import io.minio.errors.ErrorResponseException;
+import iuh.fit.se.servicemusic.entity.Song;
+import iuh.fit.se.servicemusic.exception.AppException;
+import iuh.fit.se.servicemusic.exception.ErrorCode;
+import iuh.fit.se.servicemusic.exception.RangeNotSatisfiableException;
+import iuh.fit.se.servicemusic.repository.SongRepository;
+import iuh.fit.se.servicemusic.service.JitVariantService;
 import iuh.fit.se.servicemusic.service.StreamService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpRange;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 
 import java.io.InputStream;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 @Service
@@ -19,12 +31,20 @@ import java.util.UUID;
 public class StreamServiceImpl implements StreamService {
 
     private final MinioClient minioClient;
+    private final SongRepository songRepository;
+    private final JitVariantService jitVariantService;
+
+    private static final int HIGH_QUALITY_BITRATE = 256000;
+    private static final int NORMAL_QUALITY_BITRATE = 128000;
+    private static final String MASTER_PLAYLIST = "master.m3u8";
+    private static final String VARIANT_PLAYLIST = "index.m3u8";
 
     @Value("${minio.bucket-name}")
     private String bucketName;
 
     /**
      * Selects the HLS manifest path for a song based on the requested quality and returns it as a streaming response.
+     * Only variants recorded for the song are used: HIGH and NORMAL pick the best variant at or below 256 and 128 kbps.
      *
      * @param songId      the UUID of the song whose manifest is requested
      * @param userQuality desired quality label; accepted values are "LOSSLESS", "HIGH", or "NORMAL" (defaults to "NORMAL" when null)
@@ -32,23 +52,52 @@ public class StreamServiceImpl implements StreamService {
      */
     @Override
     public StreamResponse getSongManifest(UUID songId, String userQuality) {
-        String path;
         if (userQuality == null) userQuality = "NORMAL";
+        Optional<Song> song = songRepository.findById(songId);
+        List<String> variants = song.map(Song::getQualityLevels).orElse(List.of());
 
+        log.info("Streaming song {} for quality {}", songId, userQuality);
         switch (userQuality.toUpperCase()) {
             case "LOSSLESS":
-                path = "hls/" + songId + "/master.m3u8";
-                break;
+                return streamFileFromMinio(renditionPrefix(songId, song) + MASTER_PLAYLIST);
             case "HIGH":
-                path = "hls/" + songId + "/256kbps/index.m3u8";
-                break;
+                return streamVariantFile(songId, song, selectVariant(variants, HIGH_QUALITY_BITRATE, "256kbps"),
+                        VARIANT_PLAYLIST, null);
             default:
-                path = "hls/" + songId + "/128kbps/index.m3u8";
-                break;
+                return streamVariantFile(songId, song, selectVariant(variants, NORMAL_QUALITY_BITRATE, "128kbps"),
+                        VARIANT_PLAYLIST, null);
         }
+    }
 
-        log.info("Streaming song {} for quality {}", songId, userQuality);
-        return streamFileFromMinio(path);
+    /**
+     * Picks the highest variant produced for the song at or below the target bitrate, or the lowest one when all are above it.
+     *
+     * @param variants      the variants recorded for the song
+     * @param targetBitrate the highest bitrate wanted, in bits per second
+     * @param legacyVariant the variant to use for songs without recorded variants (transcoded with the fixed ladder)
+     * @return              the variant directory name, e.g. "128kbps"
+     */
+    private String selectVariant(List<String> variants, int targetBitrate, String legacyVariant) {
+        if (variants.isEmpty()) {
+            return legacyVariant;
+        }
+
+        Comparator<String> byBitrate = Comparator.comparingInt(StreamServiceImpl::variantBitrate);
+        return variants.stream()
+                .filter(variant -> variantBitrate(variant) <= targetBitrate)
+                .max(byBitrate)
+                .orElseGet(() -> variants.stream().min(byBitrate).orElse(legacyVariant));
+    }
+
+    /**
+     * Bitrate of a variant named like "128kbps", in bits per second.
+     */
+    private static int variantBitrate(String variant) {
+        try {
+            return Integer.parseInt(variant.replaceAll("\\D", "")) * 1000;
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
     }
 
     /**
@@ -61,8 +110,172 @@ public class StreamServiceImpl implements StreamService {
      */
     @Override
     public StreamResponse getSongSegment(UUID songId, String quality, String fileName) {
-        String path = "hls/" + songId + "/" + quality + "/" + fileName;
-        return streamFileFromMinio(path);
+        return streamVariantFile(songId, songRepository.findById(songId), quality, fileName, null);
+    }
+
+    /**
+     * Fetches a byte range of an HLS media file, so single-file fMP4 variants are served with one ranged GET per segment.
+     *
+     * @param songId   the UUID of the song
+     * @param quality  the quality directory for the file
+     * @param fileName the media file name
+     * @param range    the HTTP Range header value; when null or containing several ranges, the whole file is returned
+     * @return         a StreamResponse with the ranged object stream and a Content-Range value, or the whole file
+     * @throws RangeNotSatisfiableException if the range is malformed or starts past the end of the file
+     */
+    @Override
+    public StreamResponse getSongSegment(UUID songId, String quality, String fileName, String range) {
+        return streamVariantFile(songId, songRepository.findById(songId), quality, fileName, range);
+    }
+
+    /**
+     * Streams a file of a variant. A variant of the song's ladder missing from storage is a cold variant of a tiered
+     * rendition, not rendered yet or evicted since: it is rendered from the mezzanine and the file read again.
+     *
+     * @param songId   the UUID of the song
+     * @param song     the song, if found
+     * @param quality  the variant directory
+     * @param fileName the playlist or media file name
+     * @param range    the HTTP Range header value, or null for the whole file
+     * @return         a StreamResponse for the file; contentRange is set when a range was requested
+     * @throws RuntimeException if the file cannot be retrieved from MinIO
+     */
+    private StreamResponse streamVariantFile(UUID songId, Optional<Song> song, String quality, String fileName,
+                                             String range) {
+        String prefix = renditionPrefix(songId, song);
+        String path = prefix + quality + "/" + fileName;
+        try {
+            StreamResponse response;
+            try {
+                response = fetchObject(path, range);
+            } catch (ErrorResponseException e) {
+                boolean inLadder = song.map(Song::getQualityLevels).orElse(List.of()).contains(quality);
+                if (!"NoSuchKey".equals(e.errorResponse().code()) || !inLadder
+                        || !jitVariantService.renderVariant(songId, prefix, quality)) {
+                    throw e;
+                }
+                response = fetchObject(path, range);
+            }
+            if (VARIANT_PLAYLIST.equals(fileName)) {
+                jitVariantService.recordAccess(prefix, quality);
+            }
+            return response;
+        } catch (RangeNotSatisfiableException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Lỗi lấy file MinIO: {} (range: {})", path, range, e);
+            throw new RuntimeException("Không tìm thấy file nhạc");
+        }
+    }
+
+    /**
+     * Reads a whole object, or the single byte range of a Range header. A header with several ranges is answered
+     * with the whole object.
+     *
+     * @throws RangeNotSatisfiableException if the header is malformed or the range starts past the end of the object
+     */
+    private StreamResponse fetchObject(String path, String rangeHeader) throws Exception {
+        List<HttpRange> ranges;
+        try {
+            ranges = rangeHeader == null || rangeHeader.isBlank() ? List.of() : HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            ranges = null;
+        }
+        if (ranges != null && ranges.size() != 1) {
+            InputStream stream = minioClient.getObject(
+                    GetObjectArgs.builder()
+                            .bucket(bucketName)
+                            .object(path)
+                            .build()
+            );
+            return new StreamResponse(new InputStreamResource(stream), determineContentType(path));
+        }
+
+        long size = minioClient.statObject(
+                StatObjectArgs.builder()
+                        .bucket(bucketName)
+                        .object(path)
+                        .build()
+        ).size();
+        if (ranges == null || ranges.get(0).getRangeStart(size) >= size) {
+            throw new RangeNotSatisfiableException(size);
+        }
+        long start = ranges.get(0).getRangeStart(size);
+        long end = ranges.get(0).getRangeEnd(size);
+
+        InputStream stream = minioClient.getObject(
+                GetObjectArgs.builder()
+                        .bucket(bucketName)
+                        .object(path)
+                        .offset(start)
+                        .length(end - start + 1)
+                        .build()
+        );
+        return new StreamResponse(new InputStreamResource(stream), determineContentType(path),
+                "bytes " + start + "-" + end + "/" + size);
+    }
+
+    /**
+     * Reads the ETag of the waveform stored next to the song's master playlist.
+     *
+     * @param songId the UUID of the song
+     * @return       the waveform's ETag
+     * @throws AppException with WAVEFORM_NOT_FOUND if the song has no waveform (transcoded before waveforms existed)
+     */
+    @Override
+    public String getSongWaveformETag(UUID songId) {
+        String path = waveformPath(songId);
+        try {
+            return minioClient.statObject(
+                    StatObjectArgs.builder()
+                            .bucket(bucketName)
+                            .object(path)
+                            .build()
+            ).etag();
+        } catch (ErrorResponseException e) {
+            if ("NoSuchKey".equals(e.errorResponse().code())) {
+                throw new AppException(ErrorCode.WAVEFORM_NOT_FOUND);
+            }
+            log.error("Lỗi lấy file MinIO: {}", path, e);
+            throw new RuntimeException("Không tìm thấy waveform");
+        } catch (Exception e) {
+            log.error("Lỗi lấy file MinIO: {}", path, e);
+            throw new RuntimeException("Không tìm thấy waveform");
+        }
+    }
+
+    /**
+     * Fetches the waveform peaks of a song as a streaming response.
+     *
+     * @param songId the UUID of the song
+     * @return       a StreamResponse containing the waveform stream, typed `application/octet-stream`
+     */
+    @Override
+    public StreamResponse getSongWaveform(UUID songId) {
+        return streamFileFromMinio(waveformPath(songId));
+    }
+
+    private String waveformPath(UUID songId) {
+        return renditionPrefix(songId) + "waveform.dat";
+    }
+
+    private String renditionPrefix(UUID songId) {
+        return renditionPrefix(songId, songRepository.findById(songId));
+    }
+
+    /**
+     * The directory of the rendition the song is served from: the one of its master playlist, which a catalog
+     * re-transcode moves to {@code hls/{songId}/{revision}/}.
+     *
+     * @param songId the UUID of the song
+     * @param song   the song, if found
+     * @return       the rendition prefix, ending with a slash
+     */
+    private static String renditionPrefix(UUID songId, Optional<Song> song) {
+        return song.map(Song::getStreamUrl)
+                .filter(streamUrl -> streamUrl.endsWith(MASTER_PLAYLIST))
+                .map(streamUrl -> streamUrl.substring(0, streamUrl.length() - MASTER_PLAYLIST.length()))
+                .orElse("hls/" + songId + "/");
     }
 
     /**
@@ -92,11 +305,13 @@ public class StreamServiceImpl implements StreamService {
      * Resolve HTTP media type from a file name or path based on its extension.
      *
      * @param fileName the file name or path used to determine the media type
-     * @return `application/vnd.apple.mpegurl` for `.m3u8`, `video/MP2T` for `.ts`, or `application/octet-stream` otherwise
+     * @return `application/vnd.apple.mpegurl` for `.m3u8`, `video/MP2T` for `.ts`, `audio/mp4` for fMP4 `.m4s` and `.mp4`,
+     *         or `application/octet-stream` otherwise
      */
     private MediaType determineContentType(String fileName) {
         if (fileName.endsWith(".m3u8")) return MediaType.parseMediaType("application/vnd.apple.mpegurl");
         if (fileName.endsWith(".ts")) return MediaType.parseMediaType("video/MP2T");
+        if (fileName.endsWith(".m4s") || fileName.endsWith(".mp4")) return MediaType.parseMediaType("audio/mp4");
         return MediaType.APPLICATION_OCTET_STREAM;
     }
 }
\ No newline at end of file
@@ -0,0 +1,320 @@
+package iuh.fit.se.servicemusic.util;
+
+import io.minio.ListObjectsArgs;
+import io.minio.MinioClient;
+import io.minio.RemoveObjectsArgs;
+import io.minio.Result;
+import io.minio.messages.DeleteError;
+import io.minio.messages.DeleteObject;
+import io.minio.messages.Item;
+import iuh.fit.se.servicemusic.config.RabbitMQConfig;
+import iuh.fit.se.servicemusic.dto.event.TranscodeRequestEvent;
+import iuh.fit.se.servicemusic.dto.event.TranscodeResultEvent;
+import iuh.fit.se.servicemusic.entity.CatalogReprocessItem;
+import iuh.fit.se.servicemusic.entity.CatalogReprocessRun;
+import iuh.fit.se.servicemusic.entity.Song;
+import iuh.fit.se.servicemusic.entity.enums.ReprocessStatus;
+import iuh.fit.se.servicemusic.entity.enums.Status;
+import iuh.fit.se.servicemusic.repository.CatalogReprocessItemRepository;
+import iuh.fit.se.servicemusic.repository.CatalogReprocessRunRepository;
+import iuh.fit.se.servicemusic.repository.SongRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Re-transcodes the whole catalog after an encoding change.
+ *
+ * Walks ACTIVE songs in id order and enqueues them on the standard lane under {@code catalog-reprocess.revision},
+ * at most {@code rate-per-minute} songs a minute and {@code max-in-flight} at once, pausing while the transcode
+ * lanes hold more than {@code max-queue-depth} messages. The worker writes each rendition to
+ * {@code hls/{songId}/{revision}/} and the song is only switched to it on SUCCESS; the replaced rendition is
+ * deleted after {@code old-rendition-retention-minutes} so players holding the old playlist can finish.
+ * Progress is kept in the database, so a restart resumes after the last enqueued song.
+ *
+ * USAGE: set catalog-reprocess.enabled=true and a new catalog-reprocess.revision, e.g. "v2".
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class CatalogReprocessRunner {
+
+    private static final String MASTER_PLAYLIST = "master.m3u8";
+    private static final UUID FIRST_SONG_ID = new UUID(0L, 0L);
+
+    private final SongRepository songRepository;
+    private final CatalogReprocessRunRepository runRepository;
+    private final CatalogReprocessItemRepository itemRepository;
+    private final RabbitTemplate rabbitTemplate;
+    private final AmqpAdmin amqpAdmin;
+    private final MinioClient minioClient;
+
+    @Value("${minio.bucket-name}")
+    private String bucketName;
+
+    @Value("${catalog-reprocess.enabled:false}")
+    private boolean enabled;
+
+    @Value("${catalog-reprocess.revision:}")
+    private String revision;
+
+    @Value("${catalog-reprocess.rate-per-minute:60}")
+    private int ratePerMinute;
+
+    @Value("${catalog-reprocess.max-in-flight:20}")
+    private int maxInFlight;
+
+    @Value("${catalog-reprocess.max-queue-depth:10}")
+    private int maxQueueDepth;
+
+    @Value("${catalog-reprocess.page-size:100}")
+    private int pageSize;
+
+    @Value("${catalog-reprocess.job-timeout-minutes:120}")
+    private long jobTimeoutMinutes;
+
+    @Value("${catalog-reprocess.old-rendition-retention-minutes:1440}")
+    private long oldRenditionRetentionMinutes;
+
+    /**
+     * Songs that may still be enqueued; refilled at rate-per-minute and capped at one minute's worth so a pause
+     * does not turn into a burst.
+     */
+    private double credit;
+    private long lastTickNanos;
+
+    @Scheduled(fixedDelayString = "${catalog-reprocess.poll-interval-ms:10000}")
+    public void tick() {
+        try {
+            removeObsoleteRenditions();
+            if (!enabled || revision.isBlank()) {
+                return;
+            }
+            CatalogReprocessRun run = runRepository.findById(revision).orElseGet(() -> {
+                log.info("Bắt đầu transcode lại catalog với revision: {}", revision);
+                return runRepository.save(CatalogReprocessRun.builder()
+                        .revision(revision)
+                        .startedAt(LocalDateTime.now())
+                        .build());
+            });
+            if (run.getFinishedAt() != null) {
+                return;
+            }
+            expireStaleItems();
+            refillCredit();
+            enqueue(run);
+        } catch (Exception e) {
+            log.error("Catalog reprocess tick failed", e);
+        }
+    }
+
+    private void refillCredit() {
+        long now = System.nanoTime();
+        if (lastTickNanos != 0) {
+            credit += ratePerMinute * (now - lastTickNanos) / 60_000_000_000.0;
+        }
+        credit = Math.min(credit, ratePerMinute);
+        lastTickNanos = now;
+    }
+
+    private void enqueue(CatalogReprocessRun run) {
+        long inFlight = itemRepository.countByRevisionAndStatus(revision, ReprocessStatus.QUEUED);
+        int budget = (int) Math.min(Math.floor(credit), maxInFlight - inFlight);
+        if (budget <= 0) {
+            return;
+        }
+        // Live uploads go first: only top up while both lanes are nearly drained
+        long queueDepth = queueDepth(RabbitMQConfig.TRANSCODE_EXPRESS_QUEUE) + queueDepth(RabbitMQConfig.TRANSCODE_STANDARD_QUEUE);
+        if (queueDepth > maxQueueDepth) {
+            log.debug("Catalog reprocess paused, {} transcode requests queued", queueDepth);
+            return;
+        }
+
+        UUID cursor = run.getLastSongId() != null ? run.getLastSongId() : FIRST_SONG_ID;
+        List<Song> songs = songRepository.findByStatusAndIdGreaterThanOrderByIdAsc(
+                Status.ACTIVE, cursor, PageRequest.of(0, Math.min(budget, pageSize)));
+        if (songs.isEmpty()) {
+            if (inFlight == 0) {
+                run.setFinishedAt(LocalDateTime.now());
+                runRepository.save(run);
+                log.info("Hoàn tất transcode lại catalog revision: {} - thành công: {}, thất bại: {}", revision,
+                        itemRepository.countByRevisionAndStatus(revision, ReprocessStatus.SUCCEEDED),
+                        itemRepository.countByRevisionAndStatus(revision, ReprocessStatus.FAILED));
+            }
+            return;
+        }
+
+        for (Song song : songs) {
+            if (song.getRawUrl() != null && itemRepository.findByRevisionAndSongId(revision, song.getId()).isEmpty()) {
+                itemRepository.save(CatalogReprocessItem.builder()
+                        .revision(revision)
+                        .songId(song.getId())
+                        .status(ReprocessStatus.QUEUED)
+                        .requestedAt(LocalDateTime.now())
+                        .build());
+                TranscodeRequestEvent event = TranscodeRequestEvent.builder()
+                        .songId(song.getId())
+                        .rawObjectKey(song.getRawUrl())
+                        .revision(revision)
+                        .build();
+                rabbitTemplate.convertAndSend(RabbitMQConfig.EXCHANGE, RabbitMQConfig.TRANSCODE_STANDARD_ROUTING_KEY,
+                        event,
+                        message -> {
+                            message.getMessageProperties().setPriority(0);
+                            return message;
+                        });
+                credit--;
+            }
+            run.setLastSongId(song.getId());
+            runRepository.save(run);
+        }
+        log.info("Catalog reprocess {}: enqueued up to song {}", revision, run.getLastSongId());
+    }
+
+    private long queueDepth(String queueName) {
+        QueueInformation info = amqpAdmin.getQueueInfo(queueName);
+        return info != null ? info.getMessageCount() : 0;
+    }
+
+    /**
+     * Requests lost on the way (expired in the queue, worker gone) would otherwise hold their in-flight slot forever.
+     */
+    private void expireStaleItems() {
+        LocalDateTime cutoff = LocalDateTime.now().minusMinutes(jobTimeoutMinutes);
+        for (CatalogReprocessItem item : itemRepository.findByRevisionAndStatusAndRequestedAtBefore(revision, ReprocessStatus.QUEUED, cutoff)) {
+            item.setStatus(ReprocessStatus.FAILED);
+            item.setMessage("No result after " + jobTimeoutMinutes + " minutes");
+            item.setCompletedAt(LocalDateTime.now());
+            itemRepository.save(item);
+            log.warn("Catalog reprocess of song {} timed out", item.getSongId());
+        }
+    }
+
+    /**
+     * Switches the song to the re-transcoded rendition in a single update, keeping it on the current one otherwise.
+     */
+    @Transactional
+    public void handleResult(TranscodeResultEvent event) {
+        if ("PARTIAL".equals(event.getStatus())) {
+            return;
+        }
+        CatalogReprocessItem item = itemRepository.findByRevisionAndSongId(event.getRevision(), event.getSongId()).orElse(null);
+        if (item == null) {
+            log.warn("No catalog reprocess of song {} for revision {}", event.getSongId(), event.getRevision());
+            return;
+        }
+        if (!"SUCCESS".equals(event.getStatus())) {
+            if (item.getStatus() == ReprocessStatus.QUEUED) {
+                complete(item, ReprocessStatus.FAILED, null, event.getMessage());
+            }
+            log.error("Transcode lại thất bại cho Song ID: {}. Lỗi: {}", event.getSongId(), event.getMessage());
+            return;
+        }
+
+        Song song = songRepository.findById(event.getSongId()).orElse(null);
+        if (item.getStatus() != ReprocessStatus.QUEUED || song == null || song.getStatus() != Status.ACTIVE) {
+            // Timed out, deleted or replaced meanwhile: the new rendition is not served
+            complete(item, ReprocessStatus.FAILED, event.getStreamUrl(), "Rendition not swapped in, song no longer eligible");
+            return;
+        }
+
+        String previousStreamUrl = song.getStreamUrl();
+        song.setStreamUrl(event.getStreamUrl());
+        song.setDuration(event.getDuration());
+        if (event.getQualityLevels() != null) {
+            song.setQualityLevels(new ArrayList<>(event.getQualityLevels()));
+        }
+        if (event.getWaveformUrl() != null) {
+            song.setWaveformUrl(event.getWaveformUrl());
+            song.setLoudness(event.getIntegratedLoudness());
+            song.setTruePeak(event.getTruePeak());
+        }
+        songRepository.save(song);
+        complete(item, ReprocessStatus.SUCCEEDED, previousStreamUrl, null);
+        log.info("Song ID: {} đã chuyển sang revision {}: {}", song.getId(), event.getRevision(), song.getStreamUrl());
+    }
+
+    /**
+     * The request was dead-lettered; the song keeps its current rendition.
+     */
+    @Transactional
+    public void handleFailure(UUID songId, String revision, String reason) {
+        itemRepository.findByRevisionAndSongId(revision, songId)
+                .filter(item -> item.getStatus() == ReprocessStatus.QUEUED)
+                .ifPresent(item -> complete(item, ReprocessStatus.FAILED, null, reason));
+    }
+
+    private void complete(CatalogReprocessItem item, ReprocessStatus status, String obsoleteStreamUrl, String message) {
+        item.setStatus(status);
+        if (obsoleteStreamUrl != null) {
+            item.setObsoleteStreamUrl(obsoleteStreamUrl);
+        }
+        item.setMessage(message);
+        item.setCompletedAt(LocalDateTime.now());
+        itemRepository.save(item);
+    }
+
+    private void removeObsoleteRenditions() throws Exception {
+        LocalDateTime cutoff = LocalDateTime.now().minusMinutes(oldRenditionRetentionMinutes);
+        for (CatalogReprocessItem item : itemRepository.findByObsoleteStreamUrlNotNullAndCompletedAtBefore(cutoff)) {
+            String obsoletePrefix = renditionPrefix(item.getObsoleteStreamUrl());
+            String currentPrefix = songRepository.findById(item.getSongId())
+                    .map(Song::getStreamUrl)
+                    .map(CatalogReprocessRunner::renditionPrefix)
+                    .orElse(null);
+            if (obsoletePrefix != null && !obsoletePrefix.equals(currentPrefix)) {
+                removeRendition(obsoletePrefix, currentPrefix);
+            }
+            item.setObsoleteStreamUrl(null);
+            itemRepository.save(item);
+        }
+    }
+
+    /**
+     * Deletes the objects under the obsolete prefix, except the current rendition when it is nested in it
+     * (songs transcoded before revisions have theirs at the root of {@code hls/{songId}/}).
+     */
+    private void removeRendition(String obsoletePrefix, String currentPrefix) throws Exception {
+        boolean currentNested = currentPrefix != null && currentPrefix.startsWith(obsoletePrefix);
+        List<DeleteObject> objects = new ArrayList<>();
+        for (Result<Item> result : minioClient.listObjects(ListObjectsArgs.builder()
+                .bucket(bucketName)
+                .prefix(obsoletePrefix)
+                .recursive(true)
+                .build())) {
+            String key = result.get().objectName();
+            if (!(currentNested && key.startsWith(currentPrefix))) {
+                objects.add(new DeleteObject(key));
+            }
+        }
+        if (objects.isEmpty()) {
+            return;
+        }
+        for (Result<DeleteError> error : minioClient.removeObjects(RemoveObjectsArgs.builder()
+                .bucket(bucketName)
+                .objects(objects)
+                .build())) {
+            DeleteError deleteError = error.get();
+            log.warn("Could not delete {}: {}", deleteError.objectName(), deleteError.message());
+        }
+        log.info("Removed {} objects of obsolete rendition {}", objects.size(), obsoletePrefix);
+    }
+
+    private static String renditionPrefix(String streamUrl) {
+        return streamUrl != null && streamUrl.endsWith(MASTER_PLAYLIST)
+                ? streamUrl.substring(0, streamUrl.length() - MASTER_PLAYLIST.length())
+                : null;
+    }
+}
@@ -0,0 +1,336 @@
+package iuh.fit.se.servicetranscode.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory stand-in for the MinIO API calls made by the transcode service, so the benchmark runs without a
+ * MinIO server. It serves path-style requests on localhost and does not check signatures: object stat, get
+ * with ranges (also through presigned URLs, as ffmpeg reads the sources), put, copy, multipart uploads,
+ * single and bulk delete and list v2.
+ */
+@Slf4j
+class LocalObjectStore implements AutoCloseable {
+
+    private static final String S3_NAMESPACE = "http://s3.amazonaws.com/doc/2006-03-01/";
+    private static final Pattern KEY_ELEMENT = Pattern.compile("<Key>(.*?)</Key>");
+    private static final Pattern PART_ELEMENT = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+
+    private final HttpServer server;
+    private final Map<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong uploadIds = new AtomicLong();
+
+    LocalObjectStore() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "local-object-store");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (exchange.getRequestMethod().equals("HEAD") || exchange.getRequestMethod().equals("DELETE")) {
+                // The JDK server breaks connections kept alive after a HEAD or a 204 response
+                exchange.getResponseHeaders().set("Connection", "close");
+            }
+            String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), StandardCharsets.UTF_8);
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String[] parts = path.substring(1).split("/", 2);
+            String bucket = parts[0];
+            String key = parts.length > 1 ? parts[1] : "";
+
+            if (key.isEmpty()) {
+                handleBucket(exchange, bucket, query);
+            } else {
+                handleObject(exchange, bucket + "/" + key, query);
+            }
+        } catch (Exception e) {
+            log.warn("Local object store failed on {} {}: {}", exchange.getRequestMethod(),
+                    exchange.getRequestURI(), e.getMessage());
+            sendXml(exchange, 500, error("InternalError", e.getMessage()));
+        }
+    }
+
+    private void handleBucket(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (method.equals("GET") && query.containsKey("location")) {
+            sendXml(exchange, 200, "<LocationConstraint xmlns=\"" + S3_NAMESPACE + "\"></LocationConstraint>");
+        } else if (method.equals("GET")) {
+            list(exchange, bucket, query);
+        } else if (method.equals("POST") && query.containsKey("delete")) {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            Matcher matcher = KEY_ELEMENT.matcher(body);
+            StringBuilder result = new StringBuilder("<DeleteResult xmlns=\"" + S3_NAMESPACE + "\">");
+            while (matcher.find()) {
+                objects.remove(bucket + "/" + matcher.group(1));
+                result.append("<Deleted><Key>").append(matcher.group(1)).append("</Key></Deleted>");
+            }
+            sendXml(exchange, 200, result.append("</DeleteResult>").toString());
+        } else {
+            // HEAD (bucket exists) and PUT (make bucket): every bucket exists
+            exchange.sendResponseHeaders(200, -1);
+        }
+    }
+
+    private void handleObject(HttpExchange exchange, String name, Map<String, String> query) throws IOException {
+        String method = exchange.getRequestMethod();
+        switch (method) {
+            case "HEAD", "GET" -> get(exchange, name, method.equals("HEAD"));
+            case "PUT" -> {
+                if (query.containsKey("uploadId")) {
+                    byte[] data = exchange.getRequestBody().readAllBytes();
+                    Map<Integer, byte[]> upload = uploads.get(query.get("uploadId"));
+                    if (upload == null) {
+                        sendXml(exchange, 404, error("NoSuchUpload", "The specified upload does not exist."));
+                        return;
+                    }
+                    upload.put(Integer.parseInt(query.get("partNumber")), data);
+                    exchange.getResponseHeaders().set("ETag", "\"" + md5(data) + "\"");
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+                if (copySource != null) {
+                    String sourceName = URLDecoder.decode(copySource, StandardCharsets.UTF_8).replaceFirst("^/", "");
+                    StoredObject source = objects.get(sourceName);
+                    if (source == null) {
+                        sendXml(exchange, 404, error("NoSuchKey", "The specified key does not exist."));
+                        return;
+                    }
+                    StoredObject copy = new StoredObject(source.data, source.contentType, source.metadata);
+                    objects.put(name, copy);
+                    sendXml(exchange, 200, "<CopyObjectResult><LastModified>" + copy.lastModifiedIso()
+                            + "</LastModified><ETag>\"" + copy.etag + "\"</ETag></CopyObjectResult>");
+                    return;
+                }
+                StoredObject object = store(exchange, name, exchange.getRequestBody().readAllBytes());
+                exchange.getResponseHeaders().set("ETag", "\"" + object.etag + "\"");
+                exchange.sendResponseHeaders(200, -1);
+            }
+            case "POST" -> {
+                if (query.containsKey("uploads")) {
+                    String uploadId = "upload-" + uploadIds.incrementAndGet();
+                    uploads.put(uploadId, new ConcurrentSkipListMap<>());
+                    // The content type and metadata are sent with the initiation; keep them on an empty object
+                    store(exchange, name + "\n" + uploadId, new byte[0]);
+                    int separator = name.indexOf('/');
+                    sendXml(exchange, 200, "<InitiateMultipartUploadResult xmlns=\"" + S3_NAMESPACE + "\"><Bucket>"
+                            + name.substring(0, separator) + "</Bucket><Key>" + name.substring(separator + 1)
+                            + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+                } else if (query.containsKey("uploadId")) {
+                    completeUpload(exchange, name, query.get("uploadId"));
+                } else {
+                    sendXml(exchange, 400, error("InvalidRequest", "Unsupported request"));
+                }
+            }
+            case "DELETE" -> {
+                if (query.containsKey("uploadId")) {
+                    uploads.remove(query.get("uploadId"));
+                    objects.remove(name + "\n" + query.get("uploadId"));
+                } else {
+                    objects.remove(name);
+                }
+                exchange.sendResponseHeaders(204, -1);
+            }
+            default -> sendXml(exchange, 405, error("MethodNotAllowed", method));
+        }
+    }
+
+    private void get(HttpExchange exchange, String name, boolean headOnly) throws IOException {
+        StoredObject object = objects.get(name);
+        if (object == null) {
+            if (headOnly) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                sendXml(exchange, 404, error("NoSuchKey", "The specified key does not exist."));
+            }
+            return;
+        }
+        var headers = exchange.getResponseHeaders();
+        headers.set("ETag", "\"" + object.etag + "\"");
+        headers.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(object.lastModified));
+        headers.set("Content-Type", object.contentType);
+        headers.set("Accept-Ranges", "bytes");
+        object.metadata.forEach(headers::set);
+
+        long start = 0;
+        long end = object.data.length - 1L;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            if (bounds[0].isEmpty()) {
+                start = Math.max(0, object.data.length - Long.parseLong(bounds[1]));
+            } else {
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+            }
+            if (start > end) {
+                headers.set("Content-Range", "bytes */" + object.data.length);
+                sendXml(exchange, 416, error("InvalidRange", "The requested range is not satisfiable"));
+                return;
+            }
+            headers.set("Content-Range", "bytes " + start + "-" + end + "/" + object.data.length);
+            status = 206;
+        }
+        long length = end - start + 1;
+        if (headOnly) {
+            headers.set("Content-Length", String.valueOf(object.data.length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(object.data, (int) start, (int) length);
+        } catch (IOException e) {
+            // ffmpeg closes the connection when it seeks
+            log.debug("Client closed the connection for: {}", name);
+        }
+    }
+
+    private void list(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+        String prefix = bucket + "/" + query.getOrDefault("prefix", "");
+        StringBuilder result = new StringBuilder("<ListBucketResult xmlns=\"" + S3_NAMESPACE + "\"><Name>")
+                .append(bucket).append("</Name><Prefix>").append(query.getOrDefault("prefix", ""))
+                .append("</Prefix><IsTruncated>false</IsTruncated>");
+        int count = 0;
+        for (Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith(prefix) || name.indexOf('\n') >= 0) {
+                continue;
+            }
+            StoredObject object = entry.getValue();
+            result.append("<Contents><Key>").append(name.substring(bucket.length() + 1))
+                    .append("</Key><LastModified>").append(object.lastModifiedIso())
+                    .append("</LastModified><ETag>\"").append(object.etag)
+                    .append("\"</ETag><Size>").append(object.data.length)
+                    .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+            count++;
+        }
+        result.append("<KeyCount>").append(count).append("</KeyCount></ListBucketResult>");
+        sendXml(exchange, 200, result.toString());
+    }
+
+    private void completeUpload(HttpExchange exchange, String name, String uploadId) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        Map<Integer, byte[]> parts = uploads.remove(uploadId);
+        StoredObject initiated = objects.remove(name + "\n" + uploadId);
+        if (parts == null || initiated == null) {
+            sendXml(exchange, 404, error("NoSuchUpload", "The specified upload does not exist."));
+            return;
+        }
+        Matcher matcher = PART_ELEMENT.matcher(body);
+        var data = new java.io.ByteArrayOutputStream();
+        while (matcher.find()) {
+            data.writeBytes(parts.get(Integer.parseInt(matcher.group(1))));
+        }
+        StoredObject object = new StoredObject(data.toByteArray(), initiated.contentType, initiated.metadata);
+        objects.put(name, object);
+        int separator = name.indexOf('/');
+        sendXml(exchange, 200, "<CompleteMultipartUploadResult xmlns=\"" + S3_NAMESPACE + "\"><Location>" + url()
+                + "/" + name + "</Location><Bucket>" + name.substring(0, separator) + "</Bucket><Key>"
+                + name.substring(separator + 1) + "</Key><ETag>\"" + object.etag
+                + "\"</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private StoredObject store(HttpExchange exchange, String name, byte[] data) {
+        Map<String, String> metadata = new TreeMap<>();
+        exchange.getRequestHeaders().forEach((header, values) -> {
+            if (header.toLowerCase(Locale.ROOT).startsWith("x-amz-meta-")) {
+                metadata.put(header.toLowerCase(Locale.ROOT), values.get(0));
+            }
+        });
+        String contentType = Optional.ofNullable(exchange.getRequestHeaders().getFirst("Content-Type"))
+                .orElse("application/octet-stream");
+        StoredObject object = new StoredObject(data, contentType, metadata);
+        objects.put(name, object);
+        return object;
+    }
+
+    private static void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static String error(String code, String message) {
+        return "<Error><Code>" + code + "</Code><Message>" + message + "</Message></Error>";
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int separator = pair.indexOf('=');
+            String name = separator < 0 ? pair : pair.substring(0, separator);
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class StoredObject {
+        private final byte[] data;
+        private final String contentType;
+        private final Map<String, String> metadata;
+        private final String etag;
+        private final ZonedDateTime lastModified = ZonedDateTime.now(ZoneOffset.UTC).withNano(0);
+
+        private StoredObject(byte[] data, String contentType, Map<String, String> metadata) {
+            this.data = data;
+            this.contentType = contentType;
+            this.metadata = metadata;
+            this.etag = md5(data);
+        }
+
+        private String lastModifiedIso() {
+            return DateTimeFormatter.ISO_INSTANT.format(lastModified);
+        }
+    }
+}
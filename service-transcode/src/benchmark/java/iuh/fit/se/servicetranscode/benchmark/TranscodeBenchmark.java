@@ -0,0 +1,347 @@
+package iuh.fit.se.servicetranscode.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.minio.*;
+import io.minio.messages.Item;
+import iuh.fit.se.servicetranscode.config.FFmpegConfig;
+import iuh.fit.se.servicetranscode.config.MinioConfig;
+import iuh.fit.se.servicetranscode.service.*;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs synthetic tracks through {@link TranscodeService} and reports throughput and latency, so pipeline
+ * changes can be compared with numbers.
+ * <p>
+ * Tracks are generated with ffmpeg's lavfi sources (a tone over pink noise) for every combination of
+ * {@code benchmark.formats} and {@code benchmark.durations}, uploaded, and transcoded
+ * {@code benchmark.iterations} times each, {@code benchmark.concurrency} jobs at a time. Objects are kept in
+ * an in-process S3 stand-in unless {@code --minio.url} (with the access key, secret key and bucket) points at
+ * a real MinIO. Only the transcode beans are started: no database, RabbitMQ or Eureka.
+ * <p>
+ * For each format and duration it prints the p50, p90 and p99 job latency and the throughput in seconds of
+ * audio per CPU second, both of the ffmpeg processes alone and of the whole process; then the stage meters
+ * ({@code transcode.*}). Every {@code transcode.*} property can be passed to compare settings, e.g.
+ * <pre>
+ * mvn -Pbenchmark spring-boot:run -Dspring-boot.run.arguments="--ffmpeg.path=/usr/bin/ffmpeg
+ *     --ffprobe.path=/usr/bin/ffprobe --benchmark.durations=60,600 --transcode.single-pass.enabled=false"
+ * </pre>
+ * Dedup and the source cache are disabled by default, so every iteration transcodes a cold upload.
+ */
+@Slf4j
+public class TranscodeBenchmark {
+
+    private static final String RAW_PREFIX = "raw/benchmark/";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Object> defaults = new HashMap<>();
+        defaults.put("spring.main.banner-mode", "off");
+        defaults.put("minio.bucket-name", "benchmark");
+        defaults.put("minio.access-key", "benchmark");
+        defaults.put("minio.secret-key", "benchmark");
+        defaults.put("ffmpeg.path", "ffmpeg");
+        defaults.put("ffprobe.path", "ffprobe");
+        defaults.put("transcode.dedup.enabled", "false");
+        defaults.put("transcode.source-cache.enabled", "false");
+        defaults.put("logging.level.root", "WARN");
+        defaults.put("logging.level.iuh.fit.se.servicetranscode.benchmark", "INFO");
+
+        LocalObjectStore localStore = null;
+        if (Arrays.stream(args).noneMatch(arg -> arg.startsWith("--minio.url="))) {
+            localStore = new LocalObjectStore();
+            defaults.put("minio.url", localStore.url());
+        }
+
+        // The service's application.properties needs the database, RabbitMQ and MinIO of a deployment
+        System.setProperty("spring.config.name", "transcode-benchmark");
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(BenchmarkConfig.class)
+                .web(WebApplicationType.NONE)
+                .properties(defaults)
+                .run(args);
+        int exitCode = 0;
+        try {
+            new TranscodeBenchmark(context).run();
+        } catch (Exception e) {
+            log.error("Benchmark failed", e);
+            exitCode = 1;
+        } finally {
+            context.close();
+            if (localStore != null) {
+                localStore.close();
+            }
+        }
+        System.exit(exitCode);
+    }
+
+    private final TranscodeService transcodeService;
+    private final MinioClient minioClient;
+    private final MeterRegistry meterRegistry;
+    private final String bucketName;
+    private final String ffmpegPath;
+    private final List<String> formats;
+    private final List<Integer> durations;
+    private final int iterations;
+    private final int concurrency;
+    private final Path workDir;
+
+    TranscodeBenchmark(ConfigurableApplicationContext context) throws IOException {
+        Environment env = context.getEnvironment();
+        transcodeService = context.getBean(TranscodeService.class);
+        minioClient = context.getBean(MinioClient.class);
+        meterRegistry = context.getBean(MeterRegistry.class);
+        bucketName = env.getRequiredProperty("minio.bucket-name");
+        ffmpegPath = env.getRequiredProperty("ffmpeg.path");
+        formats = List.of(env.getProperty("benchmark.formats", "mp3,flac,wav,m4a,ogg").split(","));
+        durations = Arrays.stream(env.getProperty("benchmark.durations", "30,180").split(","))
+                .map(String::trim)
+                .map(Integer::valueOf)
+                .toList();
+        iterations = env.getProperty("benchmark.iterations", Integer.class, 3);
+        concurrency = env.getProperty("benchmark.concurrency", Integer.class, 1);
+        String dir = env.getProperty("benchmark.work-dir", "");
+        workDir = dir.isBlank() ? Files.createTempDirectory("transcode-benchmark") : Path.of(dir);
+    }
+
+    void run() throws Exception {
+        if (!minioClient.bucketExists(BucketExistsArgs.builder().bucket(bucketName).build())) {
+            minioClient.makeBucket(MakeBucketArgs.builder().bucket(bucketName).build());
+        }
+        Files.createDirectories(workDir);
+
+        List<JobGroup> results = new ArrayList<>();
+        for (String format : formats) {
+            for (int duration : durations) {
+                String objectKey = uploadTrack(generateTrack(format.trim(), duration));
+                results.add(runJobs(format.trim(), duration, objectKey));
+                minioClient.removeObject(RemoveObjectArgs.builder().bucket(bucketName).object(objectKey).build());
+            }
+        }
+        report(results);
+    }
+
+    private Path generateTrack(String format, int duration) throws Exception {
+        Path track = workDir.resolve("track_" + duration + "s." + format);
+        if (Files.exists(track)) {
+            return track;
+        }
+        List<String> command = new ArrayList<>(List.of(ffmpegPath, "-y", "-hide_banner", "-loglevel", "error",
+                "-f", "lavfi", "-i", "sine=frequency=220:sample_rate=44100:duration=" + duration,
+                "-f", "lavfi", "-i", "anoisesrc=color=pink:amplitude=0.2:sample_rate=44100:duration=" + duration,
+                "-filter_complex", "[0:a][1:a]amix=inputs=2,aformat=channel_layouts=stereo"));
+        command.addAll(switch (format) {
+            case "mp3" -> List.of("-c:a", "libmp3lame", "-b:a", "320k");
+            case "flac" -> List.of("-c:a", "flac");
+            case "wav" -> List.of("-c:a", "pcm_s16le");
+            case "m4a" -> List.of("-c:a", "aac", "-b:a", "256k");
+            case "ogg" -> List.of("-c:a", "libvorbis", "-q:a", "6");
+            default -> throw new IllegalArgumentException("Unsupported benchmark format: " + format);
+        });
+        command.add(track.toString());
+
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IOException("Cannot generate " + track + ", ffmpeg exited with " + process.exitValue());
+        }
+        return track;
+    }
+
+    private String uploadTrack(Path track) throws Exception {
+        String objectKey = RAW_PREFIX + UUID.randomUUID() + "_" + track.getFileName();
+        minioClient.uploadObject(UploadObjectArgs.builder()
+                .bucket(bucketName)
+                .object(objectKey)
+                .filename(track.toString())
+                .build());
+        return objectKey;
+    }
+
+    private JobGroup runJobs(String format, int duration, String objectKey) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        CpuTimes before = CpuTimes.now();
+        long start = System.nanoTime();
+        try {
+            List<Future<Double>> jobs = new ArrayList<>();
+            for (int i = 0; i < iterations; i++) {
+                jobs.add(executor.submit(() -> runJob(objectKey)));
+            }
+            List<Double> latencies = new ArrayList<>();
+            for (Future<Double> job : jobs) {
+                latencies.add(job.get());
+            }
+            double wallSeconds = (System.nanoTime() - start) / 1e9;
+            CpuTimes used = CpuTimes.now().minus(before);
+            JobGroup result = new JobGroup(format, duration, latencies, wallSeconds, used);
+            log.info("{} {}s: {} jobs, p50 {}s, {} audio-s per ffmpeg CPU-s", format, duration, iterations,
+                    String.format(Locale.ROOT, "%.2f", result.percentile(50)),
+                    String.format(Locale.ROOT, "%.1f", result.audioSeconds() / used.children()));
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private double runJob(String objectKey) throws Exception {
+        UUID songId = UUID.randomUUID();
+        long start = System.nanoTime();
+        transcodeService.processAudio(songId, objectKey, null, TranscodeScheduler.Lane.STANDARD, result -> { });
+        double latency = (System.nanoTime() - start) / 1e9;
+
+        for (Result<Item> item : minioClient.listObjects(ListObjectsArgs.builder()
+                .bucket(bucketName)
+                .prefix("hls/" + songId + "/")
+                .recursive(true)
+                .build())) {
+            minioClient.removeObject(RemoveObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(item.get().objectName())
+                    .build());
+        }
+        return latency;
+    }
+
+    private void report(List<JobGroup> results) {
+        StringBuilder report = new StringBuilder("\n");
+        report.append(String.format(Locale.ROOT, "%-6s %8s %5s %8s %8s %8s %8s %14s %14s%n", "format",
+                "duration", "jobs", "p50 s", "p90 s", "p99 s", "max s", "audio/ffmpeg s", "audio/cpu s"));
+        List<Double> allLatencies = new ArrayList<>();
+        double audioSeconds = 0;
+        double wallSeconds = 0;
+        CpuTimes cpu = new CpuTimes(0, 0);
+        for (JobGroup result : results) {
+            report.append(String.format(Locale.ROOT, "%-6s %7ds %5d %8.2f %8.2f %8.2f %8.2f %14.1f %14.1f%n",
+                    result.format(), result.duration(), result.latencies().size(), result.percentile(50),
+                    result.percentile(90), result.percentile(99), result.percentile(100),
+                    result.audioSeconds() / result.cpu().children(), result.audioSeconds() / result.cpu().total()));
+            allLatencies.addAll(result.latencies());
+            audioSeconds += result.audioSeconds();
+            wallSeconds += result.wallSeconds();
+            cpu = cpu.plus(result.cpu());
+        }
+        JobGroup total = new JobGroup("all", 0, allLatencies, wallSeconds, cpu);
+        report.append(String.format(Locale.ROOT, "%-6s %8s %5d %8.2f %8.2f %8.2f %8.2f %14.1f %14.1f%n",
+                "all", "", allLatencies.size(), total.percentile(50), total.percentile(90), total.percentile(99),
+                total.percentile(100), audioSeconds / cpu.children(), audioSeconds / cpu.total()));
+        report.append(String.format(Locale.ROOT, "%.0f s of audio in %.1f s, %.1f CPU-s in ffmpeg, %.1f in the JVM%n%n",
+                audioSeconds, wallSeconds, cpu.children(), cpu.total() - cpu.children()));
+
+        meterRegistry.getMeters().stream()
+                .filter(meter -> meter.getId().getName().startsWith("transcode."))
+                .sorted(Comparator.comparing((Meter meter) -> meter.getId().getName())
+                        .thenComparing(meter -> meter.getId().getTags().toString()))
+                .forEach(meter -> report.append(describe(meter)).append('\n'));
+        log.info("Benchmark results:{}", report);
+    }
+
+    private static String describe(Meter meter) {
+        String name = meter.getId().getName() + meter.getId().getTags().stream()
+                .map(tag -> tag.getKey() + "=" + tag.getValue())
+                .reduce((a, b) -> a + "," + b)
+                .map(tags -> "{" + tags + "}")
+                .orElse("");
+        if (meter instanceof Timer timer) {
+            return String.format(Locale.ROOT, "%-70s count %5d  mean %9.1f ms  max %9.1f ms", name, timer.count(),
+                    timer.mean(TimeUnit.MILLISECONDS), timer.max(TimeUnit.MILLISECONDS));
+        }
+        if (meter instanceof DistributionSummary summary) {
+            return String.format(Locale.ROOT, "%-70s count %5d  mean %12.1f  max %12.1f", name, summary.count(),
+                    summary.mean(), summary.max());
+        }
+        if (meter instanceof Counter counter) {
+            return String.format(Locale.ROOT, "%-70s %.1f", name, counter.count());
+        }
+        if (meter instanceof Gauge gauge) {
+            return String.format(Locale.ROOT, "%-70s %.1f", name, gauge.value());
+        }
+        return name;
+    }
+
+    private record JobGroup(String format, int duration, List<Double> latencies, double wallSeconds, CpuTimes cpu) {
+
+        double audioSeconds() {
+            return (double) duration * latencies.size();
+        }
+
+        /**
+         * Nearest-rank percentile of the job latencies, in seconds.
+         */
+        double percentile(double percentile) {
+            if (latencies.isEmpty()) {
+                return 0;
+            }
+            List<Double> sorted = latencies.stream().sorted().toList();
+            int rank = (int) Math.ceil(percentile / 100 * sorted.size());
+            return sorted.get(Math.max(0, rank - 1));
+        }
+    }
+
+    /**
+     * CPU seconds used by this process and by its finished child processes, the ffmpeg encodes.
+     */
+    private record CpuTimes(double total, double children) {
+        private static final double CLOCK_TICKS = 100;
+
+        static CpuTimes now() {
+            try {
+                // Fields after the command name: utime, stime, cutime and cstime are fields 14 to 17
+                String stat = Files.readString(Path.of("/proc/self/stat"));
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                double self = (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) / CLOCK_TICKS;
+                double children = (Long.parseLong(fields[13]) + Long.parseLong(fields[14])) / CLOCK_TICKS;
+                return new CpuTimes(self + children, children);
+            } catch (IOException | RuntimeException e) {
+                // No procfs: only the JVM's own CPU time is known
+                var os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+                return new CpuTimes(os.getProcessCpuTime() / 1e9, Double.NaN);
+            }
+        }
+
+        CpuTimes minus(CpuTimes other) {
+            return new CpuTimes(total - other.total, children - other.children);
+        }
+
+        CpuTimes plus(CpuTimes other) {
+            return new CpuTimes(total + other.total, children + other.children);
+        }
+    }
+
+    @Configuration
+    @Import({MinioConfig.class, FFmpegConfig.class, JobCancellation.class, HeaderProbe.class, SourceCache.class,
+            AudioAnalysis.class, MinioUploadPipeline.class, HlsSegmentUploader.class, RenditionIndex.class,
+            JobCheckpointStore.class, BitrateLadder.class, HlsSegmentation.class, ChunkedEncoder.class,
+            TranscodeScheduler.class, TranscodeService.class})
+    static class BenchmarkConfig {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+        @Bean
+        ObjectMapper objectMapper() {
+            return new ObjectMapper();
+        }
+
+        @Bean
+        RabbitListenerEndpointRegistry rabbitListenerEndpointRegistry() {
+            // No listeners: the scheduler has no consumers to pause or stop
+            return new RabbitListenerEndpointRegistry();
+        }
+    }
+}
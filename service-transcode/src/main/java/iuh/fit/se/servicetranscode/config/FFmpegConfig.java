@@ -0,0 +1,38 @@
+package iuh.fit.se.servicetranscode.config;
+
+import iuh.fit.se.servicetranscode.service.JobCancellation;
+import net.bramp.ffmpeg.FFmpeg;
+import net.bramp.ffmpeg.FFmpegExecutor;
+import net.bramp.ffmpeg.FFprobe;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+
+/**
+ * Shared ffmpeg and ffprobe wrappers: each instance forks a version check when created, so they are created
+ * once instead of per encode. Processes are started through {@link JobCancellation}, which can stop them.
+ */
+@Configuration
+public class FFmpegConfig {
+    @Value("${ffmpeg.path}")
+    private String ffmpegPath;
+    @Value("${ffprobe.path}")
+    private String ffprobePath;
+
+    @Bean
+    public FFmpeg ffmpeg(JobCancellation jobCancellation) throws IOException {
+        return new FFmpeg(ffmpegPath, jobCancellation);
+    }
+
+    @Bean
+    public FFprobe ffprobe(JobCancellation jobCancellation) throws IOException {
+        return new FFprobe(ffprobePath, jobCancellation);
+    }
+
+    @Bean
+    public FFmpegExecutor ffmpegExecutor(FFmpeg ffmpeg, FFprobe ffprobe) {
+        return new FFmpegExecutor(ffmpeg, ffprobe);
+    }
+}
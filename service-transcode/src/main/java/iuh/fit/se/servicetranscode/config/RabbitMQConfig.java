@@ -1,5 +1,6 @@
 package iuh.fit.se.servicetranscode.config;
 
+import iuh.fit.se.servicetranscode.service.TranscodeScheduler;
 import org.springframework.amqp.core.*;
 import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
@@ -16,14 +17,31 @@ public class RabbitMQConfig {
     public static final String EXCHANGE = "music_exchange";
     public static final String TRANSCODE_QUEUE = "transcode_queue";
     public static final String TRANSCODE_ROUTING_KEY = "transcode_key";
+    public static final String TRANSCODE_EXPRESS_QUEUE = "transcode_express_queue";
+    public static final String TRANSCODE_EXPRESS_ROUTING_KEY = "transcode_key.express";
+    public static final String TRANSCODE_STANDARD_QUEUE = "transcode_standard_queue";
+    public static final String TRANSCODE_STANDARD_ROUTING_KEY = "transcode_key.standard";
+    public static final int TRANSCODE_MAX_PRIORITY = 5;
+    public static final String TRANSCODE_PROBE_QUEUE = "transcode_probe_queue";
+    public static final String TRANSCODE_PROBE_ROUTING_KEY = "transcode_stage.probe";
+    public static final String TRANSCODE_ENCODE_QUEUE = "transcode_encode_queue";
+    public static final String TRANSCODE_ENCODE_ROUTING_KEY = "transcode_stage.encode";
+    public static final String TRANSCODE_PACKAGE_QUEUE = "transcode_package_queue";
+    public static final String TRANSCODE_PACKAGE_ROUTING_KEY = "transcode_stage.package";
+    public static final String TRANSCODE_RENDER_QUEUE = "transcode_render_queue";
+    public static final String TRANSCODE_RENDER_ROUTING_KEY = "transcode_render_key";
+    public static final String TRANSCODE_CANCEL_QUEUE_PREFIX = "transcode_cancel.";
+    public static final String TRANSCODE_CANCEL_ROUTING_KEY = "transcode_cancel_key";
     public static final String RESULT_QUEUE = "transcode_result_queue";
     public static final String RESULT_ROUTING_KEY = "transcode_result_key";
 
     public static final String DLX_EXCHANGE = "music_dlx_exchange";
     public static final String TRANSCODE_DLQ = "transcode_dlq";
     public static final String RESULT_DLQ = "transcode_result_dlq";
+    public static final String TRANSCODE_STAGE_DLQ = "transcode_stage_dlq";
 
     private static final int MESSAGE_TTL = 3600000;
+    private static final int RENDER_REQUEST_TTL = 30000;
 
     @Bean
     public TopicExchange exchange() {
@@ -44,6 +62,81 @@ public class RabbitMQConfig {
                 .build();
     }
 
+    /**
+     * Lane for short uploads. Both lanes are priority queues so smaller files go first within a lane.
+     */
+    @Bean
+    public Queue transcodeExpressQueue() {
+        return QueueBuilder.durable(TRANSCODE_EXPRESS_QUEUE)
+                .withArgument("x-dead-letter-exchange", DLX_EXCHANGE)
+                .withArgument("x-dead-letter-routing-key", TRANSCODE_DLQ)
+                .withArgument("x-message-ttl", MESSAGE_TTL)
+                .maxPriority(TRANSCODE_MAX_PRIORITY)
+                .build();
+    }
+
+    @Bean
+    public Queue transcodeStandardQueue() {
+        return QueueBuilder.durable(TRANSCODE_STANDARD_QUEUE)
+                .withArgument("x-dead-letter-exchange", DLX_EXCHANGE)
+                .withArgument("x-dead-letter-routing-key", TRANSCODE_DLQ)
+                .withArgument("x-message-ttl", MESSAGE_TTL)
+                .maxPriority(TRANSCODE_MAX_PRIORITY)
+                .build();
+    }
+
+    /**
+     * Stage queues of the staged pipeline carry no TTL: a task expiring would leave its job unfinished.
+     */
+    @Bean
+    public Queue transcodeProbeQueue() {
+        return stageQueue(TRANSCODE_PROBE_QUEUE);
+    }
+
+    /**
+     * Priority queue: express jobs and the variants that make a song playable are encoded first.
+     */
+    @Bean
+    public Queue transcodeEncodeQueue() {
+        return stageQueue(TRANSCODE_ENCODE_QUEUE);
+    }
+
+    @Bean
+    public Queue transcodePackageQueue() {
+        return stageQueue(TRANSCODE_PACKAGE_QUEUE);
+    }
+
+    /**
+     * Stage tasks are dead-lettered to this service's own DLQ, which fails their job.
+     */
+    private static Queue stageQueue(String name) {
+        return QueueBuilder.durable(name)
+                .withArgument("x-dead-letter-exchange", DLX_EXCHANGE)
+                .withArgument("x-dead-letter-routing-key", TRANSCODE_STAGE_DLQ)
+                .maxPriority(TRANSCODE_MAX_PRIORITY)
+                .build();
+    }
+
+    /**
+     * On-demand renders of cold variants. A player is waiting on each request, one it stopped waiting for
+     * expires instead of being rendered late.
+     */
+    @Bean
+    public Queue transcodeRenderQueue() {
+        return QueueBuilder.durable(TRANSCODE_RENDER_QUEUE)
+                .withArgument("x-message-ttl", RENDER_REQUEST_TTL)
+                .build();
+    }
+
+    /**
+     * Every worker gets its own auto-deleted cancel queue, since the job or stage tasks of a song may run on
+     * any of them.
+     */
+    @Bean
+    public Queue transcodeCancelQueue() {
+        return new AnonymousQueue(new Base64UrlNamingStrategy(TRANSCODE_CANCEL_QUEUE_PREFIX));
+    }
+
     @Bean
     public Queue resultQueue() {
         return QueueBuilder.durable(RESULT_QUEUE)
@@ -65,11 +158,52 @@ public class RabbitMQConfig {
                 .build();
     }
 
+    @Bean
+    public Queue transcodeStageDLQ() {
+        return QueueBuilder.durable(TRANSCODE_STAGE_DLQ)
+                .build();
+    }
+
     @Bean
     public Binding bindingTranscode(Queue transcodeQueue, TopicExchange exchange) {
         return BindingBuilder.bind(transcodeQueue).to(exchange).with(TRANSCODE_ROUTING_KEY);
     }
 
+    @Bean
+    public Binding bindingTranscodeExpress(Queue transcodeExpressQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(transcodeExpressQueue).to(exchange).with(TRANSCODE_EXPRESS_ROUTING_KEY);
+    }
+
+    @Bean
+    public Binding bindingTranscodeStandard(Queue transcodeStandardQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(transcodeStandardQueue).to(exchange).with(TRANSCODE_STANDARD_ROUTING_KEY);
+    }
+
+    @Bean
+    public Binding bindingTranscodeProbe(Queue transcodeProbeQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(transcodeProbeQueue).to(exchange).with(TRANSCODE_PROBE_ROUTING_KEY);
+    }
+
+    @Bean
+    public Binding bindingTranscodeEncode(Queue transcodeEncodeQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(transcodeEncodeQueue).to(exchange).with(TRANSCODE_ENCODE_ROUTING_KEY);
+    }
+
+    @Bean
+    public Binding bindingTranscodePackage(Queue transcodePackageQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(transcodePackageQueue).to(exchange).with(TRANSCODE_PACKAGE_ROUTING_KEY);
+    }
+
+    @Bean
+    public Binding bindingTranscodeRender(Queue transcodeRenderQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(transcodeRenderQueue).to(exchange).with(TRANSCODE_RENDER_ROUTING_KEY);
+    }
+
+    @Bean
+    public Binding bindingTranscodeCancel(Queue transcodeCancelQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(transcodeCancelQueue).to(exchange).with(TRANSCODE_CANCEL_ROUTING_KEY);
+    }
+
     @Bean
     public Binding bindingResult(Queue resultQueue, TopicExchange exchange) {
         return BindingBuilder.bind(resultQueue).to(exchange).with(RESULT_ROUTING_KEY);
@@ -85,6 +219,11 @@ public class RabbitMQConfig {
         return BindingBuilder.bind(resultDLQ).to(deadLetterExchange).with(RESULT_DLQ);
     }
 
+    @Bean
+    public Binding bindingTranscodeStageDLQ(Queue transcodeStageDLQ, DirectExchange deadLetterExchange) {
+        return BindingBuilder.bind(transcodeStageDLQ).to(deadLetterExchange).with(TRANSCODE_STAGE_DLQ);
+    }
+
     @Bean
     public MessageConverter converter() {
         return new Jackson2JsonMessageConverter();
@@ -107,12 +246,39 @@ public class RabbitMQConfig {
 
         factory.setMessageConverter(converter());
 
-        factory.setConcurrentConsumers(3);
-        factory.setMaxConcurrentConsumers(10);
+        // The listener only records jobs in the job table, TranscodeJobRunner claims them up to the
+        // node's job slots, so a message is acked right after it is accepted; TranscodeAutoscaler adds
+        // consumers while requests pile up in a lane
+        factory.setConcurrentConsumers(1);
+        factory.setMaxConcurrentConsumers(1);
+        factory.setPrefetchCount(10);
+        factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+        factory.setDefaultRequeueRejected(false);
+
+        return factory;
+    }
+
+    /**
+     * Containers of the pipeline stages. A stage task is acked once the stage is done, so a worker that dies
+     * mid-stage leaves it to another one; the concurrency of each stage is set on its listener. A drained
+     * task is requeued, which needs its channel to stay open while the node drains.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory stageListenerContainerFactory(
+            ConnectionFactory connectionFactory,
+            SimpleRabbitListenerContainerFactoryConfigurer configurer,
+            TranscodeScheduler transcodeScheduler) {
+
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+
+        factory.setMessageConverter(converter());
         factory.setPrefetchCount(1);
         factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
         factory.setDefaultRequeueRejected(false);
+        factory.setContainerCustomizer(container ->
+                container.setShutdownTimeout(transcodeScheduler.getContainerShutdownTimeoutMillis()));
 
         return factory;
     }
-}
\ No newline at end of file
+}
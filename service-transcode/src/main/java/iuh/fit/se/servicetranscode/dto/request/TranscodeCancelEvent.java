@@ -0,0 +1,19 @@
+package iuh.fit.se.servicetranscode.dto.request;
+
+import lombok.*;
+
+import java.util.UUID;
+
+/**
+ * Asks the transcode workers to stop the job of a song, e.g. when it was deleted, re-uploaded or failed.
+ * With a {@code rawObjectKey} only the job for that upload is cancelled.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class TranscodeCancelEvent {
+    private UUID songId;
+    private String rawObjectKey;
+    private String reason;
+}
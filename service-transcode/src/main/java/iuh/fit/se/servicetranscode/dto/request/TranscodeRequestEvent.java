@@ -11,4 +11,9 @@ import java.util.UUID;
 public class TranscodeRequestEvent {
     private UUID songId;
     private String rawObjectKey;
+    /**
+     * Set for catalog re-transcodes: the rendition is written under {@code hls/{songId}/{revision}/}, next to
+     * the one being served, and only a complete result is reported.
+     */
+    private String revision;
 }
\ No newline at end of file
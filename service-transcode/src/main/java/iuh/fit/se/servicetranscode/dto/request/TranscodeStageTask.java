@@ -0,0 +1,42 @@
+package iuh.fit.se.servicetranscode.dto.request;
+
+import iuh.fit.se.servicetranscode.service.TranscodeScheduler;
+import lombok.*;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Message passed between the stages of the staged transcode pipeline. The probe stage fills in the plan,
+ * the encode and package stages work on one {@code quality} each.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder(toBuilder = true)
+public class TranscodeStageTask {
+    private UUID songId;
+    private String rawObjectKey;
+    private TranscodeScheduler.Lane lane;
+    private String revision;
+    private String contentHash;
+    private int duration;
+    private List<String> plannedQualities;
+    private List<String> firstPassQualities;
+    /**
+     * Planned variants of a tiered rendition that are not encoded, they are rendered on demand.
+     */
+    private List<String> coldQualities;
+    private String quality;
+    private boolean streamCopy;
+    /**
+     * MinIO key of the encoded variant handed from the encode stage to the package stage.
+     */
+    private String intermediateKey;
+    private int attempt;
+    /**
+     * Claim of the job the task belongs to; tasks of an earlier claim are dropped once an expired job is
+     * claimed again.
+     */
+    private int jobAttempt;
+}
@@ -0,0 +1,26 @@
+package iuh.fit.se.servicetranscode.dto.request;
+
+import lombok.*;
+
+import java.util.UUID;
+
+/**
+ * Asks for a variant of a tiered rendition that was not stored at ingest, rendered from its mezzanine.
+ * Sent with a reply-to; the stream request that missed the variant waits for the {@code VariantRenderResult}.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class VariantRenderRequest {
+    private UUID songId;
+    /**
+     * Rendition the song is served from, e.g. {@code hls/{songId}/}.
+     */
+    private String renditionPrefix;
+    private String quality;
+    /**
+     * When the stream request stops waiting for the reply, in epoch milliseconds; 0 for no deadline.
+     */
+    private long expiresAt;
+}
@@ -2,6 +2,7 @@ package iuh.fit.se.servicetranscode.dto.response;
 
 import lombok.*;
 
+import java.util.List;
 import java.util.UUID;
 
 @Data
@@ -14,4 +15,12 @@ public class TranscodeResultEvent {
     private int duration;
     private String status;
     private String message;
+    private List<String> qualityLevels;
+    private String waveformUrl;
+    private Double integratedLoudness;
+    private Double truePeak;
+    /**
+     * Revision of a catalog re-transcode, null for uploads.
+     */
+    private String revision;
 }
\ No newline at end of file
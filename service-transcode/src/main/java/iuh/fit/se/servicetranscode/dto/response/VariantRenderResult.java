@@ -0,0 +1,16 @@
+package iuh.fit.se.servicetranscode.dto.response;
+
+import lombok.*;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class VariantRenderResult {
+    private boolean success;
+    /**
+     * Stored size of the variant, for the stream service's cache accounting.
+     */
+    private long sizeBytes;
+    private String message;
+}
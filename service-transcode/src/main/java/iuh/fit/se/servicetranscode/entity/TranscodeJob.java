@@ -0,0 +1,66 @@
+package iuh.fit.se.servicetranscode.entity;
+
+import iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus;
+import iuh.fit.se.servicetranscode.service.TranscodeScheduler;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * A transcode job accepted from the queue. There is one row per song, so a song is never encoded by two
+ * workers at once; a RUNNING job belongs to {@code leaseOwner} until {@code leaseExpiresAt}, which the
+ * owner extends with heartbeats.
+ */
+@Entity
+@Table(name = "transcode_jobs", indexes = @Index(name = "idx_transcode_jobs_status", columnList = "status"))
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class TranscodeJob {
+    @Id
+    private UUID songId;
+
+    @Column(nullable = false)
+    private String rawObjectKey;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private TranscodeScheduler.Lane lane;
+
+    private int priority;
+
+    /**
+     * Revision of a catalog re-transcode, written next to the song's current rendition; null for uploads.
+     */
+    private String revision;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private TranscodeJobStatus status;
+
+    private String leaseOwner;
+    private LocalDateTime leaseExpiresAt;
+    private LocalDateTime heartbeatAt;
+    private int attempts;
+
+    @Column(columnDefinition = "TEXT")
+    private String message;
+
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+        updatedAt = LocalDateTime.now();
+    }
+
+    @PreUpdate
+    protected void onUpdate() {
+        updatedAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,5 @@
+package iuh.fit.se.servicetranscode.entity.enums;
+
+public enum TranscodeJobStatus {
+    QUEUED, RUNNING, STAGED, SUCCEEDED, FAILED, CANCELLED
+}
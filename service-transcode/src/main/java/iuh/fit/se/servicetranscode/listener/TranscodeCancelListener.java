@@ -0,0 +1,25 @@
+package iuh.fit.se.servicetranscode.listener;
+
+import iuh.fit.se.servicetranscode.dto.request.TranscodeCancelEvent;
+import iuh.fit.se.servicetranscode.service.TranscodeJobRunner;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Receives cancels on this worker's own cancel queue, so every worker stops the runs of the song it has.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class TranscodeCancelListener {
+
+    private final TranscodeJobRunner jobRunner;
+
+    @RabbitListener(queues = "#{transcodeCancelQueue.name}")
+    public void handleCancel(TranscodeCancelEvent event) {
+        log.info("Nhận yêu cầu hủy transcode cho bài hát: {}", event.getSongId());
+        jobRunner.cancel(event.getSongId(), event.getRawObjectKey(), event.getReason());
+    }
+}
@@ -2,46 +2,75 @@ package iuh.fit.se.servicetranscode.listener;
 
 import iuh.fit.se.servicetranscode.config.RabbitMQConfig;
 import iuh.fit.se.servicetranscode.dto.request.TranscodeRequestEvent;
-import iuh.fit.se.servicetranscode.dto.response.TranscodeResultEvent;
-import iuh.fit.se.servicetranscode.service.TranscodeService;
+import iuh.fit.se.servicetranscode.service.SourcePreflight;
+import iuh.fit.se.servicetranscode.service.TranscodeJobRunner;
+import iuh.fit.se.servicetranscode.service.TranscodeScheduler;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Component;
 
+/**
+ * Accepts transcode requests into the job table; the message is acked as soon as the job is recorded and
+ * {@link TranscodeJobRunner} runs it. Uploads that fail the {@link SourcePreflight} check are rejected before
+ * they are queued.
+ */
 @Component
 @RequiredArgsConstructor
 @Slf4j
 public class TranscodeListener {
 
-    private final TranscodeService transcodeService;
-    private final RabbitTemplate rabbitTemplate;
+    public static final String EXPRESS_LISTENER_ID = "transcodeExpressListener";
+    public static final String STANDARD_LISTENER_ID = "transcodeStandardListener";
 
-    @RabbitListener(queues = RabbitMQConfig.TRANSCODE_QUEUE)
-    public void handleTranscodeRequest(TranscodeRequestEvent event) {
-        log.info("Nhận job transcode cho bài hát: {}", event.getSongId());
+    private static final String PRIORITY_HEADER = "priority";
+
+    /**
+     * Catalog re-transcodes are claimed after every upload of the standard lane, whose priorities are 0 and up.
+     */
+    private static final int REPROCESS_PRIORITY = -1;
+
+    private final TranscodeJobRunner jobRunner;
+    private final SourcePreflight sourcePreflight;
+
+    @RabbitListener(id = EXPRESS_LISTENER_ID, queues = RabbitMQConfig.TRANSCODE_EXPRESS_QUEUE)
+    public void handleExpressRequest(TranscodeRequestEvent event,
+                                     @Header(name = PRIORITY_HEADER, required = false) Integer priority) {
+        handleTranscodeRequest(event, TranscodeScheduler.Lane.EXPRESS, priority);
+    }
+
+    /**
+     * The legacy transcode_queue is drained by the standard lane.
+     */
+    @RabbitListener(id = STANDARD_LISTENER_ID,
+            queues = {RabbitMQConfig.TRANSCODE_STANDARD_QUEUE, RabbitMQConfig.TRANSCODE_QUEUE})
+    public void handleStandardRequest(TranscodeRequestEvent event,
+                                      @Header(name = PRIORITY_HEADER, required = false) Integer priority) {
+        handleTranscodeRequest(event, TranscodeScheduler.Lane.STANDARD, priority);
+    }
+
+    private void handleTranscodeRequest(TranscodeRequestEvent event, TranscodeScheduler.Lane lane, Integer priority) {
+        log.info("Nhận job transcode cho bài hát: {} (lane: {})", event.getSongId(), lane);
+        SourcePreflight.Result preflight = sourcePreflight.inspect(event.getRawObjectKey());
         try {
-            var result = transcodeService.processAudio(event.getSongId(), event.getRawObjectKey());
-
-            TranscodeResultEvent resultEvent = TranscodeResultEvent.builder()
-                    .songId(event.getSongId())
-                    .status("SUCCESS")
-                    .streamUrl(result.masterUrl())
-                    .duration(result.duration())
-                    .build();
-
-            rabbitTemplate.convertAndSend(RabbitMQConfig.EXCHANGE, RabbitMQConfig.RESULT_ROUTING_KEY, resultEvent);
-            log.info("Transcode thành công. Đã gửi kết quả.");
-
-        } catch (Exception e) {
-            log.error("Transcode thất bại: ", e);
-            TranscodeResultEvent failedEvent = TranscodeResultEvent.builder()
-                    .songId(event.getSongId())
-                    .status("FAILED")
-                    .message(e.getMessage())
-                    .build();
-            rabbitTemplate.convertAndSend(RabbitMQConfig.EXCHANGE, RabbitMQConfig.RESULT_ROUTING_KEY, failedEvent);
+            if (preflight.isRejected()) {
+                jobRunner.reject(event, lane, "Source rejected by pre-flight check: " + preflight.reason());
+                return;
+            }
+            lane = sourcePreflight.route(lane, preflight);
+            int jobPriority = priority == null ? 0 : priority;
+            if (event.getRevision() != null) {
+                lane = TranscodeScheduler.Lane.STANDARD;
+                jobPriority = REPROCESS_PRIORITY;
+            }
+            if (jobRunner.accept(event, lane, jobPriority)) {
+                jobRunner.claimJobs();
+            }
+        } catch (DataIntegrityViolationException e) {
+            // Another worker recorded the same job concurrently
+            log.info("Job transcode cho bài hát: {} đã được nhận bởi worker khác", event.getSongId());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,73 @@
+package iuh.fit.se.servicetranscode.listener;
+
+import iuh.fit.se.servicetranscode.config.RabbitMQConfig;
+import iuh.fit.se.servicetranscode.dto.request.TranscodeStageTask;
+import iuh.fit.se.servicetranscode.service.JobDrainedException;
+import iuh.fit.se.servicetranscode.service.StagedTranscodePipeline;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.ImmediateRequeueAmqpException;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Consumes the tasks of the staged pipeline. Each stage has its own concurrency and can be disabled per node
+ * with {@code transcode.stages.<stage>.enabled}. A task interrupted by a drain is requeued, a dead-lettered
+ * task fails its job.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class TranscodeStageListener {
+
+    public static final String PROBE_LISTENER_ID = "transcodeProbeListener";
+    public static final String ENCODE_LISTENER_ID = "transcodeEncodeListener";
+    public static final String PACKAGE_LISTENER_ID = "transcodePackageListener";
+
+    private final StagedTranscodePipeline pipeline;
+
+    @RabbitListener(id = PROBE_LISTENER_ID, queues = RabbitMQConfig.TRANSCODE_PROBE_QUEUE,
+            containerFactory = "stageListenerContainerFactory",
+            concurrency = "${transcode.stages.probe.concurrency:2}",
+            autoStartup = "${transcode.stages.probe.enabled:true}")
+    public void handleProbe(TranscodeStageTask task) {
+        log.info("Nhận task probe cho bài hát: {}", task.getSongId());
+        try {
+            pipeline.probe(task);
+        } catch (JobDrainedException e) {
+            throw new ImmediateRequeueAmqpException("Worker draining", e);
+        }
+    }
+
+    @RabbitListener(id = ENCODE_LISTENER_ID, queues = RabbitMQConfig.TRANSCODE_ENCODE_QUEUE,
+            containerFactory = "stageListenerContainerFactory",
+            concurrency = "${transcode.stages.encode.concurrency:2}",
+            autoStartup = "${transcode.stages.encode.enabled:true}")
+    public void handleEncode(TranscodeStageTask task) {
+        log.info("Nhận task encode {} cho bài hát: {}", task.getQuality(), task.getSongId());
+        try {
+            pipeline.encode(task);
+        } catch (JobDrainedException e) {
+            throw new ImmediateRequeueAmqpException("Worker draining", e);
+        }
+    }
+
+    @RabbitListener(id = PACKAGE_LISTENER_ID, queues = RabbitMQConfig.TRANSCODE_PACKAGE_QUEUE,
+            containerFactory = "stageListenerContainerFactory",
+            concurrency = "${transcode.stages.package.concurrency:4}",
+            autoStartup = "${transcode.stages.package.enabled:true}")
+    public void handlePackage(TranscodeStageTask task) {
+        log.info("Nhận task package {} cho bài hát: {}", task.getQuality(), task.getSongId());
+        try {
+            pipeline.packageVariant(task);
+        } catch (JobDrainedException e) {
+            throw new ImmediateRequeueAmqpException("Worker draining", e);
+        }
+    }
+
+    @RabbitListener(queues = RabbitMQConfig.TRANSCODE_STAGE_DLQ)
+    public void handleDeadLetter(TranscodeStageTask task) {
+        log.error("Task {} của bài hát: {} bị chuyển vào DLQ", task.getQuality(), task.getSongId());
+        pipeline.deadLettered(task);
+    }
+}
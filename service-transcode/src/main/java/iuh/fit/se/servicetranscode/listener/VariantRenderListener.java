@@ -0,0 +1,31 @@
+package iuh.fit.se.servicetranscode.listener;
+
+import iuh.fit.se.servicetranscode.config.RabbitMQConfig;
+import iuh.fit.se.servicetranscode.dto.request.VariantRenderRequest;
+import iuh.fit.se.servicetranscode.dto.response.VariantRenderResult;
+import iuh.fit.se.servicetranscode.service.MezzanineRenderer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Renders cold variants on request of the stream service; the result is sent back to the request's reply-to.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class VariantRenderListener {
+
+    public static final String RENDER_LISTENER_ID = "transcodeRenderListener";
+
+    private final MezzanineRenderer mezzanineRenderer;
+
+    @RabbitListener(id = RENDER_LISTENER_ID, queues = RabbitMQConfig.TRANSCODE_RENDER_QUEUE,
+            containerFactory = "stageListenerContainerFactory",
+            concurrency = "${transcode.tiered.render-concurrency:2}")
+    public VariantRenderResult handleRender(VariantRenderRequest request) {
+        log.info("Nhận yêu cầu render {} cho bài hát: {}", request.getQuality(), request.getSongId());
+        return mezzanineRenderer.render(request);
+    }
+}
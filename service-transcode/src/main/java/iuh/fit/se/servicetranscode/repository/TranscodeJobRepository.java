@@ -0,0 +1,187 @@
+package iuh.fit.se.servicetranscode.repository;
+
+import iuh.fit.se.servicetranscode.entity.TranscodeJob;
+import iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus;
+import iuh.fit.se.servicetranscode.service.TranscodeScheduler;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+public interface TranscodeJobRepository extends JpaRepository<TranscodeJob, UUID> {
+
+    /**
+     * Queued jobs of a lane and its running or staged jobs whose lease expired, higher priority first.
+     */
+    @Query("""
+            select j from TranscodeJob j
+            where j.lane = :lane
+              and (j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.QUEUED
+                   or (j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.RUNNING
+                       and j.leaseExpiresAt < :now)
+                   or (j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.STAGED
+                       and (j.leaseExpiresAt is null or j.leaseExpiresAt < :now)))
+            order by j.priority desc, j.createdAt
+            """)
+    List<TranscodeJob> findClaimable(@Param("lane") TranscodeScheduler.Lane lane, @Param("now") LocalDateTime now,
+                                     Pageable pageable);
+
+    long countByStatus(TranscodeJobStatus status);
+
+    /**
+     * When the longest-waiting queued job was queued or handed back, null if none is queued.
+     */
+    @Query("""
+            select min(j.updatedAt) from TranscodeJob j
+            where j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.QUEUED
+            """)
+    LocalDateTime findOldestQueuedAt();
+
+    /**
+     * Take the lease of a claimable job; the update only matches if no other worker claimed it first.
+     *
+     * @return 1 if the lease was taken
+     */
+    @Modifying
+    @Transactional
+    @Query("""
+            update TranscodeJob j
+            set j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.RUNNING,
+                j.leaseOwner = :owner, j.leaseExpiresAt = :leaseExpiresAt, j.heartbeatAt = :now,
+                j.attempts = j.attempts + 1, j.updatedAt = :now
+            where j.songId = :songId
+              and (j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.QUEUED
+                   or (j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.RUNNING
+                       and j.leaseExpiresAt < :now)
+                   or (j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.STAGED
+                       and (j.leaseExpiresAt is null or j.leaseExpiresAt < :now)))
+            """)
+    int claim(@Param("songId") UUID songId, @Param("owner") String owner,
+              @Param("now") LocalDateTime now, @Param("leaseExpiresAt") LocalDateTime leaseExpiresAt);
+
+    /**
+     * @return 0 if the lease was lost to another worker or the job was re-submitted
+     */
+    @Modifying
+    @Transactional
+    @Query("""
+            update TranscodeJob j
+            set j.leaseExpiresAt = :leaseExpiresAt, j.heartbeatAt = :now, j.updatedAt = :now
+            where j.songId = :songId and j.leaseOwner = :owner
+              and j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.RUNNING
+            """)
+    int heartbeat(@Param("songId") UUID songId, @Param("owner") String owner,
+                  @Param("now") LocalDateTime now, @Param("leaseExpiresAt") LocalDateTime leaseExpiresAt);
+
+    /**
+     * End a job held by the given owner: SUCCEEDED or FAILED, or QUEUED to hand it to another worker.
+     *
+     * @return 0 if the lease was lost in the meantime
+     */
+    @Modifying
+    @Transactional
+    @Query("""
+            update TranscodeJob j
+            set j.status = :status, j.message = :message, j.leaseOwner = null, j.leaseExpiresAt = null,
+                j.updatedAt = :now
+            where j.songId = :songId and j.leaseOwner = :owner
+              and j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.RUNNING
+            """)
+    int release(@Param("songId") UUID songId, @Param("owner") String owner, @Param("status") TranscodeJobStatus status,
+                @Param("message") String message, @Param("now") LocalDateTime now);
+
+    /**
+     * Queue a job held by the given owner again without counting the attempt, for a worker that drains.
+     *
+     * @return 0 if the lease was lost in the meantime
+     */
+    @Modifying
+    @Transactional
+    @Query("""
+            update TranscodeJob j
+            set j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.QUEUED,
+                j.attempts = j.attempts - 1, j.leaseOwner = null, j.leaseExpiresAt = null, j.updatedAt = :now
+            where j.songId = :songId and j.leaseOwner = :owner
+              and j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.RUNNING
+            """)
+    int handBack(@Param("songId") UUID songId, @Param("owner") String owner, @Param("now") LocalDateTime now);
+
+    /**
+     * Hand a job held by the given owner to the staged pipeline, whose stages renew the lease until the last
+     * one ends the job.
+     *
+     * @return 0 if the lease was lost in the meantime
+     */
+    @Modifying
+    @Transactional
+    @Query("""
+            update TranscodeJob j
+            set j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.STAGED,
+                j.leaseOwner = null, j.leaseExpiresAt = :leaseExpiresAt, j.updatedAt = :now
+            where j.songId = :songId and j.leaseOwner = :owner
+              and j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.RUNNING
+            """)
+    int stage(@Param("songId") UUID songId, @Param("owner") String owner,
+              @Param("now") LocalDateTime now, @Param("leaseExpiresAt") LocalDateTime leaseExpiresAt);
+
+    /**
+     * Extend the lease of a staged job, as long as it was not claimed again or re-submitted.
+     *
+     * @return 0 if the job is no longer staged under that claim
+     */
+    @Modifying
+    @Transactional
+    @Query("""
+            update TranscodeJob j
+            set j.leaseExpiresAt = :leaseExpiresAt, j.heartbeatAt = :now, j.updatedAt = :now
+            where j.songId = :songId and j.rawObjectKey = :rawObjectKey and j.attempts = :attempts
+              and j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.STAGED
+            """)
+    int renewStaged(@Param("songId") UUID songId, @Param("rawObjectKey") String rawObjectKey,
+                    @Param("attempts") int attempts, @Param("now") LocalDateTime now,
+                    @Param("leaseExpiresAt") LocalDateTime leaseExpiresAt);
+
+    /**
+     * Cancel a job that is queued, running or staged for the given raw object.
+     *
+     * @return 0 if the job already ended or was re-submitted
+     */
+    @Modifying
+    @Transactional
+    @Query("""
+            update TranscodeJob j
+            set j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.CANCELLED,
+                j.message = :message, j.leaseOwner = null, j.leaseExpiresAt = null, j.updatedAt = :now
+            where j.songId = :songId and j.rawObjectKey = :rawObjectKey
+              and j.status in (iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.QUEUED,
+                               iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.RUNNING,
+                               iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.STAGED)
+            """)
+    int cancel(@Param("songId") UUID songId, @Param("rawObjectKey") String rawObjectKey,
+               @Param("message") String message, @Param("now") LocalDateTime now);
+
+    boolean existsBySongIdAndRawObjectKeyAndStatus(UUID songId, String rawObjectKey, TranscodeJobStatus status);
+
+    /**
+     * End a job handed to the staged pipeline; only the first stage to end it wins.
+     *
+     * @return 0 if the job was already ended, claimed again or re-submitted
+     */
+    @Modifying
+    @Transactional
+    @Query("""
+            update TranscodeJob j
+            set j.status = :status, j.message = :message, j.leaseExpiresAt = null, j.updatedAt = :now
+            where j.songId = :songId and j.rawObjectKey = :rawObjectKey and j.attempts = :attempts
+              and j.status = iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus.STAGED
+            """)
+    int finishStaged(@Param("songId") UUID songId, @Param("rawObjectKey") String rawObjectKey,
+                     @Param("attempts") int attempts, @Param("status") TranscodeJobStatus status,
+                     @Param("message") String message, @Param("now") LocalDateTime now);
+}
@@ -0,0 +1,304 @@
+package iuh.fit.se.servicetranscode.service;
+
+import io.minio.MinioClient;
+import io.minio.PutObjectArgs;
+import io.minio.StatObjectArgs;
+import io.minio.StatObjectResponse;
+import io.minio.errors.ErrorResponseException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.probe.FFmpegProbeResult;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Waveform peaks and loudness of a source, measured in the ffmpeg pass that encodes it.
+ * <p>
+ * The analysis is an extra null output of the encode: it maps the same decoded audio as the HLS outputs, so
+ * the source is not decoded again. ebur128 measures the integrated loudness (LUFS) and true peak, then the
+ * audio, which ebur128 measures at 48 kHz, is cut into {@code transcode.analysis.peak-buckets} buckets whose
+ * minimum and maximum sample are measured by astats; ametadata writes both to a text file in the job's temp
+ * directory.
+ * <p>
+ * The peaks are uploaded next to the master playlist as {@code waveform.dat}, in the binary format of
+ * audiowaveform (version 1, {@code transcode.analysis.peak-bits} per value) that web players read directly.
+ * Loudness and true peak are stored as metadata of that object, so copies of the rendition and resumed jobs
+ * keep them.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class AudioAnalysis {
+
+    static final String PEAKS_NAME = "waveform.dat";
+    private static final String ANALYSIS_FILE_NAME = "analysis.txt";
+    private static final String LOUDNESS_METADATA = "integrated-loudness";
+    private static final String TRUE_PEAK_METADATA = "true-peak";
+    private static final int ANALYSIS_SAMPLE_RATE = 48000;
+
+    private final MinioClient minioClient;
+
+    @Value("${minio.bucket-name}")
+    private String bucketName;
+
+    @Value("${transcode.analysis.enabled:true}")
+    private boolean enabled;
+
+    @Value("${transcode.analysis.peak-buckets:2000}")
+    private int peakBuckets;
+
+    @Value("${transcode.analysis.peak-bits:8}")
+    private int peakBits;
+
+    /**
+     * Start the analysis of a source; it runs in the first encode the pass is attached to.
+     */
+    public Pass start(Path workDir, FFmpegProbeResult probe) {
+        double duration = probe.getFormat().duration;
+        if (!enabled || duration <= 0) {
+            return Pass.NONE;
+        }
+        int samplesPerBucket = (int) Math.max(1, Math.ceil(duration * ANALYSIS_SAMPLE_RATE / peakBuckets));
+        return new Pass(workDir.resolve(ANALYSIS_FILE_NAME), samplesPerBucket);
+    }
+
+    /**
+     * Write the peaks of a finished pass and upload them with the loudness under the rendition prefix.
+     * The analysis is not needed to play the song, so errors are logged.
+     *
+     * @return the analysis, or null when it was not run or failed
+     */
+    public Summary publish(Pass pass, String s3PathPrefix) {
+        if (!pass.isDone()) {
+            return null;
+        }
+        try {
+            Measurements measurements = read(pass.file);
+            byte[] peaks = writePeaks(measurements.peaks(), pass.samplesPerBucket);
+            Summary summary = new Summary(s3PathPrefix + PEAKS_NAME, measurements.integratedLoudness(),
+                    measurements.truePeak());
+
+            minioClient.putObject(PutObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(summary.peaksKey())
+                    .stream(new ByteArrayInputStream(peaks), peaks.length, -1)
+                    .contentType("application/octet-stream")
+                    .userMetadata(Map.of(
+                            LOUDNESS_METADATA, format(summary.integratedLoudness()),
+                            TRUE_PEAK_METADATA, format(summary.truePeak())))
+                    .build());
+            log.info("Uploaded waveform: {} ({} buckets), loudness {} LUFS, true peak {} dBTP", summary.peaksKey(),
+                    measurements.peaks().size() / 2, format(summary.integratedLoudness()), format(summary.truePeak()));
+            return summary;
+        } catch (Exception e) {
+            log.warn("Cannot publish audio analysis under: {}. Error: {}", s3PathPrefix, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The analysis already uploaded under a rendition prefix, for results built without running the pass.
+     */
+    public Summary find(String s3PathPrefix) {
+        if (!enabled) {
+            return null;
+        }
+        String peaksKey = s3PathPrefix + PEAKS_NAME;
+        try {
+            StatObjectResponse stat = minioClient.statObject(StatObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(peaksKey)
+                    .build());
+            Map<String, String> metadata = stat.userMetadata();
+            return new Summary(peaksKey, parse(metadata.get(LOUDNESS_METADATA)), parse(metadata.get(TRUE_PEAK_METADATA)));
+        } catch (ErrorResponseException e) {
+            return null;
+        } catch (Exception e) {
+            log.warn("Cannot read audio analysis: {}. Error: {}", peaksKey, e.getMessage());
+            return null;
+        }
+    }
+
+    private static Measurements read(Path file) throws IOException {
+        List<Float> peaks = new ArrayList<>();
+        Double loudness = null;
+        double truePeak = 0;
+        float min = 0;
+        float max = 0;
+        boolean bucket = false;
+
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("frame:")) {
+                    if (bucket) {
+                        peaks.add(min);
+                        peaks.add(max);
+                    }
+                    bucket = true;
+                    min = 0;
+                    max = 0;
+                    continue;
+                }
+                int separator = line.indexOf('=');
+                if (separator < 0) {
+                    continue;
+                }
+                String key = line.substring(0, separator);
+                String value = line.substring(separator + 1);
+                if (key.equals("lavfi.astats.Overall.Min_level")) {
+                    min = (float) number(value, 0);
+                } else if (key.equals("lavfi.astats.Overall.Max_level")) {
+                    max = (float) number(value, 0);
+                } else if (key.equals("lavfi.r128.I")) {
+                    loudness = number(value, -70);
+                } else if (key.startsWith("lavfi.r128.true_peaks_ch")) {
+                    truePeak = Math.max(truePeak, number(value, 0));
+                }
+            }
+        }
+        if (bucket) {
+            peaks.add(min);
+            peaks.add(max);
+        }
+        if (peaks.isEmpty() || loudness == null) {
+            throw new IOException("Incomplete analysis output: " + file);
+        }
+        // ebur128 reports true peaks as linear amplitude
+        double truePeakDb = truePeak > 0 ? 20 * Math.log10(truePeak) : Double.NEGATIVE_INFINITY;
+        return new Measurements(peaks, loudness, Math.max(truePeakDb, -99.0));
+    }
+
+    /**
+     * audiowaveform's binary format, version 1: a little-endian header (version, flags, sample rate, samples
+     * per pixel, length) followed by a minimum and a maximum per bucket.
+     */
+    private byte[] writePeaks(List<Float> peaks, int samplesPerBucket) {
+        boolean eightBit = peakBits == 8;
+        int scale = eightBit ? Byte.MAX_VALUE : Short.MAX_VALUE;
+        ByteBuffer buffer = ByteBuffer.allocate(20 + peaks.size() * (eightBit ? 1 : 2))
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(1)
+                .putInt(eightBit ? 1 : 0)
+                .putInt(ANALYSIS_SAMPLE_RATE)
+                .putInt(samplesPerBucket)
+                .putInt(peaks.size() / 2);
+        for (float peak : peaks) {
+            int value = Math.round(Math.max(-1f, Math.min(1f, peak)) * scale);
+            if (eightBit) {
+                buffer.put((byte) value);
+            } else {
+                buffer.putShort((short) value);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * ffmpeg prints silence and overflows as "-inf", "inf" or "nan".
+     */
+    private static double number(String value, double fallback) {
+        try {
+            double number = Double.parseDouble(value);
+            return Double.isFinite(number) ? number : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    private static Double parse(String value) {
+        return value == null ? null : Double.valueOf(value);
+    }
+
+    /**
+     * The analysis of one source. It is attached to one encode at a time, and run again by the next encode
+     * it is attached to if that one failed.
+     */
+    public static class Pass {
+        static final Pass NONE = new Pass(null, 0);
+
+        private final Path file;
+        private final int samplesPerBucket;
+        private boolean attached;
+        private boolean done;
+
+        private Pass(Path file, int samplesPerBucket) {
+            this.file = file;
+            this.samplesPerBucket = samplesPerBucket;
+        }
+
+        /**
+         * Add the analysis output to an encode, unless it is done or running in another encode.
+         *
+         * @return whether it was added; report the outcome with {@link #completed} or {@link #failed}
+         */
+        public synchronized boolean attachTo(FFmpegBuilder builder) {
+            if (file == null || attached || done) {
+                return false;
+            }
+            attached = true;
+            String filter = "ebur128=metadata=1:peak=true"
+                    + ",aformat=sample_fmts=flt:sample_rates=" + ANALYSIS_SAMPLE_RATE
+                    + ",asetnsamples=n=" + samplesPerBucket + ":p=0"
+                    + ",astats=metadata=1:reset=1:measure_perchannel=none:measure_overall=Min_level+Max_level"
+                    + ",ametadata=mode=print:file='" + file.toAbsolutePath() + "'";
+            builder.addOutput(file.resolveSibling("analysis.nut").toAbsolutePath().toString())
+                    .setFormat("null")
+                    .addExtraArgs("-map", "0:a:0")
+                    .addExtraArgs("-af", filter)
+                    .done();
+            return true;
+        }
+
+        public synchronized void completed(boolean attachedHere) {
+            if (attachedHere) {
+                attached = false;
+                done = true;
+            }
+        }
+
+        public synchronized void failed(boolean attachedHere) {
+            if (attachedHere) {
+                attached = false;
+            }
+        }
+
+        /**
+         * Whether the analysis still has to run, e.g. because every encode was chunked or failed.
+         */
+        public synchronized boolean isPending() {
+            return file != null && !done;
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+    }
+
+    private record Measurements(List<Float> peaks, double integratedLoudness, double truePeak) {
+    }
+
+    /**
+     * @param integratedLoudness integrated loudness in LUFS
+     * @param truePeak           true peak in dBTP
+     */
+    public record Summary(String peaksKey, Double integratedLoudness, Double truePeak) {
+    }
+}
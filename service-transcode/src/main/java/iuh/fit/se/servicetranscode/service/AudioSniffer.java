@@ -0,0 +1,709 @@
+package iuh.fit.se.servicetranscode.service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Identifies the container and codec of a source from its first and last bytes, and reads the audio stream
+ * parameters from the container headers where they are in reach: WAV chunks, FLAC STREAMINFO, MP3 frame
+ * headers with Xing/VBRI, ADTS headers, Ogg identification headers and last granule position, MP4
+ * {@code mvhd}/{@code stsd}/{@code esds} and the ASF file properties. Matroska and AVI are only identified.
+ */
+final class AudioSniffer {
+
+    private static final int[][] MP3_BITRATES = {
+            // MPEG-1 layer I, II, III
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            // MPEG-2/2.5 layer I, II and III
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+    };
+    private static final int MPEG_FRAMES_TO_MATCH = 3;
+    private static final int[] MP3_SAMPLE_RATES = {44100, 48000, 32000};
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    private static final String[] AAC_PROFILES = {
+            null, "Main", "LC", "SSR", "LTP", "HE-AAC", null, null, null, null, null, null, null, null, null, null,
+            null, null, null, null, null, null, null, null, null, null, null, null, null, "HE-AACv2"};
+
+    private static final byte[] ASF_HEADER = hex("3026B2758E66CF11A6D900AA0062CE6C");
+    private static final byte[] ASF_FILE_PROPERTIES = hex("A1DCAB8C47A9CF118EE400C00C205365");
+    private static final byte[] EBML_HEADER = hex("1A45DFA3");
+
+    private AudioSniffer() {
+    }
+
+    /**
+     * @param format     container, e.g. mp3, flac, wav, ogg, mp4, m4a, mov, webm, mkv, asf, avi, aac
+     * @param codec      audio codec in ffprobe's naming when the headers name it, otherwise null
+     * @param profile    codec profile in ffprobe's naming (AAC only), or null
+     * @param sampleRate sample rate of the audio stream, 0 when unknown
+     * @param channels   channels of the audio stream, 0 when unknown
+     * @param duration   duration in seconds, estimated for CBR MP3 and ADTS, or null
+     * @param bitrate    audio bitrate in bits per second, estimated from the size when the headers do not have
+     *                   it, 0 when it cannot be estimated, or null
+     */
+    record Sniff(String format, String codec, String profile, int sampleRate, int channels, Double duration,
+                 Integer bitrate) {
+
+        Sniff(String format, String codec, Double duration, Integer bitrate) {
+            this(format, codec, null, 0, 0, duration, bitrate);
+        }
+
+        /**
+         * Whether the headers gave everything ffprobe would report for the audio stream.
+         */
+        boolean isComplete() {
+            return codec != null && sampleRate > 0 && channels > 0 && duration != null && duration > 0
+                    && bitrate != null && bitrate > 0;
+        }
+
+        Sniff withSize(long size) {
+            if (bitrate != null || duration == null || duration <= 0) {
+                return this;
+            }
+            return new Sniff(format, codec, profile, sampleRate, channels, duration,
+                    (int) Math.min(Integer.MAX_VALUE, size * 8 / duration));
+        }
+    }
+
+    /**
+     * @param head first bytes of the object
+     * @param tail last bytes of the object, empty when the head covers the whole object
+     * @param size object size
+     * @return the sniffed container, or null when no known signature matches
+     */
+    static Sniff sniff(byte[] head, byte[] tail, long size) {
+        Sniff sniff = sniffContainer(head, tail, size);
+        return sniff == null ? null : sniff.withSize(size);
+    }
+
+    /**
+     * Positive evidence of a broken upload: a known signature whose mandatory header is malformed. Objects
+     * without a known signature are not judged, ffprobe may still read them (e.g. a QuickTime file opening
+     * with a {@code wide} or {@code mdat} box, or an MP3 with junk before its first frame).
+     *
+     * @param head first bytes of the object
+     * @return what is malformed, or null
+     */
+    static String headerError(byte[] head) {
+        if (startsWith(head, 0, "RIFF") && startsWith(head, 8, "WAVE")) {
+            return wavHeaderError(head);
+        }
+        if (startsWith(head, 0, "fLaC") && head.length >= 8) {
+            // STREAMINFO is mandatory, first and 34 bytes long
+            int blockLength = (head[5] & 0xFF) << 16 | (head[6] & 0xFF) << 8 | head[7] & 0xFF;
+            if ((head[4] & 0x7F) != 0 || blockLength != 34) {
+                return "flac streaminfo";
+            }
+            if (head.length >= 8 + 18 && sniffFlac("flac", head, 4).sampleRate() == 0) {
+                return "flac sample rate";
+            }
+            return null;
+        }
+        if (startsWith(head, 0, "OggS") && head.length >= 5 && head[4] != 0) {
+            return "ogg page version";
+        }
+        if (startsWith(head, 4, "ftyp")) {
+            long boxSize = be32(head, 0);
+            return boxSize != 1 && boxSize < 16 ? "mp4 ftyp box" : null;
+        }
+        if (startsWith(head, 0, "ID3") && head.length >= 10) {
+            // The tag size is a synchsafe integer
+            boolean synchsafe = ((head[6] | head[7] | head[8] | head[9]) & 0x80) == 0;
+            return head[3] == (byte) 0xFF || head[4] == (byte) 0xFF || !synchsafe ? "id3 header" : null;
+        }
+        return null;
+    }
+
+    private static String wavHeaderError(byte[] head) {
+        int offset = 12;
+        while (offset + 8 <= head.length) {
+            String id = new String(head, offset, 4, StandardCharsets.US_ASCII);
+            long chunkSize = le32(head, offset + 4);
+            if ("fmt ".equals(id)) {
+                if (chunkSize < 16) {
+                    return "wav fmt chunk";
+                }
+                if (offset + 24 <= head.length
+                        && (le16(head, offset + 10) == 0 || le32(head, offset + 12) == 0 || le16(head, offset + 20) == 0)) {
+                    return "wav fmt chunk";
+                }
+                return null;
+            }
+            if ("data".equals(id)) {
+                return "wav without fmt chunk";
+            }
+            long next = offset + 8 + chunkSize + (chunkSize & 1);
+            if (next > head.length) {
+                break;
+            }
+            offset = (int) next;
+        }
+        return null;
+    }
+
+    private static Sniff sniffContainer(byte[] head, byte[] tail, long size) {
+        if (startsWith(head, 0, "RIFF") && startsWith(head, 8, "WAVE")) {
+            return sniffWav(head);
+        }
+        if (startsWith(head, 0, "RIFF") && startsWith(head, 8, "AVI ")) {
+            return new Sniff("avi", null, null, null);
+        }
+        if (startsWith(head, 0, "fLaC")) {
+            return sniffFlac("flac", head, 4);
+        }
+        if (startsWith(head, 0, "OggS")) {
+            return sniffOgg(head, tail);
+        }
+        if (startsWith(head, 4, "ftyp")) {
+            return sniffMp4(head, tail);
+        }
+        if (startsWith(head, 0, EBML_HEADER)) {
+            String codec = indexOf(head, "A_AAC") >= 0 ? "aac"
+                    : indexOf(head, "A_OPUS") >= 0 ? "opus"
+                    : indexOf(head, "A_VORBIS") >= 0 ? "vorbis"
+                    : indexOf(head, "A_FLAC") >= 0 ? "flac"
+                    : indexOf(head, "A_MPEG/L3") >= 0 ? "mp3" : null;
+            return new Sniff(indexOf(head, "webm") >= 0 ? "webm" : "mkv", codec, null, null);
+        }
+        if (startsWith(head, 0, ASF_HEADER)) {
+            return sniffAsf(head);
+        }
+
+        int audioStart = 0;
+        if (startsWith(head, 0, "ID3") && head.length >= 10) {
+            audioStart = 10 + ((head[6] & 0x7F) << 21 | (head[7] & 0x7F) << 14 | (head[8] & 0x7F) << 7 | head[9] & 0x7F);
+            if ((head[5] & 0x10) != 0) {
+                audioStart += 10;
+            }
+            if (audioStart >= head.length) {
+                // Large cover art: the first frame is out of reach, the tag is enough to accept the upload
+                return new Sniff("mp3", "mp3", null, null);
+            }
+        }
+        if (isAdtsHeader(head, audioStart)) {
+            return sniffAdts(head, audioStart, size);
+        }
+        int frame = findMpegFrame(head, audioStart);
+        if (frame >= 0) {
+            return sniffMpegAudio(head, tail, frame, size);
+        }
+        return null;
+    }
+
+    private static Sniff sniffWav(byte[] head) {
+        String codec = null;
+        int channels = 0;
+        int sampleRate = 0;
+        long byteRate = 0;
+        int offset = 12;
+        while (offset + 8 <= head.length) {
+            String id = new String(head, offset, 4, StandardCharsets.US_ASCII);
+            long chunkSize = le32(head, offset + 4);
+            if ("fmt ".equals(id) && offset + 24 <= head.length) {
+                int formatTag = le16(head, offset + 8);
+                int bitsPerSample = le16(head, offset + 22);
+                codec = switch (formatTag) {
+                    case 0x0001, 0xFFFE -> bitsPerSample == 8 ? "pcm_u8" : "pcm_s" + bitsPerSample + "le";
+                    case 0x0003 -> "pcm_f" + bitsPerSample + "le";
+                    case 0x0055 -> "mp3";
+                    default -> null;
+                };
+                channels = le16(head, offset + 10);
+                sampleRate = (int) le32(head, offset + 12);
+                byteRate = le32(head, offset + 16);
+            } else if ("data".equals(id)) {
+                Double duration = byteRate > 0 ? (double) chunkSize / byteRate : null;
+                Integer bitrate = byteRate > 0 ? (int) Math.min(Integer.MAX_VALUE, byteRate * 8) : null;
+                return new Sniff("wav", codec, null, sampleRate, channels, duration, bitrate);
+            }
+            long next = offset + 8 + chunkSize + (chunkSize & 1);
+            if (next > head.length) {
+                break;
+            }
+            offset = (int) next;
+        }
+        return new Sniff("wav", codec, null, sampleRate, channels, null, null);
+    }
+
+    /**
+     * STREAMINFO is the mandatory first metadata block.
+     */
+    private static Sniff sniffFlac(String format, byte[] data, int blockOffset) {
+        int info = blockOffset + 4;
+        if (info + 18 > data.length) {
+            return new Sniff(format, "flac", null, null);
+        }
+        int sampleRate = (data[info + 10] & 0xFF) << 12 | (data[info + 11] & 0xFF) << 4 | (data[info + 12] & 0xF0) >> 4;
+        int channels = ((data[info + 12] & 0x0E) >> 1) + 1;
+        long totalSamples = (data[info + 13] & 0x0FL) << 32 | be32(data, info + 14);
+        Double duration = sampleRate > 0 && totalSamples > 0 ? (double) totalSamples / sampleRate : null;
+        return new Sniff(format, "flac", null, sampleRate, channels, duration, null);
+    }
+
+    private static Sniff sniffOgg(byte[] head, byte[] tail) {
+        if (head.length < 27) {
+            return new Sniff("ogg", null, null, null);
+        }
+        int packet = 27 + (head[26] & 0xFF);
+        String codec = null;
+        int sampleRate = 0;
+        int channels = 0;
+        long preSkip = 0;
+        if (startsWith(head, packet, "\u0001vorbis") && packet + 16 <= head.length) {
+            codec = "vorbis";
+            channels = head[packet + 11] & 0xFF;
+            sampleRate = (int) le32(head, packet + 12);
+        } else if (startsWith(head, packet, "OpusHead") && packet + 12 <= head.length) {
+            // Opus always decodes at 48 kHz, the input rate in the header is informational
+            codec = "opus";
+            channels = head[packet + 9] & 0xFF;
+            sampleRate = 48000;
+            preSkip = le16(head, packet + 10);
+        } else if (startsWith(head, packet, "\u007FFLAC") && packet + 13 + 38 <= head.length) {
+            return sniffFlac("ogg", head, packet + 13);
+        }
+
+        Double duration = null;
+        byte[] pages = tail.length > 0 ? tail : head;
+        int last = lastIndexOf(pages, "OggS");
+        if (sampleRate > 0 && last >= 0 && last + 14 <= pages.length) {
+            long granule = le64(pages, last + 6);
+            if (granule > preSkip) {
+                duration = (double) (granule - preSkip) / sampleRate;
+            }
+        }
+        return new Sniff("ogg", codec, null, sampleRate, channels, duration, null);
+    }
+
+    private static Sniff sniffMp4(byte[] head, byte[] tail) {
+        String format = mp4Format(head);
+
+        // A complete moov box in the head (fast start) or at the end of the tail
+        int moov = findTopLevelBox(head, "moov");
+        if (moov >= 0 && moov + be32(head, moov) <= head.length) {
+            return sniffMovie(format, head, moov, (int) (moov + be32(head, moov)));
+        }
+        int tailMoov = lastIndexOf(tail, "moov") - 4;
+        if (tailMoov >= 0 && tailMoov + be32(tail, tailMoov) == tail.length) {
+            return sniffMovie(format, tail, tailMoov, tail.length);
+        }
+
+        String codec = null;
+        for (byte[] data : new byte[][]{head, tail}) {
+            if (codec == null) {
+                codec = indexOf(data, "mp4a") >= 0 ? "aac"
+                        : indexOf(data, "alac") >= 0 ? "alac"
+                        : indexOf(data, ".mp3") >= 0 ? "mp3"
+                        : indexOf(data, "Opus") >= 0 ? "opus"
+                        : indexOf(data, "fLaC") >= 0 ? "flac" : null;
+            }
+        }
+        return new Sniff(format, codec, null, null);
+    }
+
+    static String mp4Format(byte[] head) {
+        String brand = head.length >= 12 ? new String(head, 8, 4, StandardCharsets.US_ASCII) : "";
+        return switch (brand) {
+            case "M4A ", "M4B " -> "m4a";
+            case "qt  " -> "mov";
+            default -> "mp4";
+        };
+    }
+
+    /**
+     * Offset of a top-level box among the boxes that start in the data, or -1.
+     */
+    static int findTopLevelBox(byte[] data, String type) {
+        long offset = 0;
+        while (offset + 8 <= data.length) {
+            int position = (int) offset;
+            long size = be32(data, position);
+            if (startsWith(data, position + 4, type)) {
+                return position;
+            }
+            if (size == 1 && position + 16 <= data.length) {
+                size = be32(data, position + 8) << 32 | be32(data, position + 12);
+            }
+            if (size < 8) {
+                return -1;
+            }
+            offset += size;
+        }
+        return -1;
+    }
+
+    /**
+     * Read the movie duration and the first audio track's sample entry from a complete moov box.
+     */
+    static Sniff sniffMovie(String format, byte[] data, int moov, int end) {
+        MovieInfo info = new MovieInfo();
+        walkBoxes(data, moov + 8, end, info);
+        if (info.codec == null) {
+            return new Sniff(format, null, info.duration, null);
+        }
+        // A video file's bitrate is not the audio bitrate, without esds it stays unknown
+        Integer bitrate = info.bitrate > 0 ? Integer.valueOf((int) info.bitrate) : info.hasOtherTracks ? 0 : null;
+        return new Sniff(format, info.codec, info.profile, info.sampleRate, info.channels, info.duration, bitrate);
+    }
+
+    private static final class MovieInfo {
+        private Double duration;
+        private String codec;
+        private String profile;
+        private int sampleRate;
+        private int channels;
+        private long bitrate;
+        private boolean hasOtherTracks;
+    }
+
+    private static void walkBoxes(byte[] data, int offset, int end, MovieInfo info) {
+        while (offset + 8 <= end) {
+            long size = be32(data, offset);
+            if (size < 8 || offset + size > end) {
+                return;
+            }
+            int boxEnd = (int) (offset + size);
+            String type = new String(data, offset + 4, 4, StandardCharsets.ISO_8859_1);
+            switch (type) {
+                case "mvhd" -> info.duration = mvhdDuration(data, offset + 4);
+                case "trak", "mdia", "minf", "stbl" -> walkBoxes(data, offset + 8, boxEnd, info);
+                case "stsd" -> readSampleEntry(data, offset, boxEnd, info);
+                default -> {
+                }
+            }
+            offset = boxEnd;
+        }
+    }
+
+    private static void readSampleEntry(byte[] data, int stsd, int end, MovieInfo info) {
+        int entry = stsd + 16;
+        if (entry + 36 > end) {
+            return;
+        }
+        String codec = switch (new String(data, entry + 4, 4, StandardCharsets.ISO_8859_1)) {
+            case "mp4a" -> "aac";
+            case "alac" -> "alac";
+            case "fLaC" -> "flac";
+            case "Opus" -> "opus";
+            case ".mp3" -> "mp3";
+            case "ac-3" -> "ac3";
+            case "ec-3" -> "eac3";
+            default -> null;
+        };
+        if (codec == null) {
+            info.hasOtherTracks = true;
+            return;
+        }
+        if (info.codec != null) {
+            return;
+        }
+        int entryEnd = (int) Math.min(end, entry + be32(data, entry));
+        int version = be16(data, entry + 16);
+        info.codec = codec;
+        info.channels = be16(data, entry + 24);
+        // Version 2 QuickTime entries keep the real rate elsewhere; ffprobe is used for them
+        info.sampleRate = version == 2 ? 0 : be16(data, entry + 32);
+
+        int esds = indexOf(data, "esds".getBytes(StandardCharsets.ISO_8859_1), entry + 36, entryEnd);
+        if (esds >= 0) {
+            readEsds(data, esds + 8, entryEnd, info);
+        }
+    }
+
+    /**
+     * ES_Descriptor with its DecoderConfigDescriptor (object type, average bitrate) and AudioSpecificConfig
+     * (audio object type, the AAC profile).
+     */
+    private static void readEsds(byte[] data, int offset, int end, MovieInfo info) {
+        int[] descriptor = readDescriptor(data, offset, end);
+        if (descriptor == null || descriptor[0] != 0x03 || descriptor[1] + 3 > end) {
+            return;
+        }
+        int position = descriptor[1];
+        int flags = data[position + 2] & 0xFF;
+        position += 3;
+        if ((flags & 0x80) != 0) {
+            position += 2;
+        }
+        if ((flags & 0x40) != 0 && position < end) {
+            position += 1 + (data[position] & 0xFF);
+        }
+        if ((flags & 0x20) != 0) {
+            position += 2;
+        }
+
+        descriptor = readDescriptor(data, position, end);
+        if (descriptor == null || descriptor[0] != 0x04 || descriptor[1] + 13 > end) {
+            return;
+        }
+        position = descriptor[1];
+        int objectType = data[position] & 0xFF;
+        if (objectType == 0x69 || objectType == 0x6B) {
+            info.codec = "mp3";
+        }
+        info.bitrate = be32(data, position + 9);
+
+        descriptor = readDescriptor(data, position + 13, end);
+        if (descriptor != null && descriptor[0] == 0x05 && descriptor[1] < end && "aac".equals(info.codec)) {
+            int audioObjectType = (data[descriptor[1]] & 0xF8) >> 3;
+            info.profile = audioObjectType < AAC_PROFILES.length ? AAC_PROFILES[audioObjectType] : null;
+        }
+    }
+
+    /**
+     * @return the descriptor tag and the offset of its payload, or null
+     */
+    private static int[] readDescriptor(byte[] data, int offset, int end) {
+        if (offset >= end) {
+            return null;
+        }
+        int tag = data[offset] & 0xFF;
+        int position = offset + 1;
+        for (int i = 0; i < 4 && position < end; i++) {
+            if ((data[position++] & 0x80) == 0) {
+                break;
+            }
+        }
+        return new int[]{tag, position};
+    }
+
+    /**
+     * @param fullBox offset of the box type, followed by its version and flags
+     */
+    private static Double mvhdDuration(byte[] data, int fullBox) {
+        int version = data[fullBox + 4];
+        int timescaleOffset = fullBox + 8 + (version == 1 ? 16 : 8);
+        if (timescaleOffset + (version == 1 ? 12 : 8) > data.length) {
+            return null;
+        }
+        long timescale = be32(data, timescaleOffset);
+        long duration = version == 1
+                ? be32(data, timescaleOffset + 4) << 32 | be32(data, timescaleOffset + 8)
+                : be32(data, timescaleOffset + 4);
+        return timescale > 0 && duration > 0 ? (double) duration / timescale : null;
+    }
+
+    private static Sniff sniffAsf(byte[] head) {
+        int properties = indexOf(head, ASF_FILE_PROPERTIES);
+        // Object GUID and size, file GUID, file size, creation date and packet count precede the play duration
+        int playDuration = properties + 16 + 8 + 16 + 8 + 8 + 8;
+        if (properties < 0 || playDuration + 24 > head.length) {
+            return new Sniff("asf", "wma", null, null);
+        }
+        double duration = le64(head, playDuration) / 1e7 - le64(head, playDuration + 16) / 1e3;
+        return new Sniff("asf", "wma", duration > 0 ? duration : null, null);
+    }
+
+    private static boolean isAdtsHeader(byte[] data, int offset) {
+        return offset + 7 <= data.length
+                && (data[offset] & 0xFF) == 0xFF && (data[offset + 1] & 0xF6) == 0xF0;
+    }
+
+    /**
+     * Average the ADTS frames in the head and extrapolate to the object size.
+     */
+    private static Sniff sniffAdts(byte[] head, int offset, long size) {
+        int sampleRateIndex = (head[offset + 2] & 0x3C) >> 2;
+        int sampleRate = sampleRateIndex < AAC_SAMPLE_RATES.length ? AAC_SAMPLE_RATES[sampleRateIndex] : 0;
+        String profile = AAC_PROFILES[((head[offset + 2] & 0xC0) >> 6) + 1];
+        int channels = (head[offset + 2] & 0x01) << 2 | (head[offset + 3] & 0xC0) >> 6;
+        long bytes = 0;
+        int frames = 0;
+        int position = offset;
+        while (isAdtsHeader(head, position)) {
+            int frameLength = (head[position + 3] & 0x03) << 11 | (head[position + 4] & 0xFF) << 3
+                    | (head[position + 5] & 0xE0) >> 5;
+            if (frameLength < 7 || position + frameLength > head.length) {
+                break;
+            }
+            bytes += frameLength;
+            frames++;
+            position += frameLength;
+        }
+        if (frames == 0 || sampleRate == 0) {
+            return new Sniff("aac", "aac", profile, sampleRate, channels, null, null);
+        }
+        double frameSeconds = 1024.0 / sampleRate;
+        double averageFrame = (double) bytes / frames;
+        return new Sniff("aac", "aac", profile, sampleRate, channels, (size - offset) / averageFrame * frameSeconds,
+                (int) (averageFrame * 8 / frameSeconds));
+    }
+
+    /**
+     * First MPEG audio frame header that starts a chain of {@link #MPEG_FRAMES_TO_MATCH} frames, so random bytes
+     * matching a sync word are not taken for audio. The chain may end with the data.
+     */
+    private static int findMpegFrame(byte[] data, int from) {
+        for (int offset = from; offset + 4 <= data.length; offset++) {
+            int position = offset;
+            int matched = 0;
+            while (matched < MPEG_FRAMES_TO_MATCH && position + 4 <= data.length) {
+                int length = mpegFrameLength(data, position);
+                if (length <= 0) {
+                    break;
+                }
+                matched++;
+                position += length;
+            }
+            if (matched == MPEG_FRAMES_TO_MATCH || (matched > 0 && position + 4 > data.length)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private static int mpegFrameLength(byte[] data, int offset) {
+        if (offset + 4 > data.length || (data[offset] & 0xFF) != 0xFF || (data[offset + 1] & 0xE0) != 0xE0) {
+            return -1;
+        }
+        int version = (data[offset + 1] & 0x18) >> 3;
+        int layer = (data[offset + 1] & 0x06) >> 1;
+        int bitrateIndex = (data[offset + 2] & 0xF0) >> 4;
+        int sampleRateIndex = (data[offset + 2] & 0x0C) >> 2;
+        if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+            return -1;
+        }
+        int bitrate = mpegBitrate(version, layer, bitrateIndex) * 1000;
+        int sampleRate = mpegSampleRate(version, sampleRateIndex);
+        int padding = (data[offset + 2] & 0x02) >> 1;
+        if (layer == 3) {
+            return (12 * bitrate / sampleRate + padding) * 4;
+        }
+        return mpegSamplesPerFrame(version, layer) / 8 * bitrate / sampleRate + padding;
+    }
+
+    private static Sniff sniffMpegAudio(byte[] head, byte[] tail, int frame, long size) {
+        int version = (head[frame + 1] & 0x18) >> 3;
+        int layer = (head[frame + 1] & 0x06) >> 1;
+        int bitrate = mpegBitrate(version, layer, (head[frame + 2] & 0xF0) >> 4) * 1000;
+        int sampleRate = mpegSampleRate(version, (head[frame + 2] & 0x0C) >> 2);
+        int samplesPerFrame = mpegSamplesPerFrame(version, layer);
+        boolean mono = (head[frame + 3] & 0xC0) == 0xC0;
+        int channels = mono ? 1 : 2;
+        String codec = layer == 1 ? "mp3" : layer == 2 ? "mp2" : "mp1";
+        long audioBytes = size - frame - (lastIndexOf(tail, "TAG") == tail.length - 128 ? 128 : 0);
+
+        // VBR: Xing/Info follows the side information, VBRI is at a fixed offset
+        long frames = 0;
+        int xing = frame + 4 + (version == 3 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+        if ((startsWith(head, xing, "Xing") || startsWith(head, xing, "Info")) && xing + 16 <= head.length) {
+            int flags = head[xing + 7];
+            int field = xing + 8;
+            if ((flags & 0x01) != 0) {
+                frames = be32(head, field);
+                field += 4;
+            }
+            if ((flags & 0x02) != 0) {
+                audioBytes = be32(head, field);
+            }
+        }
+        int vbri = frame + 4 + 32;
+        if (startsWith(head, vbri, "VBRI") && vbri + 18 <= head.length) {
+            audioBytes = be32(head, vbri + 10);
+            frames = be32(head, vbri + 14);
+        }
+
+        if (frames > 0) {
+            double duration = (double) frames * samplesPerFrame / sampleRate;
+            return new Sniff("mp3", codec, null, sampleRate, channels, duration, (int) (audioBytes * 8 / duration));
+        }
+        return new Sniff("mp3", codec, null, sampleRate, channels, audioBytes * 8.0 / bitrate, bitrate);
+    }
+
+    /**
+     * @param version MPEG version bits: 3 = MPEG-1, 2 = MPEG-2, 0 = MPEG-2.5
+     * @param layer   layer bits: 3 = layer I, 2 = layer II, 1 = layer III
+     */
+    private static int mpegBitrate(int version, int layer, int index) {
+        int table = version == 3 ? 3 - layer : layer == 3 ? 3 : 4;
+        return MP3_BITRATES[table][index];
+    }
+
+    private static int mpegSampleRate(int version, int index) {
+        int rate = MP3_SAMPLE_RATES[index];
+        return version == 3 ? rate : version == 2 ? rate / 2 : rate / 4;
+    }
+
+    private static int mpegSamplesPerFrame(int version, int layer) {
+        if (layer == 3) {
+            return 384;
+        }
+        return layer == 1 && version != 3 ? 576 : 1152;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, String ascii) {
+        return startsWith(data, offset, ascii.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+        if (offset < 0 || offset + prefix.length > data.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] data, String ascii) {
+        return indexOf(data, ascii.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        return indexOf(data, pattern, 0, data.length);
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from, int to) {
+        for (int offset = Math.max(0, from); offset + pattern.length <= Math.min(to, data.length); offset++) {
+            if (startsWith(data, offset, pattern)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, String ascii) {
+        byte[] pattern = ascii.getBytes(StandardCharsets.ISO_8859_1);
+        for (int offset = data.length - pattern.length; offset >= 0; offset--) {
+            if (startsWith(data, offset, pattern)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private static int le16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static long le32(byte[] data, int offset) {
+        return (data[offset] & 0xFFL) | (data[offset + 1] & 0xFFL) << 8
+                | (data[offset + 2] & 0xFFL) << 16 | (data[offset + 3] & 0xFFL) << 24;
+    }
+
+    private static long le64(byte[] data, int offset) {
+        return le32(data, offset) | le32(data, offset + 4) << 32;
+    }
+
+    private static int be16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    static long be32(byte[] data, int offset) {
+        return (data[offset] & 0xFFL) << 24 | (data[offset + 1] & 0xFFL) << 16
+                | (data[offset + 2] & 0xFFL) << 8 | (data[offset + 3] & 0xFFL);
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
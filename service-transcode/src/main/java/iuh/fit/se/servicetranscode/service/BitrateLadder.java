@@ -0,0 +1,248 @@
+package iuh.fit.se.servicetranscode.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.probe.FFmpegProbeResult;
+import net.bramp.ffmpeg.probe.FFmpegStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the HLS variants of a track from its probe result.
+ * <p>
+ * The AAC-LC rungs of {@code transcode.ladder.bitrates} are produced only up to the source quality
+ * (times {@code upscale-tolerance}), so a 128 kbps MP3 is not re-encoded at 256 and 320 kbps. Mono and
+ * low sample rate sources only get the lowest AAC-LC rung. The lowest rung is always produced.
+ * <p>
+ * An optional low-bandwidth tier for mobile is encoded as HE-AAC when ffmpeg has libfdk_aac. The native
+ * encoder has no HE-AAC profile, so without it the tier falls back to AAC-LC at a lower sample rate.
+ * <p>
+ * When the source is already AAC-LC within {@code copy-tolerance} of a rung, that rung is produced by
+ * stream copy instead of a decode and re-encode.
+ * <p>
+ * In tiered mode ({@code transcode.tiered.enabled}) only the mezzanine, the highest variant of the plan, and
+ * the {@code stored-qualities} are encoded at ingest. The master playlist still advertises the whole plan;
+ * the other variants are rendered from the mezzanine by {@link MezzanineRenderer} when first played.
+ */
+@Component
+@Slf4j
+public class BitrateLadder {
+
+    private static final int OUTPUT_SAMPLE_RATE = 44100;
+    private static final int LOW_FIDELITY_SAMPLE_RATE = 32000;
+    private static final String AAC_LC_CODECS = "mp4a.40.2";
+    private static final String HE_AAC_CODECS = "mp4a.40.5";
+    private static final String STREAM_COPY = "copy";
+
+    @Value("${ffmpeg.path}")
+    private String ffmpegPath;
+
+    @Value("${transcode.ladder.bitrates:128000,256000,320000}")
+    private List<Integer> bitrates;
+
+    @Value("${transcode.ladder.upscale-tolerance:1.1}")
+    private double upscaleTolerance;
+
+    @Value("${transcode.ladder.copy-tolerance:0.15}")
+    private double copyTolerance;
+
+    @Value("${transcode.ladder.low-tier.enabled:true}")
+    private boolean lowTierEnabled;
+
+    @Value("${transcode.ladder.low-tier.bitrate:48000}")
+    private int lowTierBitrate;
+
+    @Value("${transcode.tiered.enabled:false}")
+    private boolean tieredEnabled;
+
+    @Value("${transcode.tiered.stored-qualities:}")
+    private List<String> tieredStoredQualities;
+
+    private Rung lowTier;
+    private List<Rung> standardRungs;
+
+    @PostConstruct
+    void init() {
+        standardRungs = bitrates.stream()
+                .sorted()
+                .map(bitrate -> new Rung(nameOf(bitrate), bitrate, "aac", null, OUTPUT_SAMPLE_RATE, AAC_LC_CODECS))
+                .toList();
+
+        if (lowTierEnabled) {
+            lowTier = hasEncoder("libfdk_aac")
+                    ? new Rung(nameOf(lowTierBitrate), lowTierBitrate, "libfdk_aac", "aac_he", OUTPUT_SAMPLE_RATE, HE_AAC_CODECS)
+                    : new Rung(nameOf(lowTierBitrate), lowTierBitrate, "aac", null, LOW_FIDELITY_SAMPLE_RATE, AAC_LC_CODECS);
+            log.info("Low-bandwidth tier: {} ({})", lowTier.name(), lowTier.encoder());
+        }
+    }
+
+    /**
+     * Variants to produce for a source, lowest bitrate first.
+     */
+    public List<Rung> plan(FFmpegProbeResult probe) {
+        FFmpegStream audio = probe.getStreams() == null ? null : probe.getStreams().stream()
+                .filter(stream -> stream.codec_type == FFmpegStream.CodecType.AUDIO)
+                .findFirst()
+                .orElse(null);
+
+        long sourceBitrate = 0;
+        boolean lowFidelity = false;
+        if (audio != null) {
+            sourceBitrate = audio.bit_rate > 0 ? audio.bit_rate : 0;
+            lowFidelity = audio.channels == 1 || (audio.sample_rate > 0 && audio.sample_rate < LOW_FIDELITY_SAMPLE_RATE);
+        }
+        if (sourceBitrate == 0 && probe.getFormat() != null) {
+            // Containers like MP3 or Ogg often only report the overall bit rate
+            sourceBitrate = probe.getFormat().bit_rate;
+        }
+
+        Rung copyRung = audio != null && isAacLc(audio) ? nearestRung(sourceBitrate) : null;
+
+        List<Rung> rungs = new ArrayList<>();
+        if (lowTier != null) {
+            rungs.add(lowTier);
+        }
+        for (Rung rung : standardRungs) {
+            boolean first = rung == standardRungs.get(0);
+            boolean upscales = sourceBitrate > 0 && rung.bitrate() > sourceBitrate * upscaleTolerance;
+            if (rung == copyRung) {
+                rungs.add(rung.withStreamCopy());
+            } else if (first || (!lowFidelity && !upscales)) {
+                rungs.add(rung);
+            }
+        }
+
+        log.info("Bitrate ladder for source ({}, {} bps, {} Hz, {} ch): {}",
+                audio == null ? "unknown" : audio.codec_name, sourceBitrate,
+                audio == null ? 0 : audio.sample_rate, audio == null ? 0 : audio.channels,
+                rungs.stream().map(rung -> rung.isStreamCopy() ? rung.name() + " (copy)" : rung.name()).toList());
+        return rungs;
+    }
+
+    /**
+     * Variants of the plan to encode at ingest: all of them, or in tiered mode the mezzanine and the
+     * stored qualities.
+     */
+    public List<Rung> stored(List<Rung> plan) {
+        if (!tieredEnabled || plan.isEmpty()) {
+            return plan;
+        }
+        Rung mezzanine = plan.get(plan.size() - 1);
+        return plan.stream()
+                .filter(rung -> rung == mezzanine || tieredStoredQualities.contains(rung.name()))
+                .toList();
+    }
+
+    /**
+     * Names of the variants of a finished rendition that were encoded at ingest, see {@link #stored(List)}.
+     * The others are rendered on demand, or not yet.
+     */
+    public List<String> storedQualities(List<String> qualityLevels) {
+        if (!tieredEnabled) {
+            return qualityLevels;
+        }
+        List<Rung> plan = qualityLevels.stream()
+                .map(this::rung)
+                .flatMap(Optional::stream)
+                .sorted(Comparator.comparingInt(Rung::bitrate))
+                .toList();
+        return stored(plan).stream().map(Rung::name).toList();
+    }
+
+    public boolean isTiered() {
+        return tieredEnabled;
+    }
+
+    private static boolean isAacLc(FFmpegStream audio) {
+        return "aac".equals(audio.codec_name) && "LC".equalsIgnoreCase(audio.profile);
+    }
+
+    /**
+     * The standard rung closest to the source bit rate, if it is within the copy tolerance.
+     */
+    private Rung nearestRung(long sourceBitrate) {
+        if (sourceBitrate <= 0) {
+            return null;
+        }
+        return standardRungs.stream()
+                .filter(rung -> Math.abs(rung.bitrate() - sourceBitrate) <= rung.bitrate() * copyTolerance)
+                .min(Comparator.comparingLong(rung -> Math.abs(rung.bitrate() - sourceBitrate)))
+                .orElse(null);
+    }
+
+    /**
+     * Variants encoded before the others in progressive mode: the lowest AAC-LC rung, which the default
+     * quality plays, plus any stream-copied rung since it costs almost nothing.
+     */
+    public List<Rung> firstPass(List<Rung> plan) {
+        Rung lowestStandard = plan.stream()
+                .filter(rung -> rung != lowTier)
+                .findFirst()
+                .orElse(plan.get(0));
+        return plan.stream()
+                .filter(rung -> rung == lowestStandard || rung.isStreamCopy())
+                .toList();
+    }
+
+    /**
+     * Look up a variant by name, for playlists of renditions produced earlier.
+     */
+    public Optional<Rung> rung(String name) {
+        if (lowTier != null && lowTier.name().equals(name)) {
+            return Optional.of(lowTier);
+        }
+        return standardRungs.stream().filter(rung -> rung.name().equals(name)).findFirst();
+    }
+
+    private static String nameOf(int bitrate) {
+        return (bitrate / 1000) + "kbps";
+    }
+
+    private boolean hasEncoder(String encoder) {
+        try {
+            Process process = new ProcessBuilder(ffmpegPath, "-hide_banner", "-encoders")
+                    .redirectErrorStream(true)
+                    .start();
+            String output;
+            try (InputStream stream = process.getInputStream()) {
+                output = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            process.waitFor(10, TimeUnit.SECONDS);
+            return output.contains(" " + encoder + " ");
+        } catch (IOException e) {
+            log.warn("Cannot list ffmpeg encoders: {}", e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * One HLS variant.
+     *
+     * @param name       quality directory and NAME in the master playlist
+     * @param encoder    ffmpeg audio encoder
+     * @param profile    encoder profile ({@code -profile:a}), or null for the default
+     * @param codecs     CODECS attribute advertised in the master playlist
+     */
+    public record Rung(String name, int bitrate, String encoder, String profile, int sampleRate, String codecs) {
+
+        /**
+         * The same variant produced by copying the source's AAC stream; the source sample rate is kept.
+         */
+        Rung withStreamCopy() {
+            return new Rung(name, bitrate, STREAM_COPY, null, 0, codecs);
+        }
+
+        public boolean isStreamCopy() {
+            return STREAM_COPY.equals(encoder);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package iuh.fit.se.servicetranscode.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.FFmpegExecutor;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.builder.FFmpegOutputBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Parallel encoding of long sources (mixes, podcasts), enabled for tracks of at least
+ * {@code transcode.chunked.min-duration-seconds}.
+ * <p>
+ * The source is first decoded once into float PCM at the variant's sample rate. Seeking a compressed source
+ * is only as exact as its timestamps, which for VBR MP3 or a source read over HTTP are estimates, while a
+ * PCM file is seeked by byte offset to the exact sample. The PCM is cut into chunks of about
+ * {@code chunk-seconds}, a whole number of AAC frames long, which are encoded by concurrent ffmpeg
+ * processes into ADTS and joined frame by frame into one stream. The HLS
+ * variant is then packaged from the joined stream by stream copy, so its segments, media sequence and
+ * timeline are those of a single encode.
+ * <p>
+ * The encoder primes every stream with one frame and the MDCT overlaps neighbouring frames, so a chunk is
+ * encoded from {@link #PREROLL_FRAMES} frames before its start and its priming and pre-roll frames are
+ * dropped; the output is stopped after its last frame rather than flushed. The joined stream has the
+ * frame count of a single encode and no gap at the boundaries. Only ffmpeg's native AAC-LC encoder is
+ * chunked, whose priming is known; other variants are encoded in one piece.
+ * <p>
+ * Chunks are encoded by single-threaded processes, one per thread of the job's slot plus the threads of the
+ * slots the scheduler can spare (see {@link TranscodeScheduler#tryAcquireExtra(int)}), so chunked jobs stay
+ * within the node's CPU budget; {@code transcode.chunked.parallelism} caps the processes of one variant
+ * (0: no cap). The chunks are a run of {@link JobCancellation}: a chunk failing for good or the chunks timing
+ * out stops the other chunk processes, and a cancelled job stops its chunks and their retries.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ChunkedEncoder {
+
+    private static final String CHUNKED_ENCODER = "aac";
+    private static final int SAMPLES_PER_FRAME = 1024;
+    private static final int PRIMING_FRAMES = 1;
+    private static final int PREROLL_FRAMES = 8;
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+    private static final long CHUNKS_TIMEOUT_MINUTES = 15;
+
+    private final FFmpegExecutor ffmpegExecutor;
+    private final TranscodeScheduler transcodeScheduler;
+    private final JobCancellation jobCancellation;
+
+    @Value("${transcode.chunked.enabled:true}")
+    private boolean enabled;
+
+    @Value("${transcode.chunked.min-duration-seconds:1200}")
+    private int minDurationSeconds;
+
+    @Value("${transcode.chunked.chunk-seconds:300}")
+    private int chunkSeconds;
+
+    @Value("${transcode.chunked.parallelism:0}")
+    private int parallelism;
+
+    @PostConstruct
+    void init() {
+        log.info("Chunked encoding: {}", enabled
+                ? "from " + minDurationSeconds + "s, " + chunkSeconds + "s chunks, "
+                        + (parallelism > 0 ? "up to " + parallelism + " processes" : "processes by free slots")
+                : "disabled");
+    }
+
+    public boolean appliesTo(int duration, BitrateLadder.Rung rung) {
+        return enabled
+                && duration >= minDurationSeconds
+                && CHUNKED_ENCODER.equals(rung.encoder())
+                && rung.profile() == null;
+    }
+
+    /**
+     * Encode a variant in parallel chunks.
+     *
+     * @param workDir directory for the chunks and the joined stream, inside the job's temp directory
+     * @param threads threads of the job's slot
+     * @return the joined ADTS stream, to be packaged by stream copy
+     */
+    public File encode(UUID songId, String audioInput, Path workDir, BitrateLadder.Rung rung, int duration,
+                       int threads) throws Exception {
+        Files.createDirectories(workDir);
+        int sampleRate = rung.sampleRate();
+        long framesPerChunk = Math.max(1, (long) Math.ceil((double) chunkSeconds * sampleRate / SAMPLES_PER_FRAME));
+        long totalFrames = (long) Math.ceil((double) duration * sampleRate / SAMPLES_PER_FRAME);
+        int chunkCount = (int) Math.max(1, Math.ceil((double) totalFrames / framesPerChunk));
+
+        int wanted = parallelism > 0 ? Math.min(parallelism, chunkCount) : chunkCount;
+        int threadsPerSlot = Math.max(1, transcodeScheduler.getThreadsPerJob());
+        int extraWanted = Math.max(0, (wanted - threads + threadsPerSlot - 1) / threadsPerSlot);
+
+        try (TranscodeScheduler.JobSlot extraSlots = transcodeScheduler.tryAcquireExtra(extraWanted);
+             JobCancellation.Run run = jobCancellation.register(songId, null, workDir)) {
+            int processes = Math.max(1, Math.min(wanted, threads + extraSlots.threads()));
+            log.info("Encoding quality: {} in {} chunks of {} frames, {} processes",
+                    rung.name(), chunkCount, framesPerChunk, processes);
+            long startTime = System.currentTimeMillis();
+
+            ExecutorService chunkExecutor = Executors.newFixedThreadPool(processes, r -> {
+                Thread thread = new Thread(r);
+                thread.setName("transcode-chunk-" + thread.getId());
+                thread.setDaemon(true);
+                return thread;
+            });
+            List<CompletableFuture<File>> futures = new ArrayList<>();
+            File joined = workDir.resolve(rung.name() + ".aac").toFile();
+            File pcm = workDir.resolve("source.wav").toFile();
+            try {
+                decodeSource(audioInput, rung, pcm);
+                for (int i = 0; i < chunkCount; i++) {
+                    Chunk chunk = new Chunk(i, i * framesPerChunk, i == 0 ? 0 : PREROLL_FRAMES,
+                            i == chunkCount - 1 ? -1 : framesPerChunk);
+                    File output = workDir.resolve(String.format(Locale.ROOT, "chunk_%04d.aac", i)).toFile();
+                    CompletableFuture<File> future = CompletableFuture.supplyAsync(
+                            () -> encodeChunkWithRetry(songId, pcm, workDir, rung, chunk, output),
+                            chunkExecutor);
+                    // A chunk that failed for good fails the variant, stop the others right away
+                    future.whenComplete((file, e) -> {
+                        if (e != null) {
+                            run.cancel();
+                        }
+                    });
+                    futures.add(future);
+                }
+
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                        .get(CHUNKS_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(joined.toPath()))) {
+                    for (int i = 0; i < chunkCount; i++) {
+                        File chunkFile = futures.get(i).join();
+                        copyFrames(chunkFile, i == 0 ? 0 : PRIMING_FRAMES + PREROLL_FRAMES, out);
+                        Files.delete(chunkFile.toPath());
+                    }
+                }
+            } catch (Exception e) {
+                run.cancel();
+                throw e;
+            } finally {
+                chunkExecutor.shutdownNow();
+                Files.deleteIfExists(pcm.toPath());
+            }
+
+            log.info("Encoded quality: {} in {} chunks in {}ms", rung.name(), chunkCount,
+                    System.currentTimeMillis() - startTime);
+            return joined;
+        }
+    }
+
+    /**
+     * Decode the source into float PCM at the variant's sample rate, resampled once as in a single encode.
+     */
+    private void decodeSource(String audioInput, BitrateLadder.Rung rung, File pcm) throws IOException {
+        FFmpegBuilder builder = new FFmpegBuilder();
+        if (audioInput.startsWith("http://") || audioInput.startsWith("https://")) {
+            builder.addExtraArgs("-reconnect", "1", "-reconnect_streamed", "1", "-reconnect_delay_max", "5");
+        }
+        builder.setInput(audioInput)
+                .addOutput(pcm.getAbsolutePath())
+                .setFormat("wav")
+                .setAudioCodec("pcm_f32le")
+                .setAudioSampleRate(rung.sampleRate())
+                .addExtraArgs("-map", "0:a:0")
+                // Sources longer than the 4 GiB of a RIFF header, about 3 hours of stereo at 48 kHz
+                .addExtraArgs("-rf64", "auto")
+                .done();
+
+        long start = System.currentTimeMillis();
+        ffmpegExecutor.createJob(builder).run();
+        log.debug("Decoded source for quality: {} in {}ms", rung.name(), System.currentTimeMillis() - start);
+    }
+
+    private File encodeChunkWithRetry(UUID songId, File pcm, Path workDir, BitrateLadder.Rung rung,
+                                      Chunk chunk, File output) {
+        Exception lastException = null;
+        for (int attempt = 1; attempt <= MAX_CHUNK_ATTEMPTS; attempt++) {
+            if (jobCancellation.isCancelled(workDir)) {
+                // The job was cancelled or another chunk failed, don't start more processes
+                throw new JobCancelledException(songId, lastException);
+            }
+            try {
+                encodeChunk(pcm, rung, chunk, output);
+                return output;
+            } catch (Exception e) {
+                lastException = e;
+                log.warn("Chunk {} attempt {} failed for quality: {}. Error: {}",
+                        chunk.index(), attempt, rung.name(), e.getMessage());
+            }
+        }
+        throw new CompletionException("Chunk " + chunk.index() + " failed", lastException);
+    }
+
+    private void encodeChunk(File pcm, BitrateLadder.Rung rung, Chunk chunk, File output) throws IOException {
+        long inputStartSample = (chunk.startFrame() - chunk.prerollFrames()) * SAMPLES_PER_FRAME;
+        FFmpegBuilder builder = new FFmpegBuilder()
+                .addExtraArgs("-threads", "1")
+                // The PCM is at the variant's sample rate, so this lands on the sample
+                .addExtraArgs("-ss", String.format(Locale.ROOT, "%.6f", (double) inputStartSample / rung.sampleRate()));
+
+        FFmpegOutputBuilder outputBuilder = builder.setInput(pcm.getAbsolutePath())
+                .addOutput(output.getAbsolutePath())
+                .setFormat("adts")
+                .setAudioCodec(rung.encoder())
+                .setAudioBitRate(rung.bitrate())
+                .addExtraArgs("-map", "0:a:0")
+                .addExtraArgs("-threads", "1");
+        if (chunk.frames() > 0) {
+            // Stop after the chunk's last frame, encoded with the audio that follows it
+            outputBuilder.addExtraArgs("-frames:a",
+                    String.valueOf(PRIMING_FRAMES + chunk.prerollFrames() + chunk.frames()));
+        }
+
+        ffmpegExecutor.createJob(outputBuilder.done()).run();
+    }
+
+    /**
+     * Append the ADTS frames of a chunk to the joined stream, skipping its first frames.
+     */
+    static void copyFrames(File chunkFile, int skipFrames, OutputStream out) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(chunkFile.toPath())))) {
+            byte[] header = new byte[7];
+            int frame = 0;
+            while (true) {
+                int read = in.read(header, 0, 1);
+                if (read < 0) {
+                    return;
+                }
+                in.readFully(header, 1, header.length - 1);
+                if ((header[0] & 0xFF) != 0xFF || (header[1] & 0xF0) != 0xF0) {
+                    throw new IOException("Invalid ADTS frame " + frame + " in " + chunkFile);
+                }
+                int frameLength = ((header[3] & 0x03) << 11) | ((header[4] & 0xFF) << 3) | ((header[5] & 0xE0) >> 5);
+                if (frameLength < header.length) {
+                    throw new IOException("Invalid ADTS frame length " + frameLength + " in " + chunkFile);
+                }
+                byte[] payload = new byte[frameLength - header.length];
+                in.readFully(payload);
+                if (frame++ >= skipFrames) {
+                    out.write(header);
+                    out.write(payload);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param frames frames kept from the chunk, or -1 for the last chunk, encoded to the end of the source
+     */
+    private record Chunk(int index, long startFrame, int prerollFrames, long frames) {
+    }
+}
@@ -0,0 +1,212 @@
+package iuh.fit.se.servicetranscode.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.minio.GetObjectArgs;
+import io.minio.MinioClient;
+import io.minio.StatObjectArgs;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.FFprobe;
+import net.bramp.ffmpeg.probe.FFmpegFormat;
+import net.bramp.ffmpeg.probe.FFmpegProbeResult;
+import net.bramp.ffmpeg.probe.FFmpegStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process probe of a source, replacing an ffprobe process per job.
+ * <p>
+ * The first and last bytes of the local file, or of the MinIO object when the source is streamed, are parsed by
+ * {@link AudioSniffer}; for MP4 files whose moov box is out of reach the top-level boxes are walked and the moov
+ * box is read whole. The result is shaped like ffprobe's, with the first audio stream only. Sources whose
+ * headers do not give codec, sample rate, channels, duration and bitrate (Matroska, ASF, AVI, damaged files)
+ * are probed by ffprobe. Probe time is published as {@code transcode.probe.duration}, tagged with the method.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class HeaderProbe {
+
+    private static final int HEAD_BYTES = 65536;
+    private static final int TAIL_BYTES = 65536;
+    private static final int MAX_BOXES_TO_SCAN = 64;
+    private static final long MAX_MOOV_BYTES = 16 * 1024 * 1024;
+
+    private final MinioClient minioClient;
+    private final FFprobe ffprobe;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${minio.bucket-name}")
+    private String bucketName;
+
+    @Value("${transcode.probe.in-process.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * @param input        local path or presigned URL ffmpeg reads
+     * @param rawObjectKey object the input was resolved from, read directly for remote inputs
+     */
+    FFmpegProbeResult probe(String input, String rawObjectKey) throws IOException {
+        if (enabled) {
+            long start = System.nanoTime();
+            try {
+                Ranges ranges = isRemote(input) ? objectRanges(rawObjectKey) : fileRanges(new File(input));
+                AudioSniffer.Sniff sniff = sniff(ranges);
+                if (sniff != null && sniff.isComplete()) {
+                    record("header", start);
+                    log.info("Probed {} in-process: {} {} {} Hz, {} ch, {} bps, {}s", rawObjectKey, sniff.format(),
+                            sniff.codec(), sniff.sampleRate(), sniff.channels(), sniff.bitrate(), sniff.duration());
+                    return toProbeResult(sniff, ranges.size(), rawObjectKey);
+                }
+                log.debug("Headers of {} are incomplete ({}), using ffprobe", rawObjectKey, sniff);
+            } catch (Exception e) {
+                log.warn("In-process probe failed for: {}, using ffprobe. Error: {}", rawObjectKey, e.getMessage());
+            }
+        }
+
+        long start = System.nanoTime();
+        FFmpegProbeResult result = ffprobe.probe(input);
+        record("ffprobe", start);
+        return result;
+    }
+
+    private AudioSniffer.Sniff sniff(Ranges ranges) throws Exception {
+        long size = ranges.size();
+        byte[] head = ranges.read(0, (int) Math.min(size, HEAD_BYTES));
+        byte[] tail = size > HEAD_BYTES
+                ? ranges.read(Math.max(HEAD_BYTES, size - TAIL_BYTES), (int) Math.min(TAIL_BYTES, size - HEAD_BYTES))
+                : new byte[0];
+        AudioSniffer.Sniff sniff = AudioSniffer.sniff(head, tail, size);
+
+        if (sniff != null && !sniff.isComplete() && Set.of("mp4", "m4a", "mov").contains(sniff.format())) {
+            byte[] moov = readMoov(ranges, size);
+            if (moov != null) {
+                sniff = AudioSniffer.sniffMovie(sniff.format(), moov, 0, moov.length).withSize(size);
+            }
+        }
+        return sniff;
+    }
+
+    /**
+     * Walk the top-level boxes and read the moov box, usually at the end of files written without fast start.
+     */
+    private byte[] readMoov(Ranges ranges, long size) throws Exception {
+        long offset = 0;
+        for (int i = 0; i < MAX_BOXES_TO_SCAN && offset + 8 <= size; i++) {
+            byte[] header = ranges.read(offset, (int) Math.min(16, size - offset));
+            long boxSize = AudioSniffer.be32(header, 0);
+            String type = new String(header, 4, 4, StandardCharsets.ISO_8859_1);
+            if (boxSize == 1 && header.length == 16) {
+                boxSize = AudioSniffer.be32(header, 8) << 32 | AudioSniffer.be32(header, 12);
+            } else if (boxSize == 0) {
+                boxSize = size - offset;
+            }
+            if ("moov".equals(type)) {
+                return boxSize <= MAX_MOOV_BYTES && offset + boxSize <= size
+                        ? ranges.read(offset, (int) boxSize)
+                        : null;
+            }
+            if (boxSize < 8) {
+                return null;
+            }
+            offset += boxSize;
+        }
+        return null;
+    }
+
+    private static FFmpegProbeResult toProbeResult(AudioSniffer.Sniff sniff, long size, String name) {
+        FFmpegStream stream = new FFmpegStream();
+        stream.index = 0;
+        stream.codec_type = FFmpegStream.CodecType.AUDIO;
+        stream.codec_name = sniff.codec();
+        stream.profile = sniff.profile();
+        stream.sample_rate = sniff.sampleRate();
+        stream.channels = sniff.channels();
+        stream.bit_rate = sniff.bitrate();
+        stream.duration = sniff.duration();
+
+        FFmpegFormat format = new FFmpegFormat();
+        format.filename = name;
+        format.format_name = sniff.format();
+        format.nb_streams = 1;
+        format.duration = sniff.duration();
+        format.size = size;
+        format.bit_rate = (long) (size * 8 / sniff.duration());
+
+        FFmpegProbeResult result = new FFmpegProbeResult();
+        result.format = format;
+        result.streams = List.of(stream);
+        return result;
+    }
+
+    private void record(String method, long start) {
+        Timer.builder("transcode.probe.duration")
+                .tag("method", method)
+                .register(meterRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private static boolean isRemote(String input) {
+        return input.startsWith("http://") || input.startsWith("https://");
+    }
+
+    private interface Ranges {
+        long size() throws Exception;
+
+        byte[] read(long offset, int length) throws Exception;
+    }
+
+    private static Ranges fileRanges(File file) {
+        return new Ranges() {
+            @Override
+            public long size() {
+                return file.length();
+            }
+
+            @Override
+            public byte[] read(long offset, int length) throws IOException {
+                try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                    byte[] data = new byte[length];
+                    in.seek(offset);
+                    in.readFully(data);
+                    return data;
+                }
+            }
+        };
+    }
+
+    private Ranges objectRanges(String objectKey) throws Exception {
+        long size = minioClient.statObject(StatObjectArgs.builder()
+                .bucket(bucketName)
+                .object(objectKey)
+                .build()).size();
+        return new Ranges() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public byte[] read(long offset, int length) throws Exception {
+                try (InputStream stream = minioClient.getObject(GetObjectArgs.builder()
+                        .bucket(bucketName)
+                        .object(objectKey)
+                        .offset(offset)
+                        .length((long) length)
+                        .build())) {
+                    return stream.readAllBytes();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,68 @@
+package iuh.fit.se.servicetranscode.service;
+
+import java.util.Locale;
+
+/**
+ * Media layout of an HLS variant, selected with {@code transcode.hls.segment-format}.
+ * <ul>
+ *     <li>{@code ts}: one MPEG-TS object per segment, the layout of songs already in the catalog</li>
+ *     <li>{@code fmp4}: CMAF, an {@code init.mp4} referenced by EXT-X-MAP plus one {@code .m4s} object per segment</li>
+ *     <li>{@code fmp4-single-file}: CMAF in a single {@code media.m4s} object per variant, segments addressed
+ *     with EXT-X-BYTERANGE</li>
+ * </ul>
+ */
+public enum HlsSegmentFormat {
+    TS(".ts", false),
+    FMP4(".m4s", false),
+    FMP4_SINGLE_FILE(".m4s", true);
+
+    static final String INIT_FILE_NAME = "init.mp4";
+    static final String SINGLE_FILE_NAME = "media.m4s";
+
+    private final String segmentExtension;
+    private final boolean singleFile;
+
+    HlsSegmentFormat(String segmentExtension, boolean singleFile) {
+        this.segmentExtension = segmentExtension;
+        this.singleFile = singleFile;
+    }
+
+    public static HlsSegmentFormat fromProperty(String value) {
+        return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+
+    public boolean isFragmentedMp4() {
+        return this != TS;
+    }
+
+    public boolean isSingleFile() {
+        return singleFile;
+    }
+
+    /**
+     * File name, or ffmpeg pattern, of the media segments.
+     */
+    public String segmentFileName() {
+        return singleFile ? SINGLE_FILE_NAME : HlsSegmentUploader.SEGMENT_PREFIX + "%03d" + segmentExtension;
+    }
+
+    public boolean isSegmentFile(String fileName) {
+        return singleFile
+                ? SINGLE_FILE_NAME.equals(fileName)
+                : fileName.startsWith(HlsSegmentUploader.SEGMENT_PREFIX) && fileName.endsWith(segmentExtension);
+    }
+
+    /**
+     * Separate init segment written by ffmpeg, or null when there is none (TS, or the single file holds it).
+     */
+    public String initFileName() {
+        return this == FMP4 ? INIT_FILE_NAME : null;
+    }
+
+    /**
+     * Playlist version required by the layout: EXT-X-MAP in fMP4 playlists needs version 7.
+     */
+    public int playlistVersion() {
+        return isFragmentedMp4() ? 7 : 3;
+    }
+}
@@ -0,0 +1,323 @@
+package iuh.fit.se.servicetranscode.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads HLS segments to MinIO while ffmpeg is still encoding.
+ * <p>
+ * Each quality directory is watched; a segment is handed to the {@link MinioUploadPipeline} as soon as
+ * ffmpeg has closed it and is deleted locally once uploaded, so temp-disk usage stays at a few segments
+ * per quality. The playlist is uploaded last, only once ffmpeg has finished and every segment it lists
+ * is in MinIO. In single-file mode the media file is still growing until ffmpeg exits, so it is uploaded
+ * once, with the playlist.
+ * <p>
+ * When the {@link HlsSegmentation.Layout} groups ffmpeg's fragments into longer segments, the fragments of a
+ * segment are concatenated and uploaded together once the last one is closed, and the playlist is rewritten
+ * to list the segments.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class HlsSegmentUploader {
+
+    static final String PLAYLIST_NAME = "index.m3u8";
+    static final String SEGMENT_PREFIX = "segment_";
+
+    private static final long POLL_INTERVAL_MS = 500;
+
+    private final MinioUploadPipeline uploadPipeline;
+
+    private final ExecutorService watcherExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r);
+        thread.setName("hls-uploader-" + thread.getId());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Start watching a quality directory. Must be called before ffmpeg starts writing into it.
+     *
+     * @param qualityDir local directory ffmpeg writes the playlist and segments to
+     * @param s3Prefix   object prefix the files are uploaded under, ending with "/"
+     * @param format     media layout ffmpeg writes
+     * @param layout     how ffmpeg's fragments are grouped into segments
+     * @return a handle used to signal the end of encoding and await the upload
+     */
+    public Upload start(File qualityDir, String s3Prefix, HlsSegmentFormat format, HlsSegmentation.Layout layout) {
+        Upload upload = new Upload(qualityDir, s3Prefix, format, layout);
+        upload.completion = CompletableFuture.runAsync(upload::run, watcherExecutor);
+        return upload;
+    }
+
+    public class Upload {
+        private final File qualityDir;
+        private final String s3Prefix;
+        private final HlsSegmentFormat format;
+        private final HlsSegmentation.Layout layout;
+        private final Map<String, CompletableFuture<Void>> segmentUploads = new HashMap<>();
+        private final List<CompletableFuture<Void>> queuedUploads = new CopyOnWriteArrayList<>();
+        private final List<File> pendingFragments = new ArrayList<>();
+        private volatile boolean encoderFinished;
+        private volatile boolean aborted;
+        private CompletableFuture<Void> completion;
+
+        private Upload(File qualityDir, String s3Prefix, HlsSegmentFormat format, HlsSegmentation.Layout layout) {
+            this.qualityDir = qualityDir;
+            this.s3Prefix = s3Prefix;
+            this.format = format;
+            this.layout = layout;
+        }
+
+        /**
+         * Signal that ffmpeg exited; the remaining segments and the playlist are uploaded.
+         * The returned future fails if the playlist is incomplete.
+         */
+        public CompletableFuture<Void> finish() {
+            encoderFinished = true;
+            return completion;
+        }
+
+        /**
+         * Stop uploading after ffmpeg failed; segments still waiting for an upload thread are dropped. Objects
+         * already uploaded are overwritten by the next attempt.
+         */
+        public void abort() {
+            aborted = true;
+            queuedUploads.forEach(upload -> upload.cancel(false));
+        }
+
+        private void run() {
+            try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+                qualityDir.toPath().register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+                while (!aborted) {
+                    // Read the flag before scanning so the last scan sees every file ffmpeg wrote
+                    boolean lastPass = encoderFinished;
+                    uploadClosedSegments(lastPass);
+
+                    if (lastPass) {
+                        uploadPlaylist();
+                        return;
+                    }
+
+                    WatchKey key = watchService.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                }
+                throw new IOException("Upload aborted for: " + s3Prefix);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Segment upload interrupted: " + s3Prefix, e);
+            } catch (Exception e) {
+                throw new RuntimeException("Segment upload failed: " + s3Prefix, e);
+            }
+        }
+
+        /**
+         * Segments are written in index order, so every segment except the newest one is closed.
+         * ffmpeg's temp_file flag also keeps in-progress segments under a ".tmp" name.
+         */
+        private void uploadClosedSegments(boolean includeNewest) throws Exception {
+            List<File> segments = listSegments();
+            int closedCount = includeNewest ? segments.size() : Math.max(0, segments.size() - 1);
+
+            for (File segment : segments.subList(0, closedCount)) {
+                if (aborted) {
+                    return;
+                }
+                if (segmentUploads.containsKey(segment.getName()) || pendingFragments.contains(segment)) {
+                    continue;
+                }
+                if (!isGrouped()) {
+                    CompletableFuture<Void> future = uploadFile(segment).thenRun(() -> deleteFiles(List.of(segment)));
+                    segmentUploads.put(segment.getName(), future);
+                    continue;
+                }
+                pendingFragments.add(segment);
+                if (layout.endsSegment(segmentIndex(segment))) {
+                    uploadPendingFragments();
+                }
+            }
+            // The last segment of the track may have fewer fragments
+            if (includeNewest && !pendingFragments.isEmpty() && !aborted) {
+                uploadPendingFragments();
+            }
+        }
+
+        private boolean isGrouped() {
+            return layout.isGrouped() && !format.isSingleFile();
+        }
+
+        /**
+         * Upload the closed fragments of one segment as a single object.
+         */
+        private void uploadPendingFragments() throws IOException, InterruptedException {
+            List<File> fragments = List.copyOf(pendingFragments);
+            pendingFragments.clear();
+
+            String objectName = segmentName(layout.segmentOf(segmentIndex(fragments.get(0))));
+            File segmentFile;
+            List<File> localFiles = new ArrayList<>(fragments);
+            if (fragments.size() == 1) {
+                segmentFile = fragments.get(0);
+            } else {
+                segmentFile = new File(qualityDir, "group_" + objectName);
+                try (OutputStream out = Files.newOutputStream(segmentFile.toPath())) {
+                    for (File fragment : fragments) {
+                        Files.copy(fragment.toPath(), out);
+                    }
+                }
+                localFiles.add(segmentFile);
+            }
+
+            CompletableFuture<Void> future = track(uploadPipeline
+                    .upload(segmentFile, s3Prefix + objectName, getContentType(objectName)))
+                    .thenRun(() -> deleteFiles(localFiles));
+            for (File fragment : fragments) {
+                segmentUploads.put(fragment.getName(), future);
+            }
+        }
+
+        private String segmentName(int segment) {
+            return String.format(format.segmentFileName(), segment);
+        }
+
+        private void uploadPlaylist() throws Exception {
+            File playlist = new File(qualityDir, PLAYLIST_NAME);
+            if (!isPlaylistComplete(playlist)) {
+                throw new IOException("Playlist incomplete: " + playlist);
+            }
+
+            for (String segmentName : readSegmentNames(playlist)) {
+                if (!segmentUploads.containsKey(segmentName)) {
+                    throw new IOException("Segment listed in playlist was not uploaded: " + segmentName);
+                }
+            }
+
+            String initFileName = format.initFileName();
+            if (initFileName != null) {
+                File initFile = new File(qualityDir, initFileName);
+                if (!initFile.isFile()) {
+                    throw new IOException("Init segment missing: " + initFile);
+                }
+                segmentUploads.put(initFileName, uploadFile(initFile));
+            }
+
+            CompletableFuture.allOf(segmentUploads.values().toArray(new CompletableFuture<?>[0]))
+                    .get(5, TimeUnit.MINUTES);
+            if (layout.isGrouped()) {
+                String content = HlsSegmentation.groupPlaylist(Files.readAllLines(playlist.toPath()), layout, format,
+                        this::segmentName);
+                uploadPipeline.upload(content.getBytes(StandardCharsets.UTF_8), s3Prefix + PLAYLIST_NAME,
+                        getContentType(PLAYLIST_NAME)).get(5, TimeUnit.MINUTES);
+            } else {
+                uploadFile(playlist).get(5, TimeUnit.MINUTES);
+            }
+            log.debug("Uploaded {} segments and playlist to {}", segmentUploads.size(), s3Prefix);
+        }
+
+        private List<File> listSegments() {
+            File[] files = qualityDir.listFiles((dir, name) -> format.isSegmentFile(name));
+            if (files == null) {
+                return List.of();
+            }
+            List<File> segments = new ArrayList<>(Arrays.asList(files));
+            segments.sort(Comparator.comparingInt(HlsSegmentUploader::segmentIndex));
+            return segments;
+        }
+
+        private CompletableFuture<Void> uploadFile(File file) throws InterruptedException {
+            return track(uploadPipeline.upload(file, s3Prefix + file.getName(), getContentType(file.getName())));
+        }
+
+        private CompletableFuture<Void> track(CompletableFuture<Void> upload) {
+            queuedUploads.add(upload);
+            upload.whenComplete((ignored, error) -> queuedUploads.remove(upload));
+            return upload;
+        }
+    }
+
+    private static void deleteFiles(List<File> files) {
+        for (File file : files) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                log.warn("Cannot delete uploaded segment: {}", file, e);
+            }
+        }
+    }
+
+    static boolean isPlaylistComplete(File playlist) {
+        if (!playlist.isFile()) {
+            return false;
+        }
+        try {
+            return Files.readString(playlist.toPath()).contains("#EXT-X-ENDLIST");
+        } catch (IOException e) {
+            log.warn("Cannot read playlist: {}", playlist, e);
+            return false;
+        }
+    }
+
+    private static List<String> readSegmentNames(File playlist) throws IOException {
+        return Files.readAllLines(playlist.toPath()).stream()
+                .map(String::trim)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .distinct()
+                .toList();
+    }
+
+    private static int segmentIndex(File segment) {
+        String name = segment.getName();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.lastIndexOf('.')));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    static String getContentType(String fileName) {
+        if (fileName.endsWith(".m3u8")) {
+            return "application/vnd.apple.mpegurl";
+        } else if (fileName.endsWith(".ts")) {
+            return "video/MP2T";
+        } else if (fileName.endsWith(".aac")) {
+            return "audio/aac";
+        } else if (fileName.endsWith(".m4s") || fileName.endsWith(".mp4")) {
+            return "audio/mp4";
+        }
+        return "application/octet-stream";
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        log.info("Shutting down HLS uploader executor service");
+        watcherExecutor.shutdown();
+        try {
+            if (!watcherExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+                watcherExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            watcherExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package iuh.fit.se.servicetranscode.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.IntFunction;
+
+/**
+ * Segment durations of the HLS variants, with optional fast start.
+ * <p>
+ * With fast start the first {@code leading-segments} segments last {@code leading-segment-time} seconds, so
+ * a player can start after a small download, and the rest last {@code segment-time} seconds, overridable per
+ * quality with {@code segment-time.overrides} (e.g. {@code 48kbps:6,320kbps:6}).
+ * <p>
+ * ffmpeg's hls muxer only supports one segment duration for a VOD playlist ({@code -hls_init_time} applies to
+ * every segment when the list size is unlimited), so ffmpeg cuts fragments of the leading duration and the
+ * uploader groups consecutive fragments into the longer segments. Audio frames are all key frames, so a
+ * group of fragments is still a valid segment: concatenated MPEG-TS or CMAF chunks, or in single-file mode
+ * one byte range covering the fragments.
+ */
+@Component
+@Slf4j
+public class HlsSegmentation {
+
+    @Value("${transcode.hls.segment-time:10}")
+    private int segmentTime;
+
+    @Value("${transcode.hls.fast-start.enabled:true}")
+    private boolean fastStartEnabled;
+
+    @Value("${transcode.hls.fast-start.leading-segment-time:2}")
+    private int leadingSegmentTime;
+
+    @Value("${transcode.hls.fast-start.leading-segments:3}")
+    private int leadingSegments;
+
+    @Value("${transcode.hls.segment-time.overrides:}")
+    private String segmentTimeOverrides;
+
+    private final Map<String, Integer> segmentTimeByQuality = new HashMap<>();
+
+    @PostConstruct
+    void init() {
+        for (String entry : segmentTimeOverrides.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            String[] parts = entry.split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid segment time override: " + entry);
+            }
+            segmentTimeByQuality.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+        log.info("HLS segments: {}s, fast start: {}, overrides: {}",
+                segmentTime, fastStartEnabled ? leadingSegments + " x " + leadingSegmentTime + "s" : "disabled",
+                segmentTimeByQuality);
+    }
+
+    public Layout layout(String quality) {
+        int time = segmentTimeByQuality.getOrDefault(quality, segmentTime);
+        if (!fastStartEnabled || leadingSegments <= 0 || leadingSegmentTime >= time) {
+            return new Layout(time, 0, 1);
+        }
+        int fragmentsPerSegment = Math.max(1, Math.round((float) time / leadingSegmentTime));
+        if (fragmentsPerSegment * leadingSegmentTime != time) {
+            log.warn("Segment time {}s of {} is not a multiple of the leading segment time, using {}s",
+                    time, quality, fragmentsPerSegment * leadingSegmentTime);
+        }
+        return new Layout(leadingSegmentTime, leadingSegments, fragmentsPerSegment);
+    }
+
+    /**
+     * How ffmpeg's fragments map to the published segments.
+     *
+     * @param fragmentTime        {@code -hls_time} passed to ffmpeg
+     * @param leadingSegments     number of leading segments made of a single fragment
+     * @param fragmentsPerSegment fragments grouped into each following segment
+     */
+    public record Layout(int fragmentTime, int leadingSegments, int fragmentsPerSegment) {
+
+        public boolean isGrouped() {
+            return fragmentsPerSegment > 1;
+        }
+
+        public int segmentOf(int fragmentIndex) {
+            return fragmentIndex < leadingSegments
+                    ? fragmentIndex
+                    : leadingSegments + (fragmentIndex - leadingSegments) / fragmentsPerSegment;
+        }
+
+        /**
+         * Whether the fragment is the last one of its segment, so the segment can be published.
+         */
+        public boolean endsSegment(int fragmentIndex) {
+            return segmentOf(fragmentIndex + 1) != segmentOf(fragmentIndex);
+        }
+    }
+
+    /**
+     * Rewrite the playlist written by ffmpeg so that each entry covers a segment instead of a fragment.
+     *
+     * @param lines       lines of ffmpeg's playlist
+     * @param segmentName URI of a published segment by index, ignored in single-file mode where the URI is kept
+     */
+    static String groupPlaylist(List<String> lines, Layout layout, HlsSegmentFormat format,
+                                IntFunction<String> segmentName) throws IOException {
+        List<String> header = new ArrayList<>();
+        List<String> footer = new ArrayList<>();
+        List<Fragment> fragments = new ArrayList<>();
+
+        long nextOffset = 0;
+        Double duration = null;
+        long[] range = null;
+        for (String raw : lines) {
+            String line = raw.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith("#EXTINF:")) {
+                duration = Double.parseDouble(line.substring("#EXTINF:".length()).split(",")[0]);
+            } else if (line.startsWith("#EXT-X-BYTERANGE:")) {
+                String[] parts = line.substring("#EXT-X-BYTERANGE:".length()).split("@");
+                long length = Long.parseLong(parts[0]);
+                long offset = parts.length > 1 ? Long.parseLong(parts[1]) : nextOffset;
+                range = new long[]{length, offset};
+                nextOffset = offset + length;
+            } else if (!line.startsWith("#")) {
+                if (duration == null) {
+                    throw new IOException("Segment without #EXTINF in playlist: " + line);
+                }
+                fragments.add(new Fragment(duration, range, line));
+                duration = null;
+                range = null;
+            } else if (fragments.isEmpty() && duration == null) {
+                header.add(line);
+            } else {
+                footer.add(line);
+            }
+        }
+
+        StringBuilder entries = new StringBuilder();
+        double maxDuration = 0;
+        int start = 0;
+        while (start < fragments.size()) {
+            int segment = layout.segmentOf(start);
+            int end = start;
+            while (end + 1 < fragments.size() && layout.segmentOf(end + 1) == segment) {
+                end++;
+            }
+
+            double segmentDuration = 0;
+            long length = 0;
+            for (Fragment fragment : fragments.subList(start, end + 1)) {
+                segmentDuration += fragment.duration();
+                length += fragment.range() == null ? 0 : fragment.range()[0];
+            }
+            maxDuration = Math.max(maxDuration, segmentDuration);
+
+            Fragment first = fragments.get(start);
+            entries.append(String.format(Locale.ROOT, "#EXTINF:%.6f,\n", segmentDuration));
+            if (format.isSingleFile()) {
+                entries.append("#EXT-X-BYTERANGE:").append(length).append('@').append(first.range()[1]).append('\n');
+                entries.append(first.uri()).append('\n');
+            } else {
+                entries.append(segmentName.apply(segment)).append('\n');
+            }
+            start = end + 1;
+        }
+
+        StringBuilder playlist = new StringBuilder();
+        for (String line : header) {
+            if (line.startsWith("#EXT-X-TARGETDURATION:")) {
+                line = "#EXT-X-TARGETDURATION:" + Math.max(1, Math.round(maxDuration));
+            }
+            playlist.append(line).append('\n');
+        }
+        playlist.append(entries);
+        for (String line : footer) {
+            playlist.append(line).append('\n');
+        }
+        return playlist.toString();
+    }
+
+    private record Fragment(double duration, long[] range, String uri) {
+    }
+}
@@ -0,0 +1,162 @@
+package iuh.fit.se.servicetranscode.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.ProcessFunction;
+import net.bramp.ffmpeg.RunProcessFunction;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cancellation of the transcode work running on this node.
+ * <p>
+ * A job or stage task registers a {@link Run} for its temp directory, and every ffmpeg and ffprobe process
+ * is started through this class, which keeps their command lines. Everything a run does happens in its temp
+ * directory, so cancelling a run destroys the processes whose command line names that directory and refuses
+ * to start new ones there; the run's retry loops see the cancellation and unwind with
+ * {@link JobCancelledException}. The CPU time the stopped processes had used is published as
+ * {@code transcode.cancel.cpu.seconds}.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class JobCancellation implements ProcessFunction {
+
+    private final MeterRegistry meterRegistry;
+
+    private final ProcessFunction processes = new RunProcessFunction();
+    private final Set<Run> runs = ConcurrentHashMap.newKeySet();
+    private final Map<Process, List<String>> liveProcesses = new ConcurrentHashMap<>();
+
+    private Counter cancelledCpuSeconds;
+
+    @PostConstruct
+    void init() {
+        cancelledCpuSeconds = Counter.builder("transcode.cancel.cpu.seconds")
+                .description("CPU time used by ffmpeg processes stopped by a cancellation")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Register work running in the given directory; close the run when the work ends.
+     */
+    public Run register(UUID songId, String rawObjectKey, Path workDir) {
+        Run run = new Run(songId, rawObjectKey, workDir.toAbsolutePath().toString());
+        runs.add(run);
+        return run;
+    }
+
+    /**
+     * Cancel the runs of a song and stop their processes.
+     *
+     * @param rawObjectKey only cancel runs of this upload, or null for every run of the song
+     * @return the number of runs cancelled
+     */
+    public int cancel(UUID songId, String rawObjectKey) {
+        int cancelled = 0;
+        for (Run run : runs) {
+            if (run.songId.equals(songId) && (rawObjectKey == null || rawObjectKey.equals(run.rawObjectKey))
+                    && !run.cancelled) {
+                run.cancelled = true;
+                cancelled++;
+            }
+        }
+        if (cancelled > 0) {
+            double cpuSeconds = destroyCancelledProcesses();
+            log.info("Cancelled {} run(s) of songId: {}, stopped ffmpeg after {}s of CPU time",
+                    cancelled, songId, String.format("%.1f", cpuSeconds));
+        }
+        return cancelled;
+    }
+
+    /**
+     * Whether the path lies in the directory of a cancelled run.
+     */
+    public boolean isCancelled(Path path) {
+        Path absolute = path.toAbsolutePath();
+        return runs.stream().anyMatch(run -> run.cancelled && absolute.startsWith(run.workDir));
+    }
+
+    @Override
+    public Process run(List<String> args) throws IOException {
+        if (cancelledRunOf(args) != null) {
+            throw new IOException("Transcode job cancelled");
+        }
+        Process process = processes.run(args);
+        liveProcesses.put(process, args);
+        process.onExit().thenRun(() -> liveProcesses.remove(process));
+
+        // The run may have been cancelled while the process started
+        if (cancelledRunOf(args) != null) {
+            destroyCancelledProcesses();
+        }
+        return process;
+    }
+
+    private double destroyCancelledProcesses() {
+        double cpuSeconds = 0;
+        for (Map.Entry<Process, List<String>> entry : liveProcesses.entrySet()) {
+            if (cancelledRunOf(entry.getValue()) == null) {
+                continue;
+            }
+            Process process = entry.getKey();
+            cpuSeconds += process.info().totalCpuDuration().map(Duration::toMillis).orElse(0L) / 1000.0;
+            process.destroyForcibly();
+        }
+        cancelledCpuSeconds.increment(cpuSeconds);
+        return cpuSeconds;
+    }
+
+    private Run cancelledRunOf(List<String> args) {
+        for (Run run : runs) {
+            if (run.cancelled && args.stream().anyMatch(arg -> arg.contains(run.workDir))) {
+                return run;
+            }
+        }
+        return null;
+    }
+
+    public class Run implements AutoCloseable {
+        private final UUID songId;
+        private final String rawObjectKey;
+        private final String workDir;
+        private volatile boolean cancelled;
+
+        private Run(UUID songId, String rawObjectKey, String workDir) {
+            this.songId = songId;
+            this.rawObjectKey = rawObjectKey;
+            this.workDir = workDir;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Cancel this run alone, e.g. when part of a job fails, and stop its processes.
+         */
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                destroyCancelledProcesses();
+            }
+        }
+
+        @Override
+        public void close() {
+            runs.remove(this);
+        }
+    }
+}
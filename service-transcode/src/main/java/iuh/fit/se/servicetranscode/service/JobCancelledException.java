@@ -0,0 +1,14 @@
+package iuh.fit.se.servicetranscode.service;
+
+import java.util.UUID;
+
+/**
+ * Thrown when a job stops because it was cancelled. The job's outputs are removed and a CANCELLED result is
+ * reported instead of a failure.
+ */
+public class JobCancelledException extends RuntimeException {
+
+    public JobCancelledException(UUID songId, Throwable cause) {
+        super("Transcode job cancelled for songId: " + songId, cause);
+    }
+}
@@ -0,0 +1,155 @@
+package iuh.fit.se.servicetranscode.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.minio.GetObjectArgs;
+import io.minio.MinioClient;
+import io.minio.PutObjectArgs;
+import io.minio.RemoveObjectArgs;
+import io.minio.errors.ErrorResponseException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Per-job checkpoints stored next to the rendition as {@code hls/{songId}/job-state.json}.
+ * <p>
+ * The checkpoint holds the job's planned bitrate ladder, and a quality is recorded once its playlist and
+ * every segment are in MinIO, so a retried, redelivered or requeued job only encodes the qualities that
+ * are still missing. The checkpoint is removed when the master playlist has been uploaded.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class JobCheckpointStore {
+
+    static final String CHECKPOINT_NAME = "job-state.json";
+
+    private final MinioClient minioClient;
+    private final ObjectMapper objectMapper;
+
+    @Value("${minio.bucket-name}")
+    private String bucketName;
+
+    /**
+     * Load the checkpoint of a job, or start an empty one. A checkpoint written for a different raw
+     * object (the song was re-uploaded) is ignored.
+     */
+    public Checkpoint open(String s3PathPrefix, String rawObjectKey) {
+        String objectKey = s3PathPrefix + CHECKPOINT_NAME;
+        JobState state = read(objectKey)
+                .filter(s -> rawObjectKey.equals(s.rawObjectKey()))
+                .orElse(new JobState(rawObjectKey, 0, List.of(), List.of()));
+        return new Checkpoint(objectKey, state);
+    }
+
+    private Optional<JobState> read(String objectKey) {
+        try (InputStream stream = minioClient.getObject(GetObjectArgs.builder()
+                .bucket(bucketName)
+                .object(objectKey)
+                .build())) {
+            return Optional.of(objectMapper.readValue(stream, JobState.class));
+        } catch (ErrorResponseException e) {
+            if (!"NoSuchKey".equals(e.errorResponse().code())) {
+                log.warn("Cannot read job checkpoint: {}. Error: {}", objectKey, e.getMessage());
+            }
+            return Optional.empty();
+        } catch (Exception e) {
+            log.warn("Cannot read job checkpoint: {}. Error: {}", objectKey, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    public class Checkpoint {
+        private final String objectKey;
+        private final String rawObjectKey;
+        private final Set<String> completedQualities;
+        private List<String> plannedQualities;
+        private int duration;
+
+        private Checkpoint(String objectKey, JobState state) {
+            this.objectKey = objectKey;
+            this.rawObjectKey = state.rawObjectKey();
+            this.completedQualities = new LinkedHashSet<>(orEmpty(state.completedQualities()));
+            this.plannedQualities = List.copyOf(orEmpty(state.plannedQualities()));
+            this.duration = state.duration();
+        }
+
+        public synchronized Set<String> completedQualities() {
+            return Set.copyOf(completedQualities);
+        }
+
+        /**
+         * Probed duration of the source, or 0 when the job has not probed it yet.
+         */
+        public synchronized int duration() {
+            return duration;
+        }
+
+        /**
+         * Qualities of the bitrate ladder planned for the source, empty until the source was probed.
+         */
+        public synchronized List<String> plannedQualities() {
+            return plannedQualities;
+        }
+
+        public synchronized void setPlan(int duration, List<String> plannedQualities) {
+            this.duration = duration;
+            this.plannedQualities = List.copyOf(plannedQualities);
+        }
+
+        /**
+         * Whether every planned quality is uploaded, so the source does not need to be opened again.
+         */
+        public synchronized boolean isComplete() {
+            return duration > 0 && !plannedQualities.isEmpty() && completedQualities.containsAll(plannedQualities);
+        }
+
+        /**
+         * Record a quality whose playlist and segments are fully uploaded. Failing to write the
+         * checkpoint only costs a re-encode on the next attempt, so errors are logged and ignored.
+         */
+        public synchronized void markCompleted(String quality) {
+            completedQualities.add(quality);
+            try {
+                byte[] content = objectMapper.writeValueAsBytes(
+                        new JobState(rawObjectKey, duration, plannedQualities, new ArrayList<>(completedQualities)));
+                minioClient.putObject(PutObjectArgs.builder()
+                        .bucket(bucketName)
+                        .object(objectKey)
+                        .stream(new ByteArrayInputStream(content), content.length, -1)
+                        .contentType("application/json")
+                        .build());
+            } catch (Exception e) {
+                log.warn("Cannot write job checkpoint: {}. Error: {}", objectKey, e.getMessage());
+            }
+        }
+
+        public synchronized void clear() {
+            try {
+                minioClient.removeObject(RemoveObjectArgs.builder()
+                        .bucket(bucketName)
+                        .object(objectKey)
+                        .build());
+            } catch (Exception e) {
+                log.warn("Cannot remove job checkpoint: {}. Error: {}", objectKey, e.getMessage());
+            }
+        }
+    }
+
+    private static List<String> orEmpty(List<String> qualities) {
+        return qualities == null ? List.of() : qualities;
+    }
+
+    public record JobState(String rawObjectKey, int duration, List<String> plannedQualities,
+                           List<String> completedQualities) {
+    }
+}
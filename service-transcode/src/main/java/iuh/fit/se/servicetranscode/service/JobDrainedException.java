@@ -0,0 +1,14 @@
+package iuh.fit.se.servicetranscode.service;
+
+import java.util.UUID;
+
+/**
+ * Thrown when a job stops because the worker is shutting down. The job is handed back to the job table
+ * and the next worker resumes from the job's checkpoint.
+ */
+public class JobDrainedException extends RuntimeException {
+
+    public JobDrainedException(UUID songId, Throwable cause) {
+        super("Transcode job drained for songId: " + songId, cause);
+    }
+}
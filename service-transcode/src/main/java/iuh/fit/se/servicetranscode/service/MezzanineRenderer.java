@@ -0,0 +1,207 @@
+package iuh.fit.se.servicetranscode.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.minio.DownloadObjectArgs;
+import io.minio.ListObjectsArgs;
+import io.minio.MinioClient;
+import io.minio.Result;
+import io.minio.messages.Item;
+import iuh.fit.se.servicetranscode.dto.request.VariantRenderRequest;
+import iuh.fit.se.servicetranscode.dto.response.VariantRenderResult;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a cold variant of a tiered rendition (see {@link BitrateLadder#stored}) from its mezzanine, the
+ * highest variant stored, when a player first asks for it. The variant is written next to the stored ones,
+ * with the layout they would have had if encoded at ingest; evicting it again is up to the stream service.
+ * <p>
+ * A player is waiting, so renders do not queue behind transcode jobs for a job slot: they have their own
+ * {@code transcode.tiered.render-concurrency} slots. A request whose caller stopped waiting, before or while
+ * it waits for a render slot, is dropped instead of rendered for nobody.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class MezzanineRenderer {
+
+    private final MinioClient minioClient;
+    private final TranscodeService transcodeService;
+    private final HlsSegmentUploader segmentUploader;
+    private final HlsSegmentation hlsSegmentation;
+    private final BitrateLadder bitrateLadder;
+    private final TranscodeScheduler transcodeScheduler;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${minio.bucket-name}")
+    private String bucketName;
+
+    @Value("${transcode.tiered.render-concurrency:2}")
+    private int renderConcurrency;
+
+    private Semaphore renderSlots;
+
+    @PostConstruct
+    void init() {
+        renderSlots = new Semaphore(Math.max(1, renderConcurrency));
+    }
+
+    public VariantRenderResult render(VariantRenderRequest request) {
+        UUID songId = request.getSongId();
+        String prefix = request.getRenditionPrefix();
+        String quality = request.getQuality();
+        if (songId == null || prefix == null || !prefix.startsWith(TranscodeService.outputPrefix(songId, null))
+                || !prefix.endsWith("/") || prefix.contains("..")) {
+            return failure("Invalid rendition prefix: " + prefix);
+        }
+        BitrateLadder.Rung rung = bitrateLadder.rung(quality).orElse(null);
+        if (rung == null) {
+            return failure("Unknown quality: " + quality);
+        }
+
+        long expiresAt = request.getExpiresAt() > 0 ? request.getExpiresAt() : Long.MAX_VALUE;
+        try {
+            long waitMillis = expiresAt - System.currentTimeMillis();
+            if (waitMillis <= 0 || !renderSlots.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                log.info("Dropped render of {} for songId: {}, the caller stopped waiting", quality, songId);
+                return failure("Render request expired");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failure("Render interrupted");
+        }
+
+        try {
+            Variants variants = listVariants(prefix);
+            if (variants.complete().contains(quality)) {
+                // Rendered meanwhile for another request
+                return success(variants.sizes().get(quality));
+            }
+            String mezzanine = variants.complete().stream()
+                    .filter(variant -> bitrateLadder.rung(variant).map(BitrateLadder.Rung::bitrate).orElse(0) > rung.bitrate())
+                    .max(Comparator.comparingInt(variant -> bitrateLadder.rung(variant).get().bitrate()))
+                    .orElse(null);
+            if (mezzanine == null) {
+                return failure("No variant above " + quality + " to render it from under " + prefix);
+            }
+
+            long start = System.nanoTime();
+            renderFrom(songId, prefix, mezzanine, rung);
+            Timer.builder("transcode.render.duration")
+                    .tag("quality", quality)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+            long sizeBytes = listVariants(prefix).sizes().getOrDefault(quality, 0L);
+            log.info("Rendered {} of songId: {} from {} ({} bytes) in {}ms", quality, songId, mezzanine, sizeBytes,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return success(sizeBytes);
+        } catch (Exception e) {
+            log.error("Render of {} failed for songId: {}. Error: {}", quality, songId, e.getMessage());
+            return failure(e.getMessage());
+        } finally {
+            renderSlots.release();
+        }
+    }
+
+    private void renderFrom(UUID songId, String prefix, String mezzanine, BitrateLadder.Rung rung) throws Exception {
+        Path tempDir = Files.createTempDirectory("render_" + songId);
+        int threads = transcodeScheduler.getThreadsPerJob();
+        transcodeScheduler.jobStarted();
+        try {
+            // The mezzanine is read through its own playlist, whatever segment layout it was stored with
+            Path mezzanineDir = tempDir.resolve("mezzanine");
+            downloadVariant(prefix + mezzanine + "/", mezzanineDir);
+            String input = mezzanineDir.resolve(HlsSegmentUploader.PLAYLIST_NAME).toString();
+
+            File qualityDir = transcodeService.prepareQualityDir(tempDir, rung.name());
+            HlsSegmentation.Layout layout = hlsSegmentation.layout(rung.name());
+            FFmpegBuilder builder = transcodeService.addHlsOutput(transcodeService.newBuilder(input, threads),
+                    qualityDir, rung, layout, threads);
+            HlsSegmentUploader.Upload upload = segmentUploader.start(qualityDir, prefix + rung.name() + "/",
+                    transcodeService.segmentFormat(), layout);
+            try {
+                transcodeService.runFfmpeg(builder);
+            } catch (Exception e) {
+                upload.abort();
+                throw e;
+            }
+            upload.finish().get(5, TimeUnit.MINUTES);
+        } finally {
+            transcodeScheduler.jobFinished();
+            transcodeService.cleanupTempDirectory(tempDir);
+        }
+    }
+
+    private void downloadVariant(String variantPrefix, Path dir) throws Exception {
+        Files.createDirectories(dir);
+        for (Result<Item> result : minioClient.listObjects(ListObjectsArgs.builder()
+                .bucket(bucketName)
+                .prefix(variantPrefix)
+                .build())) {
+            Item item = result.get();
+            if (item.isDir()) {
+                continue;
+            }
+            minioClient.downloadObject(DownloadObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(item.objectName())
+                    .filename(dir.resolve(item.objectName().substring(variantPrefix.length())).toString())
+                    .build());
+        }
+    }
+
+    /**
+     * Variants directly under the rendition prefix, with their stored size. Only variants whose playlist is
+     * uploaded are complete; the uploader writes it last.
+     */
+    private Variants listVariants(String prefix) throws Exception {
+        Map<String, Long> sizes = new HashMap<>();
+        Set<String> complete = new HashSet<>();
+        for (Result<Item> result : minioClient.listObjects(ListObjectsArgs.builder()
+                .bucket(bucketName)
+                .prefix(prefix)
+                .recursive(true)
+                .build())) {
+            Item item = result.get();
+            String[] path = item.objectName().substring(prefix.length()).split("/");
+            if (path.length != 2) {
+                // Master playlist, waveform or the renditions of other revisions
+                continue;
+            }
+            sizes.merge(path[0], item.size(), Long::sum);
+            if (HlsSegmentUploader.PLAYLIST_NAME.equals(path[1])) {
+                complete.add(path[0]);
+            }
+        }
+        return new Variants(sizes, complete);
+    }
+
+    private static VariantRenderResult success(long sizeBytes) {
+        return VariantRenderResult.builder().success(true).sizeBytes(sizeBytes).build();
+    }
+
+    private static VariantRenderResult failure(String message) {
+        return VariantRenderResult.builder().success(false).message(message).build();
+    }
+
+    private record Variants(Map<String, Long> sizes, Set<String> complete) {
+    }
+}
@@ -0,0 +1,157 @@
+package iuh.fit.se.servicetranscode.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.minio.MinioClient;
+import io.minio.PutObjectArgs;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.concurrent.*;
+
+/**
+ * I/O stage of the transcode pipeline: all MinIO uploads run here, on a pool separate from the
+ * CPU-bound encoders, so encoding and uploading scale independently and a busy encoder pool can
+ * never starve the uploads it waits on.
+ * <p>
+ * Concurrency is bounded by the pool size and memory/disk pressure by a cap on bytes in flight;
+ * callers get a future instead of blocking on each PUT.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class MinioUploadPipeline {
+
+    private final MinioClient minioClient;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${minio.bucket-name}")
+    private String bucketName;
+
+    @Value("${transcode.upload.concurrency:8}")
+    private int concurrency;
+
+    @Value("${transcode.upload.max-bytes-in-flight:67108864}")
+    private int maxBytesInFlight;
+
+    private ThreadPoolExecutor uploadExecutor;
+    private Semaphore bytesInFlight;
+    private Counter uploadedBytes;
+    private Counter failedUploads;
+    private Timer uploadTimer;
+
+    @PostConstruct
+    void init() {
+        uploadExecutor = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r);
+            thread.setName("minio-upload-" + thread.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        bytesInFlight = new Semaphore(maxBytesInFlight);
+
+        Gauge.builder("transcode.upload.queue.depth", uploadExecutor, e -> e.getQueue().size())
+                .description("Uploads waiting for a free upload thread")
+                .register(meterRegistry);
+        Gauge.builder("transcode.upload.active", uploadExecutor, ThreadPoolExecutor::getActiveCount)
+                .description("Uploads currently running")
+                .register(meterRegistry);
+        Gauge.builder("transcode.upload.bytes.in-flight", bytesInFlight, s -> maxBytesInFlight - s.availablePermits())
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        uploadedBytes = Counter.builder("transcode.upload.bytes")
+                .baseUnit("bytes")
+                .description("Bytes uploaded to MinIO")
+                .register(meterRegistry);
+        failedUploads = Counter.builder("transcode.upload.failures")
+                .register(meterRegistry);
+        uploadTimer = Timer.builder("transcode.upload.duration")
+                .description("Time spent on a single object upload")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Queue a file for upload. Blocks only while the bytes-in-flight cap is exhausted.
+     */
+    public CompletableFuture<Void> upload(File file, String objectKey, String contentType) throws InterruptedException {
+        long size = file.length();
+        return submit(objectKey, size, contentType, () -> new FileInputStream(file));
+    }
+
+    /**
+     * Queue an in-memory object (playlists) for upload.
+     */
+    public CompletableFuture<Void> upload(byte[] content, String objectKey, String contentType) throws InterruptedException {
+        return submit(objectKey, content.length, contentType, () -> new ByteArrayInputStream(content));
+    }
+
+    /**
+     * The returned future can be cancelled while the upload is still queued; the upload is then skipped.
+     */
+    private CompletableFuture<Void> submit(String objectKey, long size, String contentType,
+                                           Callable<InputStream> streamSupplier) throws InterruptedException {
+        // Objects larger than the cap still go through, alone
+        int permits = (int) Math.min(size, maxBytesInFlight);
+        bytesInFlight.acquire(permits);
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            uploadExecutor.execute(() -> {
+                try {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    try (InputStream stream = streamSupplier.call()) {
+                        minioClient.putObject(PutObjectArgs.builder()
+                                .bucket(bucketName)
+                                .object(objectKey)
+                                .stream(stream, size, -1)
+                                .contentType(contentType)
+                                .build());
+                        uploadTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        uploadedBytes.increment(size);
+                        log.debug("Uploaded: {}", objectKey);
+                        future.complete(null);
+                    } catch (Exception e) {
+                        failedUploads.increment();
+                        log.error("Failed to upload file: {}", objectKey, e);
+                        future.completeExceptionally(new RuntimeException("Upload failed: " + objectKey, e));
+                    }
+                } finally {
+                    bytesInFlight.release(permits);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            bytesInFlight.release(permits);
+            throw e;
+        }
+
+        return future;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        log.info("Shutting down MinIO upload executor service");
+        uploadExecutor.shutdown();
+        try {
+            if (!uploadExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+                uploadExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            uploadExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package iuh.fit.se.servicetranscode.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.minio.*;
+import io.minio.errors.ErrorResponseException;
+import io.minio.messages.Item;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed index of finished HLS renditions, stored in MinIO as
+ * {@code hls-index/{hash}.json -> {prefix, duration, qualities}}.
+ * <p>
+ * When an upload has the same content as a song that was already transcoded, the existing
+ * rendition is copied server-side to the new song's prefix instead of running ffmpeg again.
+ * Copies are used rather than pointing at the other prefix because the stream endpoints build
+ * object paths from the song id.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class RenditionIndex {
+
+    private static final String INDEX_PREFIX = "hls-index/";
+    private static final String MASTER_PLAYLIST = "master.m3u8";
+    private static final Pattern PLAIN_MD5_ETAG = Pattern.compile("^[0-9a-f]{32}$");
+
+    private final MinioClient minioClient;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final AudioAnalysis audioAnalysis;
+    private final SourceCache sourceCache;
+    private final BitrateLadder bitrateLadder;
+
+    @Value("${minio.bucket-name}")
+    private String bucketName;
+
+    @Value("${transcode.dedup.enabled:true}")
+    private boolean dedupEnabled;
+
+    /**
+     * Compute the content hash of a raw object.
+     * <p>
+     * Single-part uploads (presigned PUT) carry the MD5 of their content as ETag, so no extra read is
+     * needed. Multipart or encrypted objects have an opaque ETag: they are hashed from their copy in the
+     * source cache, and are not deduplicated when there is none, rather than reading the whole object from
+     * MinIO once more on top of the job's own read.
+     *
+     * @return the hash, or null when deduplication is disabled or the hash cannot be computed cheaply
+     */
+    public String contentHash(String rawObjectKey) {
+        if (!dedupEnabled) {
+            return null;
+        }
+        try {
+            StatObjectResponse stat = minioClient.statObject(StatObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(rawObjectKey)
+                    .build());
+            String etag = stat.etag() == null ? "" : stat.etag().replace("\"", "").toLowerCase();
+            if (PLAIN_MD5_ETAG.matcher(etag).matches()) {
+                return "md5-" + etag;
+            }
+
+            Optional<Path> cached = sourceCache.cachedFile(rawObjectKey, stat.etag());
+            if (cached.isEmpty()) {
+                log.debug("Opaque ETag and no cached copy of: {}, not deduplicating", rawObjectKey);
+                return null;
+            }
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            try (InputStream stream = new DigestInputStream(Files.newInputStream(cached.get()), digest)) {
+                stream.transferTo(OutputStream.nullOutputStream());
+            }
+            return "md5-" + HexFormat.of().formatHex(digest.digest());
+        } catch (Exception e) {
+            log.warn("Cannot compute content hash for: {}. Error: {}", rawObjectKey, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reuse an existing rendition for the given content, copying it under {@code targetPrefix}.
+     *
+     * @return the result for the new song, or empty when the content has not been transcoded yet
+     */
+    public Optional<TranscodeService.TranscodeResult> reuse(String contentHash, String targetPrefix) {
+        if (contentHash == null) {
+            return Optional.empty();
+        }
+        try {
+            Optional<Entry> entry = readEntry(contentHash);
+            if (entry.isEmpty() || !objectExists(entry.get().prefix() + MASTER_PLAYLIST)) {
+                countLookup(false);
+                return Optional.empty();
+            }
+
+            String sourcePrefix = entry.get().prefix();
+            if (!sourcePrefix.equals(targetPrefix)) {
+                copyRendition(sourcePrefix, targetPrefix, entry.get().qualityLevels());
+            }
+
+            countLookup(true);
+            log.info("Reused rendition {} for {} (content hash: {})", sourcePrefix, targetPrefix, contentHash);
+            return Optional.of(new TranscodeService.TranscodeResult(targetPrefix + MASTER_PLAYLIST,
+                    entry.get().duration(), entry.get().qualityLevels(), audioAnalysis.find(targetPrefix)));
+        } catch (Exception e) {
+            log.warn("Rendition reuse failed for hash: {}, transcoding instead. Error: {}", contentHash, e.getMessage());
+            countLookup(false);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Record a finished rendition so later uploads of the same content can reuse it.
+     */
+    public void record(String contentHash, String prefix, TranscodeService.TranscodeResult result) {
+        if (contentHash == null) {
+            return;
+        }
+        try {
+            byte[] content = objectMapper.writeValueAsBytes(
+                    new Entry(prefix, result.duration(), result.qualityLevels()));
+            minioClient.putObject(PutObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(INDEX_PREFIX + contentHash + ".json")
+                    .stream(new ByteArrayInputStream(content), content.length, -1)
+                    .contentType("application/json")
+                    .build());
+        } catch (Exception e) {
+            log.warn("Cannot record rendition index for hash: {}. Error: {}", contentHash, e.getMessage());
+        }
+    }
+
+    private Optional<Entry> readEntry(String contentHash) throws Exception {
+        try (InputStream stream = minioClient.getObject(GetObjectArgs.builder()
+                .bucket(bucketName)
+                .object(INDEX_PREFIX + contentHash + ".json")
+                .build())) {
+            return Optional.of(objectMapper.readValue(stream, Entry.class));
+        } catch (ErrorResponseException e) {
+            if ("NoSuchKey".equals(e.errorResponse().code())) {
+                return Optional.empty();
+            }
+            throw e;
+        }
+    }
+
+    private boolean objectExists(String objectKey) throws Exception {
+        try {
+            minioClient.statObject(StatObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(objectKey)
+                    .build());
+            return true;
+        } catch (ErrorResponseException e) {
+            if ("NoSuchKey".equals(e.errorResponse().code())) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Server-side copy of the rendition under the source prefix: the files next to its master playlist and its
+     * variant directories. Other directories, such as the revisions of a catalog re-transcode, belong to other
+     * renditions and are left out. In tiered mode only the variants stored at ingest are copied: variants the
+     * source song had rendered on demand are rendered again for the target when requested, so they are tracked
+     * and evicted like any other. The master playlist is copied last so the target never advertises variants
+     * that are not there yet.
+     */
+    private void copyRendition(String sourcePrefix, String targetPrefix, List<String> qualityLevels) throws Exception {
+        List<String> objectKeys = new ArrayList<>();
+        listObjects(sourcePrefix, false, objectKeys);
+        for (String quality : bitrateLadder.storedQualities(qualityLevels)) {
+            listObjects(sourcePrefix + quality + "/", true, objectKeys);
+        }
+
+        String masterKey = sourcePrefix + MASTER_PLAYLIST;
+        objectKeys.remove(masterKey);
+        objectKeys.add(masterKey);
+
+        for (String objectKey : objectKeys) {
+            minioClient.copyObject(CopyObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(targetPrefix + objectKey.substring(sourcePrefix.length()))
+                    .source(CopySource.builder()
+                            .bucket(bucketName)
+                            .object(objectKey)
+                            .build())
+                    .build());
+        }
+        log.debug("Copied {} objects from {} to {}", objectKeys.size(), sourcePrefix, targetPrefix);
+    }
+
+    private void listObjects(String prefix, boolean recursive, List<String> objectKeys) throws Exception {
+        for (Result<Item> result : minioClient.listObjects(ListObjectsArgs.builder()
+                .bucket(bucketName)
+                .prefix(prefix)
+                .recursive(recursive)
+                .build())) {
+            Item item = result.get();
+            if (!item.isDir()) {
+                objectKeys.add(item.objectName());
+            }
+        }
+    }
+
+    private void countLookup(boolean hit) {
+        Counter.builder("transcode.dedup.lookups")
+                .description("Content hash lookups; hit rate = result=hit / total")
+                .tag("result", hit ? "hit" : "miss")
+                .register(meterRegistry)
+                .increment();
+    }
+
+    public record Entry(String prefix, int duration, List<String> qualityLevels) {
+    }
+}
@@ -0,0 +1,322 @@
+package iuh.fit.se.servicetranscode.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.minio.GetObjectArgs;
+import io.minio.MinioClient;
+import io.minio.StatObjectArgs;
+import io.minio.StatObjectResponse;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Bounded on-disk cache of raw uploads, so retries, redeliveries, re-encodes and the stages of one job do not
+ * download the same object again.
+ * <p>
+ * Entries are keyed by object key and ETag, so an overwritten object is never served stale, and evicted least
+ * recently used first once {@code transcode.source-cache.max-bytes} is exceeded. A job gets a hard link to the
+ * cached file in its temp directory (a copy on another file system), so evicting an entry never pulls a file
+ * from under a running ffmpeg and the job's cleanup works as before. The cache directory is re-indexed on
+ * startup.
+ * <p>
+ * Sources that can be streamed from MinIO are streamed on their first read and cached from the second one on,
+ * so uploads transcoded once do not churn the cache. Metrics: {@code transcode.source-cache.requests} by
+ * result, {@code transcode.source-cache.bytes}, {@code transcode.source-cache.bytes.saved} and
+ * {@code transcode.source-cache.evictions}.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class SourceCache {
+
+    private static final String PART_SUFFIX = ".part";
+    private static final int MAX_TRACKED_READS = 4096;
+
+    private final MinioClient minioClient;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${minio.bucket-name}")
+    private String bucketName;
+
+    @Value("${transcode.source-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${transcode.source-cache.dir:}")
+    private String configuredDir;
+
+    @Value("${transcode.source-cache.max-bytes:10737418240}")
+    private long maxBytes;
+
+    private Path cacheDir;
+
+    /**
+     * Entry name to size, in access order. Guarded by {@code this}.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * Entries read once, in access order. Guarded by {@code this}.
+     */
+    private final Set<String> readOnce = Collections.newSetFromMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_TRACKED_READS;
+        }
+    });
+
+    private final Map<String, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+
+    private Counter evictions;
+    private Counter bytesSaved;
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) {
+            log.info("Source cache disabled");
+            return;
+        }
+        cacheDir = configuredDir == null || configuredDir.isBlank()
+                ? Path.of(System.getProperty("java.io.tmpdir"), "transcode-source-cache")
+                : Path.of(configuredDir);
+        Files.createDirectories(cacheDir);
+        loadEntries();
+
+        Gauge.builder("transcode.source-cache.bytes", this, cache -> cache.totalBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        evictions = meterRegistry.counter("transcode.source-cache.evictions");
+        bytesSaved = Counter.builder("transcode.source-cache.bytes.saved")
+                .description("Bytes served from the cache instead of MinIO")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        log.info("Source cache at {}: {} entries, {} of {} bytes", cacheDir, entries.size(), totalBytes, maxBytes);
+    }
+
+    /**
+     * Whether a source should be read from local disk rather than streamed: it is cached, or it was read
+     * before and will be cached now.
+     */
+    public boolean prefersLocalCopy(String objectKey) {
+        if (!enabled) {
+            return false;
+        }
+        try {
+            StatObjectResponse stat = stat(objectKey);
+            if (stat.size() > maxBytes) {
+                return false;
+            }
+            String name = entryName(objectKey, stat.etag());
+            synchronized (this) {
+                return entries.containsKey(name) || !readOnce.add(name);
+            }
+        } catch (Exception e) {
+            log.warn("Cannot look up source cache for: {}. Error: {}", objectKey, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Place the object at the target path from the cache, downloading it into the cache first on a miss.
+     *
+     * @return false when the cache is disabled or cannot serve the object; the caller downloads it itself
+     */
+    public boolean fetch(String objectKey, Path target) {
+        if (!enabled) {
+            return false;
+        }
+        try {
+            StatObjectResponse stat = stat(objectKey);
+            if (stat.size() > maxBytes) {
+                return false;
+            }
+            String name = entryName(objectKey, stat.etag());
+            Path cached = cacheDir.resolve(name);
+
+            boolean hit = touch(name, cached);
+            if (!hit) {
+                cached = download(objectKey, name, stat.size());
+            }
+            link(cached, target);
+
+            meterRegistry.counter("transcode.source-cache.requests", "result", hit ? "hit" : "miss").increment();
+            if (hit) {
+                bytesSaved.increment(stat.size());
+                log.info("Source cache hit for: {} ({} bytes)", objectKey, stat.size());
+            }
+            return true;
+        } catch (Exception e) {
+            // An entry evicted between the lookup and the link is simply downloaded again by the caller
+            log.warn("Source cache cannot serve: {}. Error: {}", objectKey, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * The cached file of an object version, without downloading it. The entry may be evicted while the caller
+     * reads it; an open file stays readable.
+     */
+    public Optional<Path> cachedFile(String objectKey, String etag) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        String name = entryName(objectKey, etag);
+        synchronized (this) {
+            return entries.containsKey(name) ? Optional.of(cacheDir.resolve(name)) : Optional.empty();
+        }
+    }
+
+    private synchronized boolean touch(String name, Path cached) {
+        if (entries.get(name) == null) {
+            return false;
+        }
+        try {
+            // Keeps the access order across restarts
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.debug("Cannot touch cached source: {}", cached);
+        }
+        return true;
+    }
+
+    /**
+     * Download an object into the cache. Concurrent misses of the same entry wait for a single download.
+     */
+    private Path download(String objectKey, String name, long size) throws Exception {
+        CompletableFuture<Path> download = new CompletableFuture<>();
+        CompletableFuture<Path> running = downloads.putIfAbsent(name, download);
+        if (running != null) {
+            return running.get();
+        }
+
+        try {
+            Path part = cacheDir.resolve(name + PART_SUFFIX);
+            Path cached = cacheDir.resolve(name);
+            try (InputStream stream = minioClient.getObject(GetObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(objectKey)
+                    .build())) {
+                Files.copy(stream, part, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(part, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            add(name, size);
+            log.info("Cached source: {} ({} bytes)", objectKey, size);
+            download.complete(cached);
+            return cached;
+        } catch (Exception e) {
+            download.completeExceptionally(e);
+            throw e;
+        } finally {
+            downloads.remove(name);
+        }
+    }
+
+    private synchronized void add(String name, long size) {
+        Long previous = entries.put(name, size);
+        totalBytes += size - (previous == null ? 0 : previous);
+        readOnce.remove(name);
+        evict(name);
+    }
+
+    /**
+     * Evict least recently used entries until the cache fits its budget. Jobs keep their links to evicted files.
+     */
+    private synchronized void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(cacheDir.resolve(entry.getKey()));
+            } catch (IOException e) {
+                log.warn("Cannot evict cached source: {}. Error: {}", entry.getKey(), e.getMessage());
+                continue;
+            }
+            totalBytes -= entry.getValue();
+            iterator.remove();
+            if (evictions != null) {
+                evictions.increment();
+            }
+        }
+    }
+
+    private static void link(Path cached, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, cached);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            if (e instanceof NoSuchFileException) {
+                throw (NoSuchFileException) e;
+            }
+            Files.copy(cached, target);
+        }
+    }
+
+    private void loadEntries() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(cacheDir)) {
+            files = stream.filter(Files::isRegularFile).toList();
+        }
+        List<Path> cachedFiles = new ArrayList<>();
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith(PART_SUFFIX)) {
+                // Left over from a download interrupted by a restart
+                Files.deleteIfExists(file);
+            } else {
+                cachedFiles.add(file);
+            }
+        }
+        cachedFiles.sort(Comparator.comparing(SourceCache::lastModified));
+        synchronized (this) {
+            for (Path file : cachedFiles) {
+                long size = Files.size(file);
+                entries.put(file.getFileName().toString(), size);
+                totalBytes += size;
+            }
+            evict(null);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private StatObjectResponse stat(String objectKey) throws Exception {
+        return minioClient.statObject(StatObjectArgs.builder()
+                .bucket(bucketName)
+                .object(objectKey)
+                .build());
+    }
+
+    private static String entryName(String objectKey, String etag) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((objectKey + "\n" + etag).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package iuh.fit.se.servicetranscode.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.minio.GetObjectArgs;
+import io.minio.MinioClient;
+import io.minio.StatObjectArgs;
+import io.minio.StatObjectResponse;
+import io.minio.errors.ErrorResponseException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+
+/**
+ * Pre-flight check of a raw upload before its job is queued.
+ * <p>
+ * Two ranged GETs read the first {@code head-bytes} and the last {@code tail-bytes} of the object, and
+ * {@link AudioSniffer} identifies the container from its magic bytes and estimates duration and bitrate from
+ * its headers. Missing and empty objects, and objects with a known signature whose header is malformed, are
+ * rejected without taking a job slot or downloading them. Objects without a known signature are let through
+ * for ffprobe to judge, as many valid files do not open with one. The estimate drives scheduling: an express request for a source longer than
+ * {@code express-max-duration-seconds} is moved to the standard lane.
+ * <p>
+ * A check that cannot read the object lets the job through, the transcode reports the error.
+ * Metrics: {@code transcode.preflight.checked} by format, {@code transcode.preflight.rejected} by reason,
+ * {@code transcode.preflight.bytes.read} and {@code transcode.preflight.bytes.saved}, the bytes of rejected
+ * uploads that were not downloaded.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class SourcePreflight {
+
+    private final MinioClient minioClient;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${minio.bucket-name}")
+    private String bucketName;
+
+    @Value("${transcode.preflight.enabled:true}")
+    private boolean enabled;
+
+    @Value("${transcode.preflight.head-bytes:65536}")
+    private int headBytes;
+
+    @Value("${transcode.preflight.tail-bytes:16384}")
+    private int tailBytes;
+
+    @Value("${transcode.preflight.express-max-duration-seconds:1200}")
+    private int expressMaxDurationSeconds;
+
+    /**
+     * @param format   sniffed container, null when the object was not inspected
+     * @param duration estimated duration in seconds, or null
+     * @param bitrate  estimated bitrate in bits per second, or null
+     * @param reason   why the upload is rejected, null when accepted
+     */
+    public record Result(String format, String codec, Double duration, Integer bitrate, long size, String reason) {
+
+        public boolean isRejected() {
+            return reason != null;
+        }
+    }
+
+    public Result inspect(String rawObjectKey) {
+        if (!enabled) {
+            return new Result(null, null, null, null, -1, null);
+        }
+
+        long size;
+        try {
+            StatObjectResponse stat = minioClient.statObject(StatObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(rawObjectKey)
+                    .build());
+            size = stat.size();
+        } catch (ErrorResponseException e) {
+            if ("NoSuchKey".equals(e.errorResponse().code())) {
+                return reject(rawObjectKey, "missing", 0, 0);
+            }
+            log.warn("Pre-flight cannot stat: {}. Error: {}", rawObjectKey, e.getMessage());
+            return new Result(null, null, null, null, -1, null);
+        } catch (Exception e) {
+            log.warn("Pre-flight cannot stat: {}. Error: {}", rawObjectKey, e.getMessage());
+            return new Result(null, null, null, null, -1, null);
+        }
+        if (size == 0) {
+            return reject(rawObjectKey, "empty", 0, 0);
+        }
+
+        byte[] head;
+        byte[] tail;
+        try {
+            head = readRange(rawObjectKey, 0, Math.min(size, headBytes));
+            tail = size > headBytes
+                    ? readRange(rawObjectKey, Math.max(headBytes, size - tailBytes), Math.min(tailBytes, size - headBytes))
+                    : new byte[0];
+        } catch (Exception e) {
+            log.warn("Pre-flight cannot read: {}. Error: {}", rawObjectKey, e.getMessage());
+            return new Result(null, null, null, null, size, null);
+        }
+        long bytesRead = head.length + tail.length;
+        meterRegistry.counter("transcode.preflight.bytes.read").increment(bytesRead);
+
+        String headerError = AudioSniffer.headerError(head);
+        if (headerError != null) {
+            log.info("Pre-flight found a malformed {} in: {}", headerError, rawObjectKey);
+            return reject(rawObjectKey, "invalid-header", size, bytesRead);
+        }
+        AudioSniffer.Sniff sniff = AudioSniffer.sniff(head, tail, size);
+        if (sniff == null) {
+            meterRegistry.counter("transcode.preflight.checked", "format", "unknown").increment();
+            log.info("Pre-flight {}: no known signature, left to the probe, {} bytes", rawObjectKey, size);
+            return new Result(null, null, null, null, size, null);
+        }
+        meterRegistry.counter("transcode.preflight.checked", "format", sniff.format()).increment();
+        log.info("Pre-flight {}: {} ({}), ~{}s at ~{} bps, {} bytes", rawObjectKey, sniff.format(), sniff.codec(),
+                sniff.duration() == null ? "?" : Math.round(sniff.duration()), sniff.bitrate(), size);
+        return new Result(sniff.format(), sniff.codec(), sniff.duration(), sniff.bitrate(), size, null);
+    }
+
+    /**
+     * The lane a job runs on: long sources do not take express slots.
+     */
+    public TranscodeScheduler.Lane route(TranscodeScheduler.Lane requested, Result result) {
+        if (requested == TranscodeScheduler.Lane.EXPRESS && result.duration() != null
+                && result.duration() > expressMaxDurationSeconds) {
+            log.info("Routing {}s source to the standard lane", Math.round(result.duration()));
+            return TranscodeScheduler.Lane.STANDARD;
+        }
+        return requested;
+    }
+
+    private Result reject(String rawObjectKey, String reason, long size, long bytesRead) {
+        log.warn("Pre-flight rejected: {} ({}, {} bytes)", rawObjectKey, reason, size);
+        meterRegistry.counter("transcode.preflight.rejected", "reason", reason).increment();
+        meterRegistry.counter("transcode.preflight.bytes.saved").increment(Math.max(0, size - bytesRead));
+        return new Result(null, null, null, null, size, reason);
+    }
+
+    private byte[] readRange(String objectKey, long offset, long length) throws Exception {
+        try (InputStream stream = minioClient.getObject(GetObjectArgs.builder()
+                .bucket(bucketName)
+                .object(objectKey)
+                .offset(offset)
+                .length(length)
+                .build())) {
+            return stream.readAllBytes();
+        }
+    }
+}
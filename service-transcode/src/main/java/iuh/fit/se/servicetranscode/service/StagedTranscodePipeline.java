@@ -0,0 +1,517 @@
+package iuh.fit.se.servicetranscode.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.minio.*;
+import io.minio.errors.ErrorResponseException;
+import io.minio.messages.Item;
+import iuh.fit.se.servicetranscode.config.RabbitMQConfig;
+import iuh.fit.se.servicetranscode.dto.request.TranscodeStageTask;
+import iuh.fit.se.servicetranscode.entity.TranscodeJob;
+import iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus;
+import iuh.fit.se.servicetranscode.repository.TranscodeJobRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.builder.FFmpegOutputBuilder;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transcode pipeline split into stages connected by RabbitMQ queues, enabled with
+ * {@code transcode.pipeline.staged.enabled}:
+ * <ol>
+ *     <li>probe: checks the rendition index, probes the raw upload and sends one encode task per variant
+ *     of the bitrate ladder (per stored variant in tiered mode)</li>
+ *     <li>encode: encodes one variant into an intermediate MP4 in MinIO; CPU bound, takes a job slot</li>
+ *     <li>package: segments the intermediate into HLS by stream copy and uploads it; I/O bound. The package
+ *     task that completes the ladder writes the master playlist and ends the job</li>
+ * </ol>
+ * Every stage has its own listener concurrency and can be switched off per node
+ * ({@code transcode.stages.*}), so encoders and packagers can run on different machines, and a slow
+ * variant no longer holds back the others. A failed task is retried {@code transcode.pipeline.max-attempts}
+ * times before the job fails.
+ * <p>
+ * The STAGED job holds a lease of {@code transcode.pipeline.lease-seconds}, renewed when a task starts and by
+ * heartbeats while it runs, so it must cover a task's wait in its stage queue. When a task is lost the lease
+ * expires and {@link TranscodeJobRunner} claims the job again; the tasks of the earlier claim are then
+ * dropped. A task dead-lettered from its stage queue fails the job. Stage timings are published as {@code transcode.stage.duration}, tagged with
+ * the stage and outcome, and running tasks as {@code transcode.stage.active}.
+ * <p>
+ * Unlike the single-pass path, every variant decodes the source on its own. The encode of the first encoded
+ * variant also measures the waveform and loudness of the source.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class StagedTranscodePipeline {
+
+    static final String STAGE_PROBE = "probe";
+    static final String STAGE_ENCODE = "encode";
+    static final String STAGE_PACKAGE = "package";
+
+    static final String STAGING_PREFIX = "transcode-staging/";
+    private static final String DONE_SUFFIX = ".done";
+
+    private final MinioClient minioClient;
+    private final RabbitTemplate rabbitTemplate;
+    private final MeterRegistry meterRegistry;
+    private final TranscodeService transcodeService;
+    private final TranscodeScheduler transcodeScheduler;
+    private final TranscodeJobRepository jobRepository;
+    private final TranscodeResultPublisher resultPublisher;
+    private final RenditionIndex renditionIndex;
+    private final BitrateLadder bitrateLadder;
+    private final HlsSegmentation hlsSegmentation;
+    private final HlsSegmentUploader segmentUploader;
+    private final MinioUploadPipeline uploadPipeline;
+    private final ChunkedEncoder chunkedEncoder;
+    private final JobCancellation jobCancellation;
+    private final AudioAnalysis audioAnalysis;
+
+    @Value("${minio.bucket-name}")
+    private String bucketName;
+
+    @Value("${transcode.pipeline.staged.enabled:false}")
+    private boolean enabled;
+
+    @Value("${transcode.pipeline.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${transcode.pipeline.lease-seconds:1800}")
+    private long leaseSeconds;
+
+    private final Map<String, AtomicInteger> activeTasks = new HashMap<>();
+    private final Set<TranscodeStageTask> runningTasks = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    void init() {
+        for (String stage : List.of(STAGE_PROBE, STAGE_ENCODE, STAGE_PACKAGE)) {
+            AtomicInteger active = new AtomicInteger();
+            activeTasks.put(stage, active);
+            Gauge.builder("transcode.stage.active", active, AtomicInteger::get)
+                    .tag("stage", stage)
+                    .register(meterRegistry);
+        }
+        if (enabled) {
+            log.info("Staged transcode pipeline enabled, {} attempts per task", maxAttempts);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    /**
+     * Hand a claimed job, already marked STAGED, to the probe stage.
+     */
+    public void submit(TranscodeJob job) {
+        TranscodeStageTask task = TranscodeStageTask.builder()
+                .songId(job.getSongId())
+                .rawObjectKey(job.getRawObjectKey())
+                .lane(job.getLane())
+                .revision(job.getRevision())
+                .jobAttempt(job.getAttempts())
+                .build();
+        try {
+            send(RabbitMQConfig.TRANSCODE_PROBE_ROUTING_KEY, task);
+        } catch (Exception e) {
+            fail(task, "Cannot submit transcode job: " + e.getMessage());
+        }
+    }
+
+    public void probe(TranscodeStageTask task) {
+        runStage(STAGE_PROBE, RabbitMQConfig.TRANSCODE_PROBE_ROUTING_KEY, task, tempDir -> {
+            String s3PathPrefix = s3PathPrefix(task);
+            // A re-transcode must not get back the rendition it replaces, so its source is not hashed
+            String contentHash = task.getRevision() == null
+                    ? renditionIndex.contentHash(task.getRawObjectKey())
+                    : null;
+            Optional<TranscodeService.TranscodeResult> reused = renditionIndex.reuse(contentHash, s3PathPrefix);
+            if (reused.isPresent()) {
+                complete(task, reused.get());
+                return;
+            }
+
+            // Markers of an earlier run of this song must not count towards this one
+            removeStagingObjects(task);
+
+            TranscodeService.AudioSource source = transcodeService.openAudioSource(task.getRawObjectKey(), tempDir);
+            List<BitrateLadder.Rung> plan = bitrateLadder.plan(source.probe());
+            // A re-transcoded song keeps its current rendition until the new one is complete
+            List<String> firstPass = transcodeService.isProgressiveEnabled() && task.getRevision() == null
+                    && !bitrateLadder.isTiered()
+                    ? bitrateLadder.firstPass(plan).stream().map(BitrateLadder.Rung::name).toList()
+                    : List.of();
+            List<BitrateLadder.Rung> stored = bitrateLadder.stored(plan);
+
+            TranscodeStageTask planned = task.toBuilder()
+                    .contentHash(contentHash)
+                    .duration(source.duration())
+                    .plannedQualities(plan.stream().map(BitrateLadder.Rung::name).toList())
+                    .firstPassQualities(firstPass)
+                    .coldQualities(plan.stream().filter(rung -> !stored.contains(rung)).map(BitrateLadder.Rung::name).toList())
+                    .attempt(0)
+                    .build();
+            for (BitrateLadder.Rung rung : stored) {
+                send(RabbitMQConfig.TRANSCODE_ENCODE_ROUTING_KEY, planned.toBuilder()
+                        .quality(rung.name())
+                        .streamCopy(rung.isStreamCopy())
+                        .build());
+            }
+            log.info("Planned staged transcode for songId: {} with qualities: {}",
+                    task.getSongId(), planned.getPlannedQualities());
+        });
+    }
+
+    public void encode(TranscodeStageTask task) {
+        runStage(STAGE_ENCODE, RabbitMQConfig.TRANSCODE_ENCODE_ROUTING_KEY, task, tempDir -> {
+            BitrateLadder.Rung rung = rungOf(task);
+            try (TranscodeScheduler.JobSlot slot = transcodeScheduler.acquire(task.getSongId(), task.getLane())) {
+                TranscodeService.AudioSource source = transcodeService.openAudioSource(task.getRawObjectKey(), tempDir);
+                String input = source.input();
+                AudioAnalysis.Pass analysis = task.getQuality().equals(encodedQualities(task).get(0))
+                        ? audioAnalysis.start(tempDir, source.probe())
+                        : AudioAnalysis.Pass.NONE;
+                if (chunkedEncoder.appliesTo(task.getDuration(), rung)) {
+                    // Long source: encode in parallel chunks, the intermediate is then written by stream copy
+                    input = chunkedEncoder.encode(task.getSongId(), input, tempDir.resolve("chunks"), rung,
+                            task.getDuration(), slot.threads()).getAbsolutePath();
+                    rung = rung.withStreamCopy();
+                }
+                File output = tempDir.resolve(rung.name() + ".m4a").toFile();
+
+                FFmpegOutputBuilder builder = transcodeService.newBuilder(input, slot.threads())
+                        .addOutput(output.getAbsolutePath())
+                        .setFormat("mp4")
+                        .setAudioCodec(rung.encoder())
+                        .addExtraArgs("-map", "0:a:0")
+                        .addExtraArgs("-threads", String.valueOf(slot.threads()))
+                        // The package stage reads the intermediate sequentially from MinIO
+                        .addExtraArgs("-movflags", "+faststart")
+                        .setStrict(FFmpegBuilder.Strict.EXPERIMENTAL);
+                if (rung.isStreamCopy()) {
+                    builder.addExtraArgs("-bsf:a", "aac_adtstoasc");
+                } else {
+                    builder.setAudioBitRate(rung.bitrate())
+                            .setAudioSampleRate(rung.sampleRate());
+                    if (rung.profile() != null) {
+                        builder.addExtraArgs("-profile:a", rung.profile());
+                    }
+                }
+                FFmpegBuilder encode = builder.done();
+                // A chunked variant is written from the joined stream, the analysis then decodes the source
+                boolean analysing = input.equals(source.input()) && analysis.attachTo(encode);
+                long encodeStart = System.nanoTime();
+                transcodeService.runFfmpeg(encode);
+                Timer.builder("transcode.encode.duration")
+                        .tag("mode", "staged")
+                        .tag("quality", rung.name())
+                        .register(meterRegistry)
+                        .record(System.nanoTime() - encodeStart, TimeUnit.NANOSECONDS);
+                analysis.completed(analysing);
+                transcodeService.analyse(analysis, source.input(), s3PathPrefix(task), slot.threads());
+
+                String intermediateKey = stagingPrefix(task) + rung.name() + ".m4a";
+                uploadPipeline.upload(output, intermediateKey, "audio/mp4").get(5, TimeUnit.MINUTES);
+
+                send(RabbitMQConfig.TRANSCODE_PACKAGE_ROUTING_KEY, task.toBuilder()
+                        .intermediateKey(intermediateKey)
+                        .attempt(0)
+                        .build());
+            }
+        });
+    }
+
+    public void packageVariant(TranscodeStageTask task) {
+        runStage(STAGE_PACKAGE, RabbitMQConfig.TRANSCODE_PACKAGE_ROUTING_KEY, task, tempDir -> {
+            String quality = task.getQuality();
+            File qualityDir = transcodeService.prepareQualityDir(tempDir, quality);
+            HlsSegmentation.Layout layout = hlsSegmentation.layout(quality);
+            String input = transcodeService.presignSourceUrl(task.getIntermediateKey());
+            FFmpegBuilder builder = transcodeService.addHlsOutput(transcodeService.newBuilder(input, 1),
+                    qualityDir, rungOf(task).withStreamCopy(), layout, 1);
+
+            HlsSegmentUploader.Upload upload = segmentUploader.start(qualityDir,
+                    s3PathPrefix(task) + quality + "/", transcodeService.segmentFormat(), layout);
+            try {
+                transcodeService.runFfmpeg(builder);
+            } catch (Exception e) {
+                upload.abort();
+                throw e;
+            }
+            upload.finish().get(5, TimeUnit.MINUTES);
+
+            uploadPipeline.upload(new byte[0], stagingPrefix(task) + quality + DONE_SUFFIX, "text/plain")
+                    .get(5, TimeUnit.MINUTES);
+            removeObject(task.getIntermediateKey());
+            log.info("Completed staged quality: {} for songId: {}", quality, task.getSongId());
+
+            publishProgress(task);
+        });
+    }
+
+    /**
+     * End the job once every planned variant is packaged, or publish a playable partial result once the
+     * first-pass variants are.
+     */
+    private void publishProgress(TranscodeStageTask task) throws Exception {
+        String s3PathPrefix = s3PathPrefix(task);
+        List<String> planned = task.getPlannedQualities();
+        List<String> encoded = encodedQualities(task);
+        List<String> done = encoded.stream().filter(quality -> isPackaged(task, quality)).toList();
+
+        if (done.size() == encoded.size()) {
+            String masterPlaylistKey = transcodeService.uploadMasterPlaylist(s3PathPrefix, planned);
+            complete(task, new TranscodeService.TranscodeResult(masterPlaylistKey, task.getDuration(), planned,
+                    audioAnalysis.find(s3PathPrefix)));
+            return;
+        }
+
+        List<String> firstPass = task.getFirstPassQualities();
+        if (firstPass != null && !firstPass.isEmpty() && firstPass.contains(task.getQuality())
+                && done.containsAll(firstPass)) {
+            String masterPlaylistKey = transcodeService.uploadMasterPlaylist(s3PathPrefix, done);
+            resultPublisher.publish(task.getSongId(), null, "PARTIAL",
+                    new TranscodeService.TranscodeResult(masterPlaylistKey, task.getDuration(), done));
+            log.info("Published partial result for songId: {} with qualities: {}", task.getSongId(), done);
+
+            // The last variant may have completed meanwhile; its full master playlist must win
+            if (encoded.stream().allMatch(quality -> isPackaged(task, quality))) {
+                transcodeService.uploadMasterPlaylist(s3PathPrefix, planned);
+            }
+        }
+    }
+
+    /**
+     * Planned variants that are encoded, i.e. all but the cold ones of a tiered rendition.
+     */
+    private static List<String> encodedQualities(TranscodeStageTask task) {
+        List<String> cold = task.getColdQualities() == null ? List.of() : task.getColdQualities();
+        return task.getPlannedQualities().stream().filter(quality -> !cold.contains(quality)).toList();
+    }
+
+    private void complete(TranscodeStageTask task, TranscodeService.TranscodeResult result) {
+        if (jobRepository.finishStaged(task.getSongId(), task.getRawObjectKey(), task.getJobAttempt(),
+                TranscodeJobStatus.SUCCEEDED, null, LocalDateTime.now()) == 0) {
+            return;
+        }
+        if (task.getPlannedQualities() != null) {
+            renditionIndex.record(task.getContentHash(), s3PathPrefix(task), result);
+        }
+        removeStagingObjects(task);
+        resultPublisher.publish(task.getSongId(), task.getRevision(), "SUCCESS", result);
+        log.info("Transcode thành công (staged) cho bài hát: {}. Đã gửi kết quả.", task.getSongId());
+    }
+
+    private void fail(TranscodeStageTask task, String message) {
+        log.error("Transcode thất bại cho bài hát: {}. Lỗi: {}", task.getSongId(), message);
+        if (jobRepository.finishStaged(task.getSongId(), task.getRawObjectKey(), task.getJobAttempt(),
+                TranscodeJobStatus.FAILED, message, LocalDateTime.now()) == 1) {
+            removeStagingObjects(task);
+            resultPublisher.publishFailure(task.getSongId(), task.getRevision(), message);
+        }
+    }
+
+    /**
+     * Fail the job of a task that was dead-lettered from its stage queue instead of leaving it staged.
+     */
+    public void deadLettered(TranscodeStageTask task) {
+        fail(task, "Stage task dead-lettered" + (task.getQuality() != null ? " for quality " + task.getQuality() : ""));
+    }
+
+    /**
+     * Renew the leases of the staged jobs whose tasks run on this node.
+     */
+    @Scheduled(fixedDelayString = "${transcode.jobs.heartbeat-interval-ms:15000}")
+    public void heartbeat() {
+        for (TranscodeStageTask task : runningTasks) {
+            try {
+                renewLease(task);
+            } catch (Exception e) {
+                log.warn("Cannot renew staged job lease for songId: {}. Error: {}", task.getSongId(), e.getMessage());
+            }
+        }
+    }
+
+    private void renewLease(TranscodeStageTask task) {
+        LocalDateTime now = LocalDateTime.now();
+        jobRepository.renewStaged(task.getSongId(), task.getRawObjectKey(), task.getJobAttempt(), now,
+                now.plusSeconds(leaseSeconds));
+    }
+
+    /**
+     * Run a stage task in its own temp directory, with metrics and retries. Tasks of a job that already ended
+     * or was re-submitted are dropped, and a task cancelled while it runs is neither retried nor failed.
+     *
+     * @throws JobDrainedException if the node drains while the task runs; the task is requeued
+     */
+    private void runStage(String stage, String routingKey, TranscodeStageTask task, StageWork work) {
+        if (!isCurrent(task)) {
+            log.info("Dropping {} task of an ended job for songId: {}", stage, task.getSongId());
+            return;
+        }
+
+        renewLease(task);
+
+        AtomicInteger active = activeTasks.get(stage);
+        active.incrementAndGet();
+        runningTasks.add(task);
+        transcodeScheduler.jobStarted();
+        long start = System.nanoTime();
+        String outcome = "success";
+        Path tempDir = null;
+        JobCancellation.Run run = null;
+        try {
+            tempDir = Files.createTempDirectory(stage + "_" + task.getSongId());
+            run = jobCancellation.register(task.getSongId(), task.getRawObjectKey(), tempDir);
+            work.run(tempDir);
+        } catch (Exception e) {
+            if (run != null && run.isCancelled()) {
+                outcome = "cancelled";
+                log.info("Stage {} cancelled for songId: {}", stage, task.getSongId());
+                // Uploads of this task may have landed after the cancelling worker cleaned up
+                if (jobRepository.existsBySongIdAndRawObjectKeyAndStatus(task.getSongId(), task.getRawObjectKey(),
+                        TranscodeJobStatus.CANCELLED)) {
+                    transcodeService.removeOutputs(task.getSongId(), task.getRevision());
+                }
+                return;
+            }
+            if (transcodeScheduler.isDraining()) {
+                outcome = "drained";
+                throw new JobDrainedException(task.getSongId(), e);
+            }
+            outcome = "failure";
+            handleFailure(stage, routingKey, task, e);
+        } finally {
+            if (run != null) {
+                run.close();
+            }
+            if (tempDir != null) {
+                transcodeService.cleanupTempDirectory(tempDir);
+            }
+            Timer.builder("transcode.stage.duration")
+                    .tag("stage", stage)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            transcodeScheduler.jobFinished();
+            runningTasks.remove(task);
+            active.decrementAndGet();
+        }
+    }
+
+    private void handleFailure(String stage, String routingKey, TranscodeStageTask task, Exception e) {
+        int attempt = task.getAttempt() + 1;
+        if (attempt < maxAttempts) {
+            log.warn("Stage {} attempt {} failed for songId: {} quality: {}. Error: {}",
+                    stage, attempt, task.getSongId(), task.getQuality(), e.getMessage());
+            try {
+                send(routingKey, task.toBuilder().attempt(attempt).build());
+                return;
+            } catch (Exception sendError) {
+                log.error("Cannot retry stage {} for songId: {}", stage, task.getSongId(), sendError);
+            }
+        }
+        log.error("Stage {} failed for songId: {}", stage, task.getSongId(), e);
+        fail(task, "Stage " + stage + " failed: " + e.getMessage());
+    }
+
+    private boolean isCurrent(TranscodeStageTask task) {
+        return jobRepository.findById(task.getSongId())
+                .filter(job -> job.getStatus() == TranscodeJobStatus.STAGED)
+                .filter(job -> job.getAttempts() == task.getJobAttempt())
+                .filter(job -> Objects.equals(job.getRawObjectKey(), task.getRawObjectKey()))
+                .isPresent();
+    }
+
+    /**
+     * Express jobs first, then the variants that make a song playable.
+     */
+    private void send(String routingKey, TranscodeStageTask task) {
+        int priority = task.getLane() == TranscodeScheduler.Lane.EXPRESS ? 3 : 1;
+        if (task.getFirstPassQualities() != null && task.getFirstPassQualities().contains(task.getQuality())) {
+            priority++;
+        }
+        int messagePriority = Math.min(priority, RabbitMQConfig.TRANSCODE_MAX_PRIORITY);
+        rabbitTemplate.convertAndSend(RabbitMQConfig.EXCHANGE, routingKey, task, message -> {
+            message.getMessageProperties().setPriority(messagePriority);
+            return message;
+        });
+    }
+
+    private BitrateLadder.Rung rungOf(TranscodeStageTask task) {
+        BitrateLadder.Rung rung = bitrateLadder.rung(task.getQuality())
+                .orElseThrow(() -> new IllegalStateException("Unknown quality in ladder: " + task.getQuality()));
+        return task.isStreamCopy() ? rung.withStreamCopy() : rung;
+    }
+
+    private boolean isPackaged(TranscodeStageTask task, String quality) {
+        try {
+            minioClient.statObject(StatObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(stagingPrefix(task) + quality + DONE_SUFFIX)
+                    .build());
+            return true;
+        } catch (ErrorResponseException e) {
+            return false;
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot check packaged quality: " + quality, e);
+        }
+    }
+
+    private void removeStagingObjects(TranscodeStageTask task) {
+        try {
+            for (Result<Item> result : minioClient.listObjects(ListObjectsArgs.builder()
+                    .bucket(bucketName)
+                    .prefix(stagingPrefix(task))
+                    .recursive(true)
+                    .build())) {
+                removeObject(result.get().objectName());
+            }
+        } catch (Exception e) {
+            log.warn("Cannot list staging objects of songId: {}. Error: {}", task.getSongId(), e.getMessage());
+        }
+    }
+
+    private void removeObject(String objectKey) {
+        try {
+            minioClient.removeObject(RemoveObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(objectKey)
+                    .build());
+        } catch (Exception e) {
+            log.warn("Cannot remove staging object: {}. Error: {}", objectKey, e.getMessage());
+        }
+    }
+
+    private static String s3PathPrefix(TranscodeStageTask task) {
+        return TranscodeService.outputPrefix(task.getSongId(), task.getRevision());
+    }
+
+    private static String stagingPrefix(TranscodeStageTask task) {
+        return STAGING_PREFIX + task.getSongId() + "/";
+    }
+
+    @FunctionalInterface
+    private interface StageWork {
+        void run(Path tempDir) throws Exception;
+    }
+}
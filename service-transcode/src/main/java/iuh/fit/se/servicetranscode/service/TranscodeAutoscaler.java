@@ -0,0 +1,197 @@
+package iuh.fit.se.servicetranscode.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import iuh.fit.se.servicetranscode.config.RabbitMQConfig;
+import iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus;
+import iuh.fit.se.servicetranscode.listener.TranscodeListener;
+import iuh.fit.se.servicetranscode.listener.TranscodeStageListener;
+import iuh.fit.se.servicetranscode.repository.TranscodeJobRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sizes this node to the transcode backlog.
+ * <p>
+ * Every {@code interval-ms} the backlog (jobs queued in the job table plus requests not yet accepted from
+ * the lanes), the age of the oldest queued job, the container's CPU load and the free space of the temp
+ * directory are sampled, and the node's job slots are moved by one:
+ * <ul>
+ *     <li>down while free disk is below {@code min-free-disk-bytes}, since every job writes its source and
+ *     segments there, and back up to the CPU budget's slots once there is room again;</li>
+ *     <li>above the CPU budget's slots, up to {@code transcode.scheduler.max-slots}, while every slot is busy,
+ *     the oldest job waited longer than {@code target-queue-age-seconds} or the backlog outnumbers the slots,
+ *     and CPU load is below {@code scale-up-cpu-load} (ffmpeg does not use all the threads it is given);</li>
+ *     <li>back towards the CPU budget's slots once CPU load reaches {@code scale-down-cpu-load}. Below that
+ *     count, CPU overload is left to the scheduler's pause.</li>
+ * </ul>
+ * The encode stage consumers follow the slot count, and each lane gets up to {@code max-accept-consumers}
+ * consumers while requests pile up in it.
+ * <p>
+ * {@code transcode.autoscale.load} is the backlog plus the running jobs per slot of this node: above 1 the
+ * cluster is short of capacity. It is exposed on {@code /actuator/metrics} for an external autoscaler.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class TranscodeAutoscaler {
+
+    private static final int ACCEPT_SCALE_UP_DEPTH = 50;
+
+    private final TranscodeJobRepository jobRepository;
+    private final TranscodeScheduler transcodeScheduler;
+    private final RabbitListenerEndpointRegistry listenerRegistry;
+    private final AmqpAdmin amqpAdmin;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${transcode.autoscale.enabled:true}")
+    private boolean enabled;
+
+    @Value("${transcode.autoscale.target-queue-age-seconds:60}")
+    private long targetQueueAgeSeconds;
+
+    @Value("${transcode.autoscale.scale-up-cpu-load:0.75}")
+    private double scaleUpCpuLoad;
+
+    @Value("${transcode.autoscale.scale-down-cpu-load:0.85}")
+    private double scaleDownCpuLoad;
+
+    @Value("${transcode.autoscale.min-free-disk-bytes:2147483648}")
+    private long minFreeDiskBytes;
+
+    @Value("${transcode.autoscale.max-accept-consumers:4}")
+    private int maxAcceptConsumers;
+
+    @Value("${transcode.stages.encode.concurrency:2}")
+    private int encodeConcurrency;
+
+    private final com.sun.management.OperatingSystemMXBean osBean =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    private final File tempDir = new File(System.getProperty("java.io.tmpdir"));
+    private final Map<String, Integer> consumers = new HashMap<>();
+
+    private volatile long backlog;
+    private volatile long oldestJobAgeSeconds;
+
+    @PostConstruct
+    void init() {
+        consumers.put(TranscodeListener.EXPRESS_LISTENER_ID, 1);
+        consumers.put(TranscodeListener.STANDARD_LISTENER_ID, 1);
+        consumers.put(TranscodeStageListener.ENCODE_LISTENER_ID, encodeConcurrency);
+
+        Gauge.builder("transcode.autoscale.backlog", this, a -> a.backlog)
+                .register(meterRegistry);
+        Gauge.builder("transcode.autoscale.oldest-job-age", this, a -> a.oldestJobAgeSeconds)
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        Gauge.builder("transcode.autoscale.disk.free", tempDir, File::getUsableSpace)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("transcode.autoscale.load", this,
+                        a -> (double) (a.backlog + transcodeScheduler.getRunningJobs()) / transcodeScheduler.getJobSlots())
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${transcode.autoscale.interval-ms:5000}")
+    public void scale() {
+        if (transcodeScheduler.isDraining()) {
+            return;
+        }
+        try {
+            long expressDepth = queueDepth(RabbitMQConfig.TRANSCODE_EXPRESS_QUEUE);
+            long standardDepth = queueDepth(RabbitMQConfig.TRANSCODE_STANDARD_QUEUE)
+                    + queueDepth(RabbitMQConfig.TRANSCODE_QUEUE);
+            LocalDateTime oldestQueuedAt = jobRepository.findOldestQueuedAt();
+            backlog = jobRepository.countByStatus(TranscodeJobStatus.QUEUED) + expressDepth + standardDepth;
+            oldestJobAgeSeconds = oldestQueuedAt == null
+                    ? 0 : Math.max(0, Duration.between(oldestQueuedAt, LocalDateTime.now()).toSeconds());
+            if (!enabled) {
+                return;
+            }
+
+            scaleJobSlots(osBean.getCpuLoad(), tempDir.getUsableSpace());
+            scaleAcceptConsumers(TranscodeListener.EXPRESS_LISTENER_ID, expressDepth);
+            scaleAcceptConsumers(TranscodeListener.STANDARD_LISTENER_ID, standardDepth);
+            // An encode task waits for a job slot, more consumers than slots would only hold tasks back from other nodes
+            setConsumers(TranscodeStageListener.ENCODE_LISTENER_ID, transcodeScheduler.getJobSlots());
+        } catch (Exception e) {
+            log.warn("Transcode autoscaling failed: {}", e.getMessage());
+        }
+    }
+
+    private void scaleJobSlots(double cpuLoad, long freeDiskBytes) {
+        int slots = transcodeScheduler.getJobSlots();
+        int cpuSlots = transcodeScheduler.getCpuSlots();
+        int target = slots;
+        if (freeDiskBytes < minFreeDiskBytes) {
+            target = slots - 1;
+        } else if (slots < cpuSlots) {
+            target = slots + 1;
+        } else if (slots > cpuSlots && cpuLoad >= scaleDownCpuLoad) {
+            target = slots - 1;
+        } else if (cpuLoad >= 0 && cpuLoad < scaleUpCpuLoad && backlog > 0
+                && transcodeScheduler.getRunningJobs() >= slots
+                && (oldestJobAgeSeconds >= targetQueueAgeSeconds || backlog > slots)) {
+            target = slots + 1;
+        }
+        transcodeScheduler.setJobSlots(target);
+        if (transcodeScheduler.getJobSlots() != slots) {
+            log.info("Transcode job slots {} -> {} (backlog {}, oldest job {}s, cpu load {}, free disk {} MB)",
+                    slots, transcodeScheduler.getJobSlots(), backlog, oldestJobAgeSeconds,
+                    String.format("%.2f", cpuLoad), freeDiskBytes / (1024 * 1024));
+        }
+    }
+
+    /**
+     * Accepting a request is short, one consumer per lane keeps up unless requests arrive in a burst.
+     */
+    private void scaleAcceptConsumers(String listenerId, long queueDepth) {
+        int current = consumers.get(listenerId);
+        if (queueDepth > ACCEPT_SCALE_UP_DEPTH) {
+            setConsumers(listenerId, Math.min(current + 1, maxAcceptConsumers));
+        } else if (queueDepth == 0) {
+            setConsumers(listenerId, Math.max(current - 1, 1));
+        }
+    }
+
+    private void setConsumers(String listenerId, int count) {
+        int current = consumers.get(listenerId);
+        MessageListenerContainer listenerContainer = listenerRegistry.getListenerContainer(listenerId);
+        if (count == current || !(listenerContainer instanceof SimpleMessageListenerContainer container)
+                || !container.isRunning()) {
+            return;
+        }
+        // The container rejects a concurrent consumer count above its maximum
+        if (count > current) {
+            container.setMaxConcurrentConsumers(count);
+            container.setConcurrentConsumers(count);
+        } else {
+            container.setConcurrentConsumers(count);
+            container.setMaxConcurrentConsumers(count);
+        }
+        consumers.put(listenerId, count);
+        log.info("Listener {} consumers {} -> {}", listenerId, current, count);
+    }
+
+    private long queueDepth(String queueName) {
+        QueueInformation info = amqpAdmin.getQueueInfo(queueName);
+        return info != null ? info.getMessageCount() : 0;
+    }
+}
@@ -0,0 +1,423 @@
+package iuh.fit.se.servicetranscode.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import iuh.fit.se.servicetranscode.dto.request.TranscodeRequestEvent;
+import iuh.fit.se.servicetranscode.entity.TranscodeJob;
+import iuh.fit.se.servicetranscode.entity.enums.TranscodeJobStatus;
+import iuh.fit.se.servicetranscode.repository.TranscodeJobRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Lease-based execution of transcode jobs.
+ * <p>
+ * The listener only records a job in the {@code transcode_jobs} table and acks the message, so a delivery
+ * is never held for the length of an encode. Workers claim queued jobs up to their job slot count, splitting
+ * the free slots between the lanes with the scheduler's express weight, and hold a lease of {@code transcode.jobs.lease-seconds}, renewed by heartbeats while the job runs. A job
+ * whose worker died is claimed again by any worker once its lease expired and resumes from its
+ * checkpoint; after {@code max-attempts} claims it is failed. Lease times use the workers' clocks, which
+ * must be kept in sync.
+ * <p>
+ * With the staged pipeline enabled the claim only hands the job to {@link StagedTranscodePipeline}: the job
+ * becomes STAGED under a lease its stages renew, and the last stage completes it. A staged job whose lease
+ * expired, because a task was lost or dead-lettered, is claimed again like a running one.
+ * <p>
+ * A cancelled job is stopped wherever it runs through {@link JobCancellation}; a run whose lease is lost to a
+ * cancellation or a re-upload is stopped at its next heartbeat as well.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class TranscodeJobRunner {
+
+    private final TranscodeJobRepository jobRepository;
+    private final TranscodeService transcodeService;
+    private final TranscodeScheduler transcodeScheduler;
+    private final TranscodeResultPublisher resultPublisher;
+    private final StagedTranscodePipeline stagedPipeline;
+    private final JobCancellation jobCancellation;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${transcode.jobs.worker-id:}")
+    private String workerId;
+
+    @Value("${transcode.jobs.lease-seconds:60}")
+    private long leaseSeconds;
+
+    @Value("${transcode.jobs.max-attempts:3}")
+    private int maxAttempts;
+
+    private final Map<UUID, RunningJob> runningJobs = new ConcurrentHashMap<>();
+
+    /**
+     * Express jobs claimed since the last standard one, carried across polls like the scheduler's slot grants.
+     */
+    private int expressClaimsInRow;
+
+    private ExecutorService jobExecutor;
+
+    @PostConstruct
+    void init() {
+        if (workerId == null || workerId.isBlank()) {
+            workerId = hostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        }
+        jobExecutor = Executors.newFixedThreadPool(transcodeScheduler.getMaxJobs(), r -> {
+            Thread thread = new Thread(r);
+            thread.setName("transcode-job-" + thread.getId());
+            return thread;
+        });
+        log.info("Transcode job runner {}: lease {}s, max {} attempts", workerId, leaseSeconds, maxAttempts);
+    }
+
+    /**
+     * Record a job received from the queue. A duplicate delivery of a job that is queued, or staged or running
+     * under a live lease, is ignored; a job for a new raw object, or a finished job, is queued again.
+     *
+     * @return whether the job was queued
+     */
+    @Transactional
+    public boolean accept(TranscodeRequestEvent event, TranscodeScheduler.Lane lane, int priority) {
+        LocalDateTime now = LocalDateTime.now();
+        TranscodeJob job = jobRepository.findById(event.getSongId()).orElse(null);
+
+        if (job != null && Objects.equals(job.getRawObjectKey(), event.getRawObjectKey())) {
+            if (job.getStatus() == TranscodeJobStatus.CANCELLED) {
+                log.info("Transcode job for songId: {} was cancelled, ignored", job.getSongId());
+                return false;
+            }
+            boolean queued = job.getStatus() == TranscodeJobStatus.QUEUED;
+            boolean leased = (job.getStatus() == TranscodeJobStatus.RUNNING
+                    || job.getStatus() == TranscodeJobStatus.STAGED)
+                    && job.getLeaseExpiresAt() != null && job.getLeaseExpiresAt().isAfter(now);
+            if (queued || leased) {
+                log.info("Duplicate transcode job for songId: {} ({}), ignored", job.getSongId(), job.getStatus());
+                return false;
+            }
+        }
+
+        if (job == null) {
+            job = TranscodeJob.builder().songId(event.getSongId()).build();
+        }
+        job.setRawObjectKey(event.getRawObjectKey());
+        job.setRevision(event.getRevision());
+        job.setLane(lane);
+        job.setPriority(priority);
+        job.setStatus(TranscodeJobStatus.QUEUED);
+        job.setLeaseOwner(null);
+        job.setLeaseExpiresAt(null);
+        job.setAttempts(0);
+        job.setMessage(null);
+        jobRepository.saveAndFlush(job);
+        return true;
+    }
+
+    /**
+     * Record a job rejected before it was queued and report the failure. An active job for the same raw
+     * object is left alone.
+     */
+    public void reject(TranscodeRequestEvent event, TranscodeScheduler.Lane lane, String message) {
+        TranscodeJob job = jobRepository.findById(event.getSongId()).orElse(null);
+        if (job != null && Objects.equals(job.getRawObjectKey(), event.getRawObjectKey())
+                && job.getStatus() != TranscodeJobStatus.SUCCEEDED && job.getStatus() != TranscodeJobStatus.FAILED) {
+            log.info("Transcode job for songId: {} is {}, rejection ignored", job.getSongId(), job.getStatus());
+            return;
+        }
+
+        if (job == null) {
+            job = TranscodeJob.builder().songId(event.getSongId()).build();
+        }
+        job.setRawObjectKey(event.getRawObjectKey());
+        job.setRevision(event.getRevision());
+        job.setLane(lane);
+        job.setStatus(TranscodeJobStatus.FAILED);
+        job.setLeaseOwner(null);
+        job.setLeaseExpiresAt(null);
+        job.setMessage(message);
+        jobRepository.saveAndFlush(job);
+
+        log.error("Transcode thất bại cho bài hát: {}. Lỗi: {}", event.getSongId(), message);
+        resultPublisher.publishFailure(event.getSongId(), event.getRevision(), message);
+    }
+
+    /**
+     * Cancel the job of a song. Every worker receives the cancel and stops the song's runs on its node; the
+     * worker that moves the job to CANCELLED removes its outputs and reports the result. A cancel for an upload
+     * that has no job yet is recorded, so its request is ignored when it arrives.
+     *
+     * @param rawObjectKey upload to cancel, or null for the song's current job
+     */
+    public void cancel(UUID songId, String rawObjectKey, String reason) {
+        jobCancellation.cancel(songId, rawObjectKey);
+
+        String message = reason == null || reason.isBlank() ? "Cancelled" : "Cancelled: " + reason;
+        TranscodeJob job = jobRepository.findById(songId).orElse(null);
+        if (job == null) {
+            if (rawObjectKey != null) {
+                recordCancelled(songId, rawObjectKey, message);
+            }
+            return;
+        }
+
+        String cancelledKey = rawObjectKey != null ? rawObjectKey : job.getRawObjectKey();
+        if (jobRepository.cancel(songId, cancelledKey, message, LocalDateTime.now()) == 1) {
+            log.info("Đã hủy job transcode cho bài hát: {} ({})", songId, message);
+            transcodeService.removeOutputs(songId, job.getRevision());
+            resultPublisher.publishCancelled(songId, job.getRevision(), message);
+        }
+    }
+
+    private void recordCancelled(UUID songId, String rawObjectKey, String message) {
+        try {
+            jobRepository.saveAndFlush(TranscodeJob.builder()
+                    .songId(songId)
+                    .rawObjectKey(rawObjectKey)
+                    .lane(TranscodeScheduler.Lane.STANDARD)
+                    .status(TranscodeJobStatus.CANCELLED)
+                    .message(message)
+                    .build());
+        } catch (DataIntegrityViolationException e) {
+            // Recorded by another worker, or the request arrived meanwhile
+            log.debug("Cancel of songId: {} not recorded: {}", songId, e.getMessage());
+        }
+    }
+
+    /**
+     * Claim queued and expired jobs while this node has free job slots. While both lanes have claimable jobs,
+     * the express lane gets {@code express-weight} slots for every slot given to the standard lane.
+     */
+    @Scheduled(fixedDelayString = "${transcode.jobs.poll-interval-ms:2000}")
+    public synchronized void claimJobs() {
+        if (transcodeScheduler.isDraining() || transcodeScheduler.isPaused()) {
+            return;
+        }
+        // Slots lent to chunked encodes come back when their chunks are done, claim them then
+        int capacity = transcodeScheduler.getJobSlots() - runningJobs.size() - transcodeScheduler.getExtraSlots();
+        if (capacity <= 0) {
+            return;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        Deque<TranscodeJob> express = new ArrayDeque<>(
+                jobRepository.findClaimable(TranscodeScheduler.Lane.EXPRESS, now, PageRequest.of(0, capacity)));
+        Deque<TranscodeJob> standard = new ArrayDeque<>(
+                jobRepository.findClaimable(TranscodeScheduler.Lane.STANDARD, now, PageRequest.of(0, capacity)));
+        int claimed = 0;
+        while (claimed < capacity && !(express.isEmpty() && standard.isEmpty())) {
+            boolean expressTurn = expressClaimsInRow < transcodeScheduler.getExpressWeight();
+            boolean fromExpress = standard.isEmpty() || (expressTurn && !express.isEmpty());
+            TranscodeJob candidate = fromExpress ? express.poll() : standard.poll();
+            if (claim(candidate, now)) {
+                expressClaimsInRow = fromExpress ? expressClaimsInRow + 1 : 0;
+                claimed++;
+            }
+        }
+    }
+
+    /**
+     * @return whether the job was claimed and started on this node
+     */
+    private boolean claim(TranscodeJob candidate, LocalDateTime now) {
+        UUID songId = candidate.getSongId();
+        if (jobRepository.claim(songId, workerId, now, now.plusSeconds(leaseSeconds)) == 0) {
+            return false;
+        }
+        if (candidate.getStatus() == TranscodeJobStatus.QUEUED && candidate.getUpdatedAt() != null) {
+            // Queued jobs were last updated when they were queued or handed back
+            Timer.builder("transcode.queue.wait")
+                    .tag("lane", candidate.getLane().name().toLowerCase())
+                    .register(meterRegistry)
+                    .record(Duration.between(candidate.getUpdatedAt(), now));
+        }
+        TranscodeJob job = jobRepository.findById(songId).orElse(null);
+        if (job == null) {
+            return false;
+        }
+        if (job.getAttempts() > maxAttempts) {
+            failJob(job, "Transcode job abandoned after " + maxAttempts + " attempts");
+            return false;
+        }
+
+        log.info("Claimed transcode job for songId: {} (lane: {}, attempt: {})",
+                songId, job.getLane(), job.getAttempts());
+        RunningJob runningJob = new RunningJob(job);
+        runningJobs.put(songId, runningJob);
+        transcodeScheduler.jobStarted();
+        jobExecutor.execute(() -> run(runningJob));
+        return true;
+    }
+
+    @Scheduled(fixedDelayString = "${transcode.jobs.heartbeat-interval-ms:15000}")
+    public void heartbeat() {
+        LocalDateTime now = LocalDateTime.now();
+        for (RunningJob runningJob : runningJobs.values()) {
+            UUID songId = runningJob.job.getSongId();
+            try {
+                if (!runningJob.leaseLost
+                        && jobRepository.heartbeat(songId, workerId, now, now.plusSeconds(leaseSeconds)) == 0) {
+                    // Another worker took over or the song was re-submitted; this run's results are dropped
+                    runningJob.leaseLost = true;
+                    log.warn("Lost the lease of transcode job for songId: {}", songId);
+                    stopIfSuperseded(runningJob.job);
+                }
+            } catch (Exception e) {
+                // The other jobs still get their heartbeat; this one is retried on the next tick
+                log.warn("Heartbeat of transcode job for songId: {} failed. Error: {}", songId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A run whose job was cancelled or re-submitted for a new upload can only produce dropped results, so it is
+     * stopped. Also covers a cancel this worker did not receive.
+     */
+    private void stopIfSuperseded(TranscodeJob job) {
+        try {
+            jobRepository.findById(job.getSongId())
+                    .filter(current -> current.getStatus() == TranscodeJobStatus.CANCELLED
+                            || !Objects.equals(current.getRawObjectKey(), job.getRawObjectKey()))
+                    .ifPresent(current -> jobCancellation.cancel(job.getSongId(), job.getRawObjectKey()));
+        } catch (Exception e) {
+            log.warn("Cannot check transcode job for songId: {}. Error: {}", job.getSongId(), e.getMessage());
+        }
+    }
+
+    private void run(RunningJob runningJob) {
+        TranscodeJob job = runningJob.job;
+        UUID songId = job.getSongId();
+        try {
+            if (stagedPipeline.isEnabled()) {
+                // Staged before the hand-off, so that a stage can complete the job as soon as it runs
+                if (stage(songId)) {
+                    stagedPipeline.submit(job);
+                }
+            } else {
+                TranscodeService.TranscodeResult result = transcodeService.processAudio(songId,
+                        job.getRawObjectKey(), job.getRevision(), job.getLane(), partial -> {
+                            if (!runningJob.leaseLost) {
+                                resultPublisher.publish(songId, null, "PARTIAL", partial);
+                            }
+                        });
+
+                if (release(songId, TranscodeJobStatus.SUCCEEDED, null)) {
+                    resultPublisher.publish(songId, job.getRevision(), "SUCCESS", result);
+                    log.info("Transcode thành công. Đã gửi kết quả.");
+                }
+            }
+        } catch (JobCancelledException e) {
+            // The cancelling worker reported the result; uploads that landed after its cleanup go too
+            log.info("Job transcode cho bài hát: {} đã bị hủy", songId);
+            if (jobRepository.existsBySongIdAndRawObjectKeyAndStatus(songId, job.getRawObjectKey(),
+                    TranscodeJobStatus.CANCELLED)) {
+                transcodeService.removeOutputs(songId, job.getRevision());
+            }
+        } catch (JobDrainedException e) {
+            // Worker is shutting down: hand the job back so another worker resumes from the checkpoint
+            log.info("Trả lại job transcode cho bài hát: {}", songId);
+            handBack(songId);
+        } catch (Exception e) {
+            log.error("Transcode thất bại: ", e);
+            if (release(songId, TranscodeJobStatus.FAILED, e.getMessage())) {
+                resultPublisher.publishFailure(songId, job.getRevision(), e.getMessage());
+            }
+        } finally {
+            runningJobs.remove(songId);
+            transcodeScheduler.jobFinished();
+        }
+        claimJobs();
+    }
+
+    private boolean release(UUID songId, TranscodeJobStatus status, String message) {
+        try {
+            if (jobRepository.release(songId, workerId, status, message, LocalDateTime.now()) == 1) {
+                return true;
+            }
+            log.warn("Transcode job for songId: {} is no longer leased by this worker, result dropped", songId);
+        } catch (Exception e) {
+            // The lease expires and another worker retries the job
+            log.error("Cannot update transcode job for songId: {}", songId, e);
+        }
+        return false;
+    }
+
+    private boolean stage(UUID songId) {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            if (jobRepository.stage(songId, workerId, now, now.plusSeconds(stagedPipeline.getLeaseSeconds())) == 1) {
+                return true;
+            }
+            log.warn("Transcode job for songId: {} is no longer leased by this worker, not staged", songId);
+        } catch (Exception e) {
+            // The lease expires and another worker retries the job
+            log.error("Cannot stage transcode job for songId: {}", songId, e);
+        }
+        return false;
+    }
+
+    /**
+     * A drained run is not the job's fault, so it does not count towards {@code max-attempts}.
+     */
+    private void handBack(UUID songId) {
+        try {
+            if (jobRepository.handBack(songId, workerId, LocalDateTime.now()) == 0) {
+                log.warn("Transcode job for songId: {} is no longer leased by this worker, not handed back", songId);
+            }
+        } catch (Exception e) {
+            // The lease expires and another worker retries the job
+            log.error("Cannot hand back transcode job for songId: {}", songId, e);
+        }
+    }
+
+    private void failJob(TranscodeJob job, String message) {
+        log.error("Transcode thất bại cho bài hát: {}. Lỗi: {}", job.getSongId(), message);
+        if (release(job.getSongId(), TranscodeJobStatus.FAILED, message)) {
+            resultPublisher.publishFailure(job.getSongId(), job.getRevision(), message);
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "transcode";
+        }
+    }
+
+    /**
+     * Running jobs are stopped by {@link TranscodeScheduler#drain()}; this only releases the threads.
+     */
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdownNow();
+    }
+
+    private static class RunningJob {
+        private final TranscodeJob job;
+        private volatile boolean leaseLost;
+
+        private RunningJob(TranscodeJob job) {
+            this.job = job;
+        }
+    }
+}
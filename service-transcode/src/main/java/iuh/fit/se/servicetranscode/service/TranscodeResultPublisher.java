@@ -0,0 +1,64 @@
+package iuh.fit.se.servicetranscode.service;
+
+import iuh.fit.se.servicetranscode.config.RabbitMQConfig;
+import iuh.fit.se.servicetranscode.dto.response.TranscodeResultEvent;
+import lombok.RequiredArgsConstructor;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+/**
+ * Sends transcode results to service-music.
+ */
+@Component
+@RequiredArgsConstructor
+public class TranscodeResultPublisher {
+
+    private final RabbitTemplate rabbitTemplate;
+
+    /**
+     * PARTIAL results make the song playable with the variants uploaded so far; SUCCESS carries the full ladder.
+     *
+     * @param revision revision of a catalog re-transcode, or null for an upload
+     */
+    public void publish(UUID songId, String revision, String status, TranscodeService.TranscodeResult result) {
+        TranscodeResultEvent.TranscodeResultEventBuilder resultEvent = TranscodeResultEvent.builder()
+                .songId(songId)
+                .revision(revision)
+                .status(status)
+                .streamUrl(result.masterUrl())
+                .duration(result.duration())
+                .qualityLevels(result.qualityLevels());
+        if (result.analysis() != null) {
+            resultEvent.waveformUrl(result.analysis().peaksKey())
+                    .integratedLoudness(result.analysis().integratedLoudness())
+                    .truePeak(result.analysis().truePeak());
+        }
+
+        rabbitTemplate.convertAndSend(RabbitMQConfig.EXCHANGE, RabbitMQConfig.RESULT_ROUTING_KEY, resultEvent.build());
+    }
+
+    public void publishFailure(UUID songId, String revision, String message) {
+        TranscodeResultEvent failedEvent = TranscodeResultEvent.builder()
+                .songId(songId)
+                .revision(revision)
+                .status("FAILED")
+                .message(message)
+                .build();
+        rabbitTemplate.convertAndSend(RabbitMQConfig.EXCHANGE, RabbitMQConfig.RESULT_ROUTING_KEY, failedEvent);
+    }
+
+    /**
+     * The job was cancelled on request; its partial outputs were removed.
+     */
+    public void publishCancelled(UUID songId, String revision, String message) {
+        TranscodeResultEvent cancelledEvent = TranscodeResultEvent.builder()
+                .songId(songId)
+                .revision(revision)
+                .status("CANCELLED")
+                .message(message)
+                .build();
+        rabbitTemplate.convertAndSend(RabbitMQConfig.EXCHANGE, RabbitMQConfig.RESULT_ROUTING_KEY, cancelledEvent);
+    }
+}
@@ -0,0 +1,457 @@
+package iuh.fit.se.servicetranscode.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import iuh.fit.se.servicetranscode.listener.TranscodeListener;
+import iuh.fit.se.servicetranscode.listener.TranscodeStageListener;
+import iuh.fit.se.servicetranscode.listener.VariantRenderListener;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for transcode jobs on this node.
+ * <p>
+ * The node's CPU budget (cgroup quota aware) is split into job slots of a fixed number of ffmpeg
+ * threads. A job runs ffmpeg only while it holds a slot, and {@link TranscodeJobRunner} claims no more
+ * jobs than there are slots. When the container's CPU load stays above the pause threshold, the node
+ * stops claiming jobs until load falls below the resume threshold again.
+ * <p>
+ * {@link TranscodeAutoscaler} moves the number of active slots between one and {@code max-slots}; above the
+ * CPU budget's slot count when ffmpeg leaves CPU unused, below it when the node runs out of disk.
+ * <p>
+ * Jobs arrive on two lanes. When both lanes have jobs waiting for a slot, the express lane gets
+ * {@code express-weight} slots for every slot given to the standard lane, so short uploads overtake a
+ * backlog of long ones without starving it.
+ * <p>
+ * On shutdown the node drains: consumers are cancelled, running jobs get {@code drain.timeout-seconds}
+ * to finish, and the ones still encoding after that are stopped and handed back to the job table. The
+ * next worker resumes them from their checkpoint.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class TranscodeScheduler {
+
+    private final RabbitListenerEndpointRegistry listenerRegistry;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${transcode.scheduler.cpu-budget:0}")
+    private int configuredCpuBudget;
+
+    @Value("${transcode.scheduler.threads-per-job:2}")
+    private int threadsPerJob;
+
+    @Value("${transcode.scheduler.pause-cpu-load:0.9}")
+    private double pauseCpuLoad;
+
+    @Value("${transcode.scheduler.resume-cpu-load:0.7}")
+    private double resumeCpuLoad;
+
+    @Value("${transcode.scheduler.max-slots:0}")
+    private int configuredMaxSlots;
+
+    @Value("${transcode.scheduler.express-weight:3}")
+    private int expressWeight;
+
+    @Value("${transcode.drain.timeout-seconds:120}")
+    private long drainTimeoutSeconds;
+
+    private static final long DRAIN_RELEASE_GRACE_MS = 15000;
+
+    private static final List<String> LISTENER_IDS = List.of(
+            TranscodeListener.EXPRESS_LISTENER_ID, TranscodeListener.STANDARD_LISTENER_ID,
+            TranscodeStageListener.PROBE_LISTENER_ID, TranscodeStageListener.ENCODE_LISTENER_ID,
+            TranscodeStageListener.PACKAGE_LISTENER_ID, VariantRenderListener.RENDER_LISTENER_ID);
+
+    private final com.sun.management.OperatingSystemMXBean osBean =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    private final AtomicInteger runningJobs = new AtomicInteger();
+    private volatile boolean paused;
+    private volatile boolean draining;
+
+    private final ReentrantLock slotLock = new ReentrantLock();
+    private final Condition slotReleased = slotLock.newCondition();
+    private final Map<Lane, Integer> waitingJobs = new EnumMap<>(Map.of(Lane.EXPRESS, 0, Lane.STANDARD, 0));
+    private int freeSlots;
+    private volatile int extraSlots;
+    private int expressGrantsInRow;
+
+    private int cpuBudget;
+    private int cpuSlots;
+    private int maxJobs;
+    private volatile int jobSlots;
+
+    @PostConstruct
+    void init() {
+        cpuBudget = configuredCpuBudget > 0 ? configuredCpuBudget : detectCpuBudget();
+        threadsPerJob = Math.max(1, Math.min(threadsPerJob, cpuBudget));
+        cpuSlots = Math.max(1, cpuBudget / threadsPerJob);
+        maxJobs = Math.max(cpuSlots, configuredMaxSlots);
+        expressWeight = Math.max(1, expressWeight);
+        jobSlots = cpuSlots;
+        freeSlots = jobSlots;
+
+        Gauge.builder("transcode.scheduler.slots.free", this, s -> s.freeSlots)
+                .register(meterRegistry);
+        Gauge.builder("transcode.scheduler.slots", this, s -> s.jobSlots)
+                .register(meterRegistry);
+        for (Lane lane : Lane.values()) {
+            Gauge.builder("transcode.scheduler.jobs.waiting", this, s -> s.waitingJobs.get(lane))
+                    .tag("lane", lane.name().toLowerCase())
+                    .register(meterRegistry);
+        }
+        Gauge.builder("transcode.scheduler.jobs.in-flight", runningJobs, AtomicInteger::get)
+                .register(meterRegistry);
+        Gauge.builder("transcode.scheduler.paused", this, s -> s.paused ? 1 : 0)
+                .register(meterRegistry);
+
+        log.info("Transcode scheduler: cpu budget {}, {} threads per job, {} job slots (max {})",
+                cpuBudget, threadsPerJob, jobSlots, maxJobs);
+    }
+
+    /**
+     * Most jobs this node may run concurrently.
+     */
+    public int getMaxJobs() {
+        return maxJobs;
+    }
+
+    /**
+     * Number of jobs the CPU budget fits.
+     */
+    public int getCpuSlots() {
+        return cpuSlots;
+    }
+
+    /**
+     * Number of jobs this node currently runs concurrently.
+     */
+    public int getJobSlots() {
+        return jobSlots;
+    }
+
+    /**
+     * Resize the active slots, capped at {@link #getMaxJobs()}. Jobs holding a slot keep it; a removed slot
+     * is only taken away once it is released.
+     */
+    public void setJobSlots(int slots) {
+        slots = Math.max(1, Math.min(slots, maxJobs));
+        slotLock.lock();
+        try {
+            freeSlots += slots - jobSlots;
+            jobSlots = slots;
+            slotReleased.signalAll();
+        } finally {
+            slotLock.unlock();
+        }
+    }
+
+    /**
+     * Thread count given to ffmpeg per job slot.
+     */
+    public int getThreadsPerJob() {
+        return threadsPerJob;
+    }
+
+    /**
+     * Slots given to the express lane for every slot given to the standard lane while both have jobs waiting.
+     */
+    public int getExpressWeight() {
+        return expressWeight;
+    }
+
+    public int getRunningJobs() {
+        return runningJobs.get();
+    }
+
+    /**
+     * Slots held by jobs on top of their own, see {@link #tryAcquireExtra(int)}.
+     */
+    public int getExtraSlots() {
+        return extraSlots;
+    }
+
+    /**
+     * How long a stage container must wait for in-flight tasks on shutdown, so drained tasks can still be
+     * requeued on their channel.
+     */
+    public long getContainerShutdownTimeoutMillis() {
+        return TimeUnit.SECONDS.toMillis(drainTimeoutSeconds) + 2 * DRAIN_RELEASE_GRACE_MS;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Whether the node is above its CPU load threshold and should not take new jobs.
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Block until a job slot is granted to the given lane.
+     *
+     * @return the slot; close it when the job's ffmpeg work is done
+     * @throws JobDrainedException if the node starts draining while the job waits
+     */
+    public JobSlot acquire(UUID songId, Lane lane) throws InterruptedException {
+        slotLock.lockInterruptibly();
+        try {
+            waitingJobs.merge(lane, 1, Integer::sum);
+            try {
+                if (!canGrant(lane)) {
+                    log.info("Waiting for a free transcode slot for songId: {} (lane: {})", songId, lane);
+                    long start = System.nanoTime();
+                    do {
+                        if (draining) {
+                            throw new JobDrainedException(songId, null);
+                        }
+                        slotReleased.await();
+                    } while (!canGrant(lane));
+                    Timer.builder("transcode.scheduler.slot.wait")
+                            .tag("lane", lane.name().toLowerCase())
+                            .register(meterRegistry)
+                            .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            } finally {
+                waitingJobs.merge(lane, -1, Integer::sum);
+                // The waiting counts decide whose turn it is, let the other waiters re-check
+                slotReleased.signalAll();
+            }
+
+            freeSlots--;
+            expressGrantsInRow = lane == Lane.EXPRESS ? expressGrantsInRow + 1 : 0;
+            return new JobSlot(1, threadsPerJob, false);
+        } finally {
+            slotLock.unlock();
+        }
+    }
+
+    /**
+     * Take up to {@code max} free slots without waiting, for a job that fans out beyond its own slot. Slots of
+     * jobs that are claimed but not started yet, or waiting for a slot, are left to them, and nothing is taken
+     * while the node is paused or draining.
+     *
+     * @return the slots taken, possibly none; close it when the fan-out is done
+     */
+    public JobSlot tryAcquireExtra(int max) {
+        slotLock.lock();
+        try {
+            boolean jobsWaiting = waitingJobs.values().stream().anyMatch(waiting -> waiting > 0);
+            int slots = paused || draining || jobsWaiting
+                    ? 0
+                    : Math.max(0, Math.min(max, Math.min(freeSlots, jobSlots - extraSlots - runningJobs.get())));
+            freeSlots -= slots;
+            extraSlots += slots;
+            return new JobSlot(slots, slots * threadsPerJob, true);
+        } finally {
+            slotLock.unlock();
+        }
+    }
+
+    /**
+     * Weighted round robin between the lanes, applied only while the other lane has jobs waiting.
+     */
+    private boolean canGrant(Lane lane) {
+        if (freeSlots <= 0) {
+            return false;
+        }
+        boolean expressTurn = expressGrantsInRow < expressWeight;
+        if (lane == Lane.EXPRESS) {
+            return expressTurn || waitingJobs.get(Lane.STANDARD) == 0;
+        }
+        return !expressTurn || waitingJobs.get(Lane.EXPRESS) == 0;
+    }
+
+    private void releaseSlots(int slots, boolean extra) {
+        slotLock.lock();
+        try {
+            freeSlots += slots;
+            if (extra) {
+                extraSlots -= slots;
+            }
+            slotReleased.signalAll();
+        } finally {
+            slotLock.unlock();
+        }
+    }
+
+    /**
+     * Mark a claimed job or a pipeline stage task as running on this node; draining waits for them.
+     */
+    public void jobStarted() {
+        runningJobs.incrementAndGet();
+    }
+
+    public void jobFinished() {
+        runningJobs.decrementAndGet();
+    }
+
+    @Scheduled(fixedDelayString = "${transcode.scheduler.check-interval-ms:2000}")
+    public void checkCpuLoad() {
+        if (draining) {
+            return;
+        }
+
+        double cpuLoad = osBean.getCpuLoad();
+        if (cpuLoad < 0) {
+            return;
+        }
+
+        if (!paused && cpuLoad >= pauseCpuLoad) {
+            paused = true;
+            log.info("CPU load {} above {}, pausing transcode job claims", cpuLoad, pauseCpuLoad);
+        } else if (paused && cpuLoad <= resumeCpuLoad) {
+            paused = false;
+            log.info("CPU load {} below {}, resuming transcode job claims", cpuLoad, resumeCpuLoad);
+        }
+    }
+
+    /**
+     * Runs before the listener containers are stopped, so no job is accepted during the drain. The job
+     * table is still available, so drained jobs can be handed back to it.
+     */
+    @EventListener(ContextClosedEvent.class)
+    public void drain() {
+        draining = true;
+        slotLock.lock();
+        try {
+            slotReleased.signalAll();
+        } finally {
+            slotLock.unlock();
+        }
+
+        listenerContainers().stream()
+                .filter(MessageListenerContainer::isRunning)
+                .forEach(container -> container.stop(() -> { }));
+        log.info("Draining {} transcode job(s), timeout {}s", runningJobs.get(), drainTimeoutSeconds);
+
+        if (!awaitNoRunningJobs(TimeUnit.SECONDS.toMillis(drainTimeoutSeconds))) {
+            // ffmpeg processes are this JVM's only children; stopping them fails the jobs, which are handed back
+            log.warn("Drain timeout, stopping ffmpeg for {} job(s) to hand them back", runningJobs.get());
+            ProcessHandle.current().descendants().forEach(ProcessHandle::destroy);
+            awaitNoRunningJobs(DRAIN_RELEASE_GRACE_MS);
+        }
+        log.info("Drain finished, {} job(s) still running", runningJobs.get());
+    }
+
+    private boolean awaitNoRunningJobs(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (runningJobs.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return runningJobs.get() == 0;
+    }
+
+    private List<SimpleMessageListenerContainer> listenerContainers() {
+        return LISTENER_IDS.stream()
+                .map(listenerRegistry::getListenerContainer)
+                .filter(SimpleMessageListenerContainer.class::isInstance)
+                .map(SimpleMessageListenerContainer.class::cast)
+                .toList();
+    }
+
+    /**
+     * CPUs available to this process: the JVM's processor count capped by the cgroup CPU quota.
+     */
+    static int detectCpuBudget() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        OptionalDouble quota = readCgroupCpuQuota();
+        if (quota.isPresent()) {
+            cpus = Math.min(cpus, Math.max(1, (int) Math.ceil(quota.getAsDouble())));
+        }
+        return cpus;
+    }
+
+    private static OptionalDouble readCgroupCpuQuota() {
+        try {
+            // cgroup v2: "<quota> <period>" or "max <period>"
+            Path cpuMax = Path.of("/sys/fs/cgroup/cpu.max");
+            if (Files.isReadable(cpuMax)) {
+                String[] parts = Files.readString(cpuMax).trim().split("\\s+");
+                if (parts.length == 2 && !"max".equals(parts[0])) {
+                    return OptionalDouble.of(Double.parseDouble(parts[0]) / Double.parseDouble(parts[1]));
+                }
+                return OptionalDouble.empty();
+            }
+
+            // cgroup v1: quota of -1 means unlimited
+            Path quotaFile = Path.of("/sys/fs/cgroup/cpu/cpu.cfs_quota_us");
+            Path periodFile = Path.of("/sys/fs/cgroup/cpu/cpu.cfs_period_us");
+            if (Files.isReadable(quotaFile) && Files.isReadable(periodFile)) {
+                long quota = Long.parseLong(Files.readString(quotaFile).trim());
+                long period = Long.parseLong(Files.readString(periodFile).trim());
+                if (quota > 0 && period > 0) {
+                    return OptionalDouble.of((double) quota / period);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Cannot read cgroup CPU quota: {}", e.getMessage());
+        }
+        return OptionalDouble.empty();
+    }
+
+    public enum Lane {
+        EXPRESS, STANDARD
+    }
+
+    public class JobSlot implements AutoCloseable {
+        private final int slots;
+        private final int threads;
+        private final boolean extra;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private JobSlot(int slots, int threads, boolean extra) {
+            this.slots = slots;
+            this.threads = threads;
+            this.extra = extra;
+        }
+
+        /**
+         * Thread count to pass to ffmpeg's -threads for this job.
+         */
+        public int threads() {
+            return threads;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true) && slots > 0) {
+                releaseSlots(slots, extra);
+            }
+        }
+    }
+}
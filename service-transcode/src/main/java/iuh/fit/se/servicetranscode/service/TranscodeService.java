@@ -1,26 +1,31 @@
 package iuh.fit.se.servicetranscode.service;
 
-import io.minio.GetObjectArgs;
-import io.minio.MinioClient;
-import io.minio.PutObjectArgs;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.minio.*;
+import io.minio.http.Method;
+import io.minio.messages.Item;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import net.bramp.ffmpeg.FFmpeg;
 import net.bramp.ffmpeg.FFmpegExecutor;
-import net.bramp.ffmpeg.FFprobe;
 import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.builder.FFmpegOutputBuilder;
 import net.bramp.ffmpeg.probe.FFmpegProbeResult;
+import net.bramp.ffmpeg.probe.FFmpegStream;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Service
@@ -28,15 +33,37 @@ import java.util.stream.Collectors;
 @Slf4j
 public class TranscodeService {
     private final MinioClient minioClient;
+    private final HlsSegmentUploader segmentUploader;
+    private final MinioUploadPipeline uploadPipeline;
+    private final RenditionIndex renditionIndex;
+    private final TranscodeScheduler transcodeScheduler;
+    private final JobCheckpointStore checkpointStore;
+    private final BitrateLadder bitrateLadder;
+    private final HlsSegmentation hlsSegmentation;
+    private final ChunkedEncoder chunkedEncoder;
+    private final HeaderProbe headerProbe;
+    private final FFmpegExecutor ffmpegExecutor;
+    private final JobCancellation jobCancellation;
+    private final SourceCache sourceCache;
+    private final AudioAnalysis audioAnalysis;
+    private final MeterRegistry meterRegistry;
 
     @Value("${minio.bucket-name}")
     private String bucketName;
 
-    @Value("${ffmpeg.path}")
-    private String ffmpegPath;
+    @Value("${transcode.single-pass.enabled:true}")
+    private boolean singlePassEnabled;
 
-    @Value("${ffprobe.path}")
-    private String ffprobePath;
+    @Value("${transcode.streaming-input.enabled:true}")
+    private boolean streamingInputEnabled;
+
+    @Value("${transcode.progressive.enabled:true}")
+    private boolean progressiveEnabled;
+
+    @Value("${transcode.hls.segment-format:fmp4-single-file}")
+    private String segmentFormatProperty;
+
+    private HlsSegmentFormat segmentFormat;
 
     private final ExecutorService executorService = Executors.newFixedThreadPool(
             Runtime.getRuntime().availableProcessors(),
@@ -48,77 +75,345 @@ public class TranscodeService {
             }
     );
 
-    private static final Map<String, Integer> QUALITY_BITRATES = new LinkedHashMap<>() {{
-        put("128kbps", 128000);
-        put("256kbps", 256000);
-        put("320kbps", 320000);
-    }};
-
     private static final Set<String> SUPPORTED_EXTENSIONS = Set.of(
             "mp3", "mp4", "m4a", "wav", "flac", "aac", "ogg", "wma", "webm", "mkv", "avi", "mov"
     );
 
+    /**
+     * ISO-BMFF and AVI containers may keep their index at the end of the file; they are only
+     * streamed when the index comes first, otherwise they are staged on local disk.
+     */
+    private static final Set<String> SEEK_SENSITIVE_EXTENSIONS = Set.of("mp4", "m4a", "mov", "avi");
+    private static final Set<String> ISO_BMFF_EXTENSIONS = Set.of("mp4", "m4a", "mov");
+    private static final int MAX_ATOMS_TO_SCAN = 16;
+
     private static final long TRANSCODE_TIMEOUT_MINUTES = 15;
     private static final int MAX_RETRY_ATTEMPTS = 3;
 
-    public TranscodeResult processAudio(UUID songId, String rawObjectKey) throws Exception {
+    @PostConstruct
+    void init() {
+        segmentFormat = HlsSegmentFormat.fromProperty(segmentFormatProperty);
+        log.info("HLS segment format: {}", segmentFormat);
+    }
+
+    /**
+     * Transcode a raw upload into HLS.
+     *
+     * @param revision              revision of a catalog re-transcode, written under its own prefix without
+     *                              reusing the rendition it replaces or reporting partial results; null for uploads
+     * @param partialResultListener in progressive mode, called with a playable result as soon as the first
+     *                              variants are uploaded, before the remaining ones are encoded
+     */
+    public TranscodeResult processAudio(UUID songId, String rawObjectKey, String revision,
+                                        TranscodeScheduler.Lane lane,
+                                        Consumer<TranscodeResult> partialResultListener) throws Exception {
         long startTime = System.currentTimeMillis();
         log.info("Starting transcode for songId: {}, objectKey: {}", songId, rawObjectKey);
 
+        String s3PathPrefix = outputPrefix(songId, revision);
+
+        // A re-transcode neither reuses nor records a rendition, so its source is not hashed
+        String contentHash = revision == null ? renditionIndex.contentHash(rawObjectKey) : null;
+        Optional<TranscodeResult> reused = renditionIndex.reuse(contentHash, s3PathPrefix);
+        if (reused.isPresent()) {
+            long totalTime = System.currentTimeMillis() - startTime;
+            log.info("Completed transcode for songId: {} from an existing rendition in {}ms", songId, totalTime);
+            Timer.builder("transcode.job.duration")
+                    .tag("result", "reused")
+                    .register(meterRegistry)
+                    .record(totalTime, TimeUnit.MILLISECONDS);
+            return reused.get();
+        }
+
+        JobCheckpointStore.Checkpoint checkpoint = checkpointStore.open(s3PathPrefix, rawObjectKey);
+        if (!checkpoint.completedQualities().isEmpty()) {
+            log.info("Resuming transcode for songId: {}, already uploaded: {}", songId, checkpoint.completedQualities());
+        }
+
         Path tempDir = Files.createTempDirectory("transcode_" + songId);
+        JobCancellation.Run run = jobCancellation.register(songId, rawObjectKey, tempDir);
+
+        try (TranscodeScheduler.JobSlot slot = transcodeScheduler.acquire(songId, lane)) {
+            int threads = slot.threads();
+            int duration = checkpoint.duration();
+            List<String> qualityPlaylists = checkpoint.plannedQualities();
+            AudioAnalysis.Summary analysisSummary = null;
+
+            if (!checkpoint.isComplete()) {
+                AudioSource source = openAudioSource(rawObjectKey, tempDir);
+                String audioInput = source.input();
+                duration = source.duration();
+
+                List<BitrateLadder.Rung> plan = bitrateLadder.plan(source.probe());
+                AudioAnalysis.Pass analysis = audioAnalysis.start(tempDir, source.probe());
+                Map<String, BitrateLadder.Rung> pending = new LinkedHashMap<>();
+                plan.forEach(rung -> pending.put(rung.name(), rung));
+                qualityPlaylists = new ArrayList<>(pending.keySet());
+                checkpoint.setPlan(duration, qualityPlaylists);
+                pending.keySet().removeAll(checkpoint.completedQualities());
+                // Tiered: the other variants are advertised and rendered on demand
+                Set<String> stored = bitrateLadder.stored(plan).stream()
+                        .map(BitrateLadder.Rung::name)
+                        .collect(Collectors.toSet());
+                pending.keySet().retainAll(stored);
+
+                if (progressiveEnabled && revision == null && !bitrateLadder.isTiered() && !pending.isEmpty()) {
+                    // Make the song playable first: encode the first-pass variants alone, then the rest
+                    Map<String, BitrateLadder.Rung> firstPass = new LinkedHashMap<>();
+                    bitrateLadder.firstPass(plan).forEach(rung -> firstPass.put(rung.name(), rung));
+                    if (checkpoint.completedQualities().isEmpty() && firstPass.size() < pending.size()) {
+                        encodeQualities(songId, audioInput, duration, tempDir, s3PathPrefix, firstPass, checkpoint,
+                                analysis, threads);
+                        pending.keySet().removeAll(firstPass.keySet());
+                    }
+                    if (!pending.isEmpty()) {
+                        publishPartialResult(songId, s3PathPrefix, duration, qualityPlaylists, checkpoint,
+                                partialResultListener);
+                    }
+                }
 
-        try {
-            File inputFile = downloadFromMinio(rawObjectKey, tempDir);
-            File audioFile = prepareAudioFile(inputFile, tempDir);
-            int duration = probeDuration(audioFile);
-
-            String s3PathPrefix = "hls/" + songId + "/";
-
-            List<CompletableFuture<String>> futures = QUALITY_BITRATES.entrySet()
-                    .stream()
-                    .map(entry -> CompletableFuture.supplyAsync(() ->
-                                    transcodeQualityWithRetry(songId, audioFile, tempDir, s3PathPrefix,
-                                            entry.getKey(), entry.getValue()),
-                            executorService
-                    ))
-                    .collect(Collectors.toList());
-
-            List<String> qualityPlaylists = futures.stream()
-                    .map(f -> {
-                        try {
-                            return f.get(TRANSCODE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
-                        } catch (TimeoutException e) {
-                            log.error("Transcode timeout for songId: {}", songId);
-                            throw new RuntimeException("Transcode timeout", e);
-                        } catch (Exception e) {
-                            log.error("Transcode failed for songId: {}", songId, e);
-                            throw new RuntimeException("Transcode failed", e);
-                        }
-                    })
-                    .collect(Collectors.toList());
+                if (pending.isEmpty()) {
+                    log.debug("All planned qualities already uploaded for songId: {}", songId);
+                } else {
+                    encodeQualities(songId, audioInput, duration, tempDir, s3PathPrefix, pending, checkpoint,
+                            analysis, threads);
+                }
+                analysisSummary = analyse(analysis, audioInput, s3PathPrefix, threads);
+            }
+            if (analysisSummary == null) {
+                analysisSummary = audioAnalysis.find(s3PathPrefix);
+            }
 
             String masterPlaylistKey = uploadMasterPlaylist(s3PathPrefix, qualityPlaylists);
+            checkpoint.clear();
 
             long totalTime = System.currentTimeMillis() - startTime;
             log.info("Completed transcode for songId: {} in {}ms", songId, totalTime);
+            Timer.builder("transcode.job.duration")
+                    .tag("result", "transcoded")
+                    .register(meterRegistry)
+                    .record(totalTime, TimeUnit.MILLISECONDS);
+            meterRegistry.counter("transcode.job.audio.seconds").increment(duration);
+
+            TranscodeResult result = new TranscodeResult(masterPlaylistKey, duration, qualityPlaylists,
+                    analysisSummary);
+            renditionIndex.record(contentHash, s3PathPrefix, result);
+            return result;
+
+        } catch (Exception e) {
+            if (run.isCancelled()) {
+                throw new JobCancelledException(songId, e);
+            }
+            if (transcodeScheduler.isDraining()) {
+                throw new JobDrainedException(songId, e);
+            }
+            throw e;
+        } finally {
+            run.close();
+            cleanupTempDirectory(tempDir);
+        }
+    }
 
-            return new TranscodeResult(masterPlaylistKey, duration, qualityPlaylists);
+    private void encodeQualities(UUID songId, String audioInput, int duration, Path tempDir, String s3PathPrefix,
+                                 Map<String, BitrateLadder.Rung> qualities, JobCheckpointStore.Checkpoint checkpoint,
+                                 AudioAnalysis.Pass analysis, int threads) {
+        Map<String, BitrateLadder.Rung> remaining = new LinkedHashMap<>(qualities);
+        for (BitrateLadder.Rung rung : qualities.values()) {
+            if (chunkedEncoder.appliesTo(duration, rung)) {
+                transcodeChunkedQuality(songId, audioInput, duration, tempDir, s3PathPrefix, rung, checkpoint, threads);
+                remaining.remove(rung.name());
+            }
+        }
+        if (remaining.isEmpty()) {
+            return;
+        }
 
+        if (singlePassEnabled) {
+            transcodeAllQualitiesWithRetry(songId, audioInput, tempDir, s3PathPrefix, remaining, checkpoint, analysis,
+                    threads);
+        } else {
+            transcodeEachQuality(songId, audioInput, tempDir, s3PathPrefix, remaining, checkpoint, analysis, threads);
+        }
+    }
+
+    /**
+     * Publish the waveform and loudness of the source. When no encode could carry the analysis (every variant
+     * was chunked or its process failed), the source is decoded once more for it alone.
+     */
+    AudioAnalysis.Summary analyse(AudioAnalysis.Pass analysis, String audioInput, String s3PathPrefix, int threads) {
+        if (analysis.isPending()) {
+            FFmpegBuilder builder = newBuilder(audioInput, threads);
+            boolean analysing = analysis.attachTo(builder);
+            try {
+                runFfmpeg(builder);
+                analysis.completed(analysing);
+            } catch (Exception e) {
+                analysis.failed(analysing);
+                log.warn("Audio analysis failed for: {}. Error: {}", s3PathPrefix, e.getMessage());
+            }
+        }
+        return audioAnalysis.publish(analysis, s3PathPrefix);
+    }
+
+    /**
+     * Long sources: encode the variant in parallel chunks, then package the joined stream by stream copy.
+     */
+    private void transcodeChunkedQuality(UUID songId, String audioInput, int duration, Path tempDir,
+                                         String s3PathPrefix, BitrateLadder.Rung rung,
+                                         JobCheckpointStore.Checkpoint checkpoint, int threads) {
+        Path chunkDir = tempDir.resolve("chunks").resolve(rung.name());
+        try {
+            long start = System.nanoTime();
+            File joined = chunkedEncoder.encode(songId, audioInput, chunkDir, rung, duration, threads);
+            recordTime("transcode.encode.duration", start, "mode", "chunked", "quality", rung.name());
+            transcodeQualityWithRetry(songId, joined.getAbsolutePath(), tempDir, s3PathPrefix, rung.withStreamCopy(),
+                    checkpoint, AudioAnalysis.Pass.NONE, threads);
+        } catch (Exception e) {
+            throw new RuntimeException("Chunked transcode failed for quality: " + rung.name(), e);
         } finally {
-            cleanupTempDirectory(tempDir);
+            cleanupTempDirectory(chunkDir);
         }
     }
 
-    private File downloadFromMinio(String rawObjectKey, Path tempDir) throws Exception {
+    /**
+     * Write a master playlist with the variants uploaded so far and hand the playable result to the listener.
+     * Failing to publish only delays availability until the final result, so errors are logged.
+     */
+    private void publishPartialResult(UUID songId, String s3PathPrefix, int duration, List<String> plannedQualities,
+                                      JobCheckpointStore.Checkpoint checkpoint,
+                                      Consumer<TranscodeResult> partialResultListener) {
+        Set<String> completed = checkpoint.completedQualities();
+        List<String> available = plannedQualities.stream().filter(completed::contains).toList();
+        if (available.isEmpty()) {
+            return;
+        }
+        try {
+            String masterPlaylistKey = uploadMasterPlaylist(s3PathPrefix, available);
+            partialResultListener.accept(new TranscodeResult(masterPlaylistKey, duration, available));
+            log.info("Published partial result for songId: {} with qualities: {}", songId, available);
+        } catch (Exception e) {
+            log.warn("Cannot publish partial result for songId: {}. Error: {}", songId, e.getMessage());
+        }
+    }
+
+    /**
+     * Resolve the input that ffmpeg reads from. When possible the raw object is streamed straight
+     * from MinIO through a presigned GET URL, so probing and encoding start without staging the
+     * whole upload on local disk. Containers that need seeking, or a stream that cannot be probed,
+     * fall back to the download-then-encode path, as do sources the {@link SourceCache} serves.
+     * <p>
+     * Video containers are read directly: the HLS outputs map only the first audio stream, so ffmpeg
+     * demuxes it without decoding the video or writing an intermediate audio file.
+     */
+    AudioSource openAudioSource(String rawObjectKey, Path tempDir) throws Exception {
         String extension = getFileExtension(rawObjectKey);
-        File inputFile = tempDir.resolve("input." + extension).toFile();
 
-        log.debug("Downloading file from MinIO: {}", rawObjectKey);
-        try (var stream = minioClient.getObject(GetObjectArgs.builder()
+        if (!sourceCache.prefersLocalCopy(rawObjectKey) && canStreamSource(rawObjectKey, extension)) {
+            try {
+                String sourceUrl = presignSourceUrl(rawObjectKey);
+                FFmpegProbeResult probe = probeSource(sourceUrl, rawObjectKey);
+                log.info("Streaming input from MinIO: {}", rawObjectKey);
+                return new AudioSource(sourceUrl, probe);
+            } catch (Exception e) {
+                log.warn("Streaming input failed for: {}, falling back to local staging. Error: {}",
+                        rawObjectKey, e.getMessage());
+            }
+        }
+
+        File inputFile = downloadFromMinio(rawObjectKey, tempDir);
+        return new AudioSource(inputFile.getAbsolutePath(), probeSource(inputFile.getAbsolutePath(), rawObjectKey));
+    }
+
+    private boolean canStreamSource(String rawObjectKey, String extension) {
+        // Per-quality mode runs one ffmpeg per variant, streaming would download the object several times
+        if (!streamingInputEnabled || !singlePassEnabled) {
+            return false;
+        }
+        if (!SEEK_SENSITIVE_EXTENSIONS.contains(extension)) {
+            return true;
+        }
+        if (!ISO_BMFF_EXTENSIONS.contains(extension)) {
+            return false;
+        }
+        try {
+            return isMoovBeforeMdat(rawObjectKey);
+        } catch (Exception e) {
+            log.warn("Cannot inspect MP4 atoms of: {}. Error: {}", rawObjectKey, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Walk the top-level MP4 atoms with small ranged GETs and report whether the moov index
+     * comes before the media data (a "fast start" file that can be read sequentially).
+     */
+    private boolean isMoovBeforeMdat(String rawObjectKey) throws Exception {
+        long offset = 0;
+        for (int i = 0; i < MAX_ATOMS_TO_SCAN; i++) {
+            byte[] header;
+            try (var stream = minioClient.getObject(GetObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(rawObjectKey)
+                    .offset(offset)
+                    .length(16L)
+                    .build())) {
+                header = stream.readAllBytes();
+            }
+            if (header.length < 8) {
+                return false;
+            }
+
+            long size = ((header[0] & 0xFFL) << 24) | ((header[1] & 0xFFL) << 16)
+                    | ((header[2] & 0xFFL) << 8) | (header[3] & 0xFFL);
+            String type = new String(header, 4, 4, StandardCharsets.US_ASCII);
+
+            if ("moov".equals(type)) {
+                return true;
+            }
+            if ("mdat".equals(type)) {
+                return false;
+            }
+            if (size == 1) {
+                if (header.length < 16) {
+                    return false;
+                }
+                size = 0;
+                for (int b = 8; b < 16; b++) {
+                    size = (size << 8) | (header[b] & 0xFFL);
+                }
+            }
+            if (size < 8) {
+                // size 0 means the atom runs to the end of the file
+                return false;
+            }
+            offset += size;
+        }
+        return false;
+    }
+
+    String presignSourceUrl(String objectKey) throws Exception {
+        return minioClient.getPresignedObjectUrl(GetPresignedObjectUrlArgs.builder()
+                .method(Method.GET)
                 .bucket(bucketName)
-                .object(rawObjectKey)
-                .build())) {
-            Files.copy(stream, inputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                .object(objectKey)
+                // Valid long enough for every single-pass retry to re-open the stream
+                .expiry((int) TRANSCODE_TIMEOUT_MINUTES * MAX_RETRY_ATTEMPTS, TimeUnit.MINUTES)
+                .build());
+    }
+
+    private File downloadFromMinio(String rawObjectKey, Path tempDir) throws Exception {
+        String extension = getFileExtension(rawObjectKey);
+        File inputFile = tempDir.resolve("input." + extension).toFile();
+        long start = System.nanoTime();
+
+        if (!sourceCache.fetch(rawObjectKey, inputFile.toPath())) {
+            log.debug("Downloading file from MinIO: {}", rawObjectKey);
+            try (var stream = minioClient.getObject(GetObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(rawObjectKey)
+                    .build())) {
+                Files.copy(stream, inputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
         }
 
         // Kiểm tra file đã download có hợp lệ không
@@ -127,59 +422,222 @@ public class TranscodeService {
         }
 
         log.info("Downloaded file successfully: {} (size: {} bytes)", inputFile.getName(), inputFile.length());
+        recordDownload(inputFile.length(), System.nanoTime() - start);
         return inputFile;
     }
 
-    private File prepareAudioFile(File inputFile, Path tempDir) throws Exception {
-        String extension = getFileExtension(inputFile.getName());
-
-        if (isVideoFormat(extension)) {
-            log.info("Detected video format, extracting audio: {}", inputFile.getName());
-            FFmpeg ffmpeg = new FFmpeg(ffmpegPath);
-            FFprobe ffprobe = new FFprobe(ffprobePath);
-            return extractAudioFromVideo(inputFile, tempDir, ffmpeg, ffprobe);
-        }
+    /**
+     * Staging of a source on local disk, from MinIO or the source cache.
+     */
+    private void recordDownload(long bytes, long nanos) {
+        Timer.builder("transcode.download.duration")
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        meterRegistry.counter("transcode.download.bytes").increment(bytes);
+        DistributionSummary.builder("transcode.download.throughput")
+                .baseUnit("bytes/s")
+                .register(meterRegistry)
+                .record(bytes * 1e9 / Math.max(1, nanos));
+    }
 
-        return inputFile;
+    /**
+     * Record the time since {@code startNanos}. Besides the download above, jobs publish
+     * {@code transcode.job.duration}, {@code transcode.encode.duration} (by mode and quality),
+     * {@code transcode.quality.upload.duration} (the uploads still pending when a quality's encode ends) and
+     * {@code transcode.master.upload.duration}.
+     */
+    private void recordTime(String name, long startNanos, String... tags) {
+        Timer.builder(name)
+                .tags(tags)
+                .register(meterRegistry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
     }
 
-    private int probeDuration(File audioFile) throws Exception {
-        if (!audioFile.exists()) {
-            throw new IOException("Audio file does not exist: " + audioFile.getAbsolutePath());
-        }
+    /**
+     * Probe the original source; the result drives both the duration and the bitrate ladder.
+     */
+    private FFmpegProbeResult probeSource(String audioInput, String rawObjectKey) throws Exception {
+        if (!isRemoteInput(audioInput)) {
+            File audioFile = new File(audioInput);
+            if (!audioFile.exists()) {
+                throw new IOException("Audio file does not exist: " + audioFile.getAbsolutePath());
+            }
 
-        if (audioFile.length() == 0) {
-            throw new IOException("Audio file is empty: " + audioFile.getAbsolutePath());
-        }
+            if (audioFile.length() == 0) {
+                throw new IOException("Audio file is empty: " + audioFile.getAbsolutePath());
+            }
 
-        log.info("Probing audio file: {} (size: {} bytes)", audioFile.getAbsolutePath(), audioFile.length());
+            log.info("Probing audio file: {} (size: {} bytes)", audioFile.getAbsolutePath(), audioFile.length());
+        } else {
+            log.info("Probing remote audio stream");
+        }
 
         try {
-            FFprobe ffprobe = new FFprobe(ffprobePath);
-            FFmpegProbeResult probeResult = ffprobe.probe(audioFile.getAbsolutePath());
+            FFmpegProbeResult probeResult = headerProbe.probe(audioInput, rawObjectKey);
 
             if (probeResult.getFormat() == null) {
-                throw new IOException("FFprobe could not detect format for file: " + audioFile.getName());
+                throw new IOException("FFprobe could not detect format for input");
+            }
+            if (probeResult.getStreams() == null || probeResult.getStreams().stream()
+                    .noneMatch(stream -> stream.codec_type == FFmpegStream.CodecType.AUDIO)) {
+                throw new IOException("Input has no audio stream");
             }
 
-            double duration = probeResult.getFormat().duration;
-            log.info("Successfully probed duration: {} seconds", duration);
-            return (int) duration;
+            log.info("Successfully probed duration: {} seconds", probeResult.getFormat().duration);
+            return probeResult;
         } catch (IOException e) {
-            log.error("FFprobe failed for file: {} (size: {} bytes). Error: {}",
-                audioFile.getAbsolutePath(), audioFile.length(), e.getMessage());
+            log.error("FFprobe failed for input. Error: {}", e.getMessage());
             throw new IOException("Cannot probe audio file. The file might be corrupted or in an unsupported format.", e);
         }
     }
 
-    private String transcodeQualityWithRetry(UUID songId, File audioFile, Path tempDir,
-                                             String s3PathPrefix, String qualityName, int bitrate) {
+    private List<String> transcodeEachQuality(UUID songId, String audioInput, Path tempDir, String s3PathPrefix,
+                                              Map<String, BitrateLadder.Rung> qualities, JobCheckpointStore.Checkpoint checkpoint,
+                                              AudioAnalysis.Pass analysis, int threads) {
+        // The slot's threads are shared by the concurrent per-quality processes
+        int threadsPerQuality = Math.max(1, threads / qualities.size());
+        List<CompletableFuture<String>> futures = qualities.entrySet()
+                .stream()
+                .map(entry -> CompletableFuture.supplyAsync(() ->
+                                transcodeQualityWithRetry(songId, audioInput, tempDir, s3PathPrefix,
+                                        entry.getValue(), checkpoint, analysis, threadsPerQuality),
+                        executorService
+                ))
+                .collect(Collectors.toList());
+
+        return futures.stream()
+                .map(f -> {
+                    try {
+                        return f.get(TRANSCODE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+                    } catch (TimeoutException e) {
+                        log.error("Transcode timeout for songId: {}", songId);
+                        throw new RuntimeException("Transcode timeout", e);
+                    } catch (Exception e) {
+                        log.error("Transcode failed for songId: {}", songId, e);
+                        throw new RuntimeException("Transcode failed", e);
+                    }
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Single-pass mode: one ffmpeg process decodes the source once and writes every HLS variant.
+     * A failed attempt only re-encodes the qualities that are not completed and uploaded yet.
+     */
+    private void transcodeAllQualitiesWithRetry(UUID songId, String audioInput, Path tempDir, String s3PathPrefix,
+                                                Map<String, BitrateLadder.Rung> qualities, JobCheckpointStore.Checkpoint checkpoint,
+                                                AudioAnalysis.Pass analysis, int threads) {
+        Map<String, BitrateLadder.Rung> pending = new LinkedHashMap<>(qualities);
         int attempt = 0;
         Exception lastException = null;
 
-        while (attempt < MAX_RETRY_ATTEMPTS) {
+        while (true) {
+            Set<String> completed = Set.of();
             try {
-                return transcodeQuality(songId, audioFile, tempDir, s3PathPrefix, qualityName, bitrate);
+                completed = transcodeQualities(songId, audioInput, tempDir, s3PathPrefix, pending, checkpoint, analysis,
+                        threads);
+            } catch (Exception e) {
+                lastException = e;
+            }
+            if (completed.size() < pending.size()) {
+                log.warn("Single-pass transcode attempt {} failed for qualities: {} - songId: {}",
+                        attempt + 1, pending.keySet(), songId);
+            }
+
+            pending.keySet().removeAll(completed);
+
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            attempt++;
+            if (attempt >= MAX_RETRY_ATTEMPTS || transcodeScheduler.isDraining()
+                    || jobCancellation.isCancelled(tempDir)) {
+                break;
+            }
+
+            try {
+                Thread.sleep(1000L * attempt);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Transcode interrupted", ie);
+            }
+        }
+
+        throw new RuntimeException("Transcode failed after " + attempt + " attempts for qualities: "
+                + pending.keySet(), lastException);
+    }
+
+    /**
+     * Run one ffmpeg pass for the given qualities while their segments are uploaded as they are produced.
+     * The pass also carries the audio analysis until it has completed once.
+     *
+     * @return the qualities whose playlist and segments were fully uploaded, also recorded in the checkpoint
+     */
+    private Set<String> transcodeQualities(UUID songId, String audioInput, Path tempDir, String s3PathPrefix,
+                                           Map<String, BitrateLadder.Rung> qualities, JobCheckpointStore.Checkpoint checkpoint,
+                                           AudioAnalysis.Pass analysis, int threads) {
+        log.info("Transcoding qualities: {} in a single pass for songId: {}", qualities.keySet(), songId);
+
+        FFmpegBuilder builder = newBuilder(audioInput, threads);
+        Map<String, HlsSegmentUploader.Upload> uploads = new LinkedHashMap<>();
+        boolean analysing = false;
+
+        try {
+            for (Map.Entry<String, BitrateLadder.Rung> entry : qualities.entrySet()) {
+                File qualityDir = prepareQualityDir(tempDir, entry.getKey());
+                HlsSegmentation.Layout layout = hlsSegmentation.layout(entry.getKey());
+                builder = addHlsOutput(builder, qualityDir, entry.getValue(), layout, threads);
+                uploads.put(entry.getKey(),
+                        segmentUploader.start(qualityDir, s3PathPrefix + entry.getKey() + "/", segmentFormat, layout));
+            }
+            analysing = analysis.attachTo(builder);
+
+            long start = System.nanoTime();
+            runFfmpeg(builder);
+            recordTime("transcode.encode.duration", start, "mode", "single-pass",
+                    "quality", String.join(",", qualities.keySet()));
+            analysis.completed(analysing);
+        } catch (Exception e) {
+            analysis.failed(analysing);
+            if (jobCancellation.isCancelled(tempDir)) {
+                uploads.values().forEach(HlsSegmentUploader.Upload::abort);
+                throw new JobCancelledException(songId, e);
+            }
+            // Outputs that reached #EXT-X-ENDLIST are still usable, the uploader rejects the others
+            log.warn("FFmpeg failed for songId: {}. Error: {}", songId, e.getMessage());
+        }
+
+        Set<String> completed = new LinkedHashSet<>();
+        for (Map.Entry<String, HlsSegmentUploader.Upload> entry : uploads.entrySet()) {
+            try {
+                long start = System.nanoTime();
+                entry.getValue().finish().get(5, TimeUnit.MINUTES);
+                recordTime("transcode.quality.upload.duration", start, "quality", entry.getKey());
+                checkpoint.markCompleted(entry.getKey());
+                completed.add(entry.getKey());
+                log.info("Completed transcoding quality: {} for songId: {}", entry.getKey(), songId);
+            } catch (Exception e) {
+                log.warn("Upload failed for quality: {} - songId: {}", entry.getKey(), songId);
+            }
+        }
+        return completed;
+    }
+
+    private String transcodeQualityWithRetry(UUID songId, String audioInput, Path tempDir,
+                                             String s3PathPrefix, BitrateLadder.Rung rung,
+                                             JobCheckpointStore.Checkpoint checkpoint, AudioAnalysis.Pass analysis,
+                                             int threads) {
+        String qualityName = rung.name();
+        int attempt = 0;
+        Exception lastException = null;
+
+        while (attempt < MAX_RETRY_ATTEMPTS && !transcodeScheduler.isDraining()
+                && !jobCancellation.isCancelled(tempDir)) {
+            try {
+                String quality = transcodeQuality(songId, audioInput, tempDir, s3PathPrefix, rung, analysis, threads);
+                checkpoint.markCompleted(quality);
+                return quality;
             } catch (Exception e) {
                 attempt++;
                 lastException = e;
@@ -196,90 +654,105 @@ public class TranscodeService {
             }
         }
 
-        throw new RuntimeException("Transcode failed after " + MAX_RETRY_ATTEMPTS + " attempts", lastException);
+        throw new RuntimeException("Transcode failed after " + attempt + " attempts", lastException);
     }
 
-    private String transcodeQuality(UUID songId, File audioFile, Path tempDir,
-                                    String s3PathPrefix, String qualityName, int bitrate) throws Exception {
+    private String transcodeQuality(UUID songId, String audioInput, Path tempDir, String s3PathPrefix,
+                                    BitrateLadder.Rung rung, AudioAnalysis.Pass analysis, int threads) throws Exception {
+        String qualityName = rung.name();
         log.info("Transcoding quality: {} for songId: {}", qualityName, songId);
 
-        File qualityDir = tempDir.resolve("hls").resolve(qualityName).toFile();
-        if (!qualityDir.mkdirs() && !qualityDir.exists()) {
-            throw new IOException("Failed to create quality directory: " + qualityDir);
+        File qualityDir = prepareQualityDir(tempDir, qualityName);
+
+        HlsSegmentation.Layout layout = hlsSegmentation.layout(qualityName);
+        FFmpegBuilder builder = addHlsOutput(newBuilder(audioInput, threads),
+                qualityDir, rung, layout, threads);
+
+        HlsSegmentUploader.Upload upload = segmentUploader.start(qualityDir, s3PathPrefix + qualityName + "/",
+                segmentFormat, layout);
+        boolean analysing = analysis.attachTo(builder);
+        try {
+            long start = System.nanoTime();
+            runFfmpeg(builder);
+            recordTime("transcode.encode.duration", start, "mode", rung.isStreamCopy() ? "copy" : "per-quality",
+                    "quality", qualityName);
+            analysis.completed(analysing);
+        } catch (Exception e) {
+            analysis.failed(analysing);
+            upload.abort();
+            throw e;
         }
+        long uploadStart = System.nanoTime();
+        upload.finish().get(5, TimeUnit.MINUTES);
+        recordTime("transcode.quality.upload.duration", uploadStart, "quality", qualityName);
 
-        String playlistName = "index.m3u8";
-        String segmentPattern = qualityDir.getAbsolutePath() + "/segment_%03d.ts";
+        log.info("Completed transcoding quality: {} for songId: {}", qualityName, songId);
+        return qualityName;
+    }
 
-        FFmpeg ffmpeg = new FFmpeg(ffmpegPath);
-        FFprobe ffprobe = new FFprobe(ffprobePath);
+    FFmpegBuilder addHlsOutput(FFmpegBuilder builder, File qualityDir, BitrateLadder.Rung rung,
+                                HlsSegmentation.Layout layout, int threads) {
+        String segmentPattern = qualityDir.getAbsolutePath() + "/" + segmentFormat.segmentFileName();
 
-        FFmpegBuilder builder = new FFmpegBuilder()
-                .setInput(audioFile.getAbsolutePath())
-                .addOutput(qualityDir.getAbsolutePath() + "/" + playlistName)
+        FFmpegOutputBuilder output = builder
+                .addOutput(qualityDir.getAbsolutePath() + "/" + HlsSegmentUploader.PLAYLIST_NAME)
                 .setFormat("hls")
-                .setAudioCodec("aac")
-                .setAudioBitRate(bitrate)
-                .setAudioSampleRate(44100)
-                .addExtraArgs("-hls_time", "10")
+                .setAudioCodec(rung.encoder())
+                .addExtraArgs("-map", "0:a:0")
+                .addExtraArgs("-threads", String.valueOf(threads))
+                .addExtraArgs("-hls_time", String.valueOf(layout.fragmentTime()))
                 .addExtraArgs("-hls_list_size", "0")
                 .addExtraArgs("-hls_segment_filename", segmentPattern)
                 .addExtraArgs("-hls_playlist_type", "vod")
-                .setStrict(FFmpegBuilder.Strict.EXPERIMENTAL)
-                .done();
-
-        FFmpegExecutor executor = new FFmpegExecutor(ffmpeg, ffprobe);
-        executor.createJob(builder).run();
+                .setStrict(FFmpegBuilder.Strict.EXPERIMENTAL);
 
-        uploadHLSFiles(qualityDir, s3PathPrefix + qualityName + "/");
-
-        log.info("Completed transcoding quality: {} for songId: {}", qualityName, songId);
-        return qualityName;
+        if (rung.isStreamCopy()) {
+            // ADTS sources (.aac) need their headers moved into the MP4 sample entry; a no-op for MP4 sources
+            if (segmentFormat.isFragmentedMp4()) {
+                output.addExtraArgs("-bsf:a", "aac_adtstoasc");
+            }
+        } else {
+            output.setAudioBitRate(rung.bitrate())
+                    .setAudioSampleRate(rung.sampleRate());
+            if (rung.profile() != null) {
+                output.addExtraArgs("-profile:a", rung.profile());
+            }
+        }
+        if (segmentFormat.isFragmentedMp4()) {
+            output.addExtraArgs("-hls_segment_type", "fmp4");
+        }
+        if (segmentFormat.isSingleFile()) {
+            // temp_file would leak the ".tmp" name into EXT-X-MAP; the single file is only uploaded at the end
+            output.addExtraArgs("-hls_flags", "single_file");
+        } else {
+            output.addExtraArgs("-hls_flags", "temp_file");
+        }
+        if (segmentFormat.initFileName() != null) {
+            output.addExtraArgs("-hls_fmp4_init_filename", segmentFormat.initFileName());
+        }
+        return output.done();
     }
 
-    private void uploadHLSFiles(File qualityDir, String s3Prefix) throws Exception {
-        File[] files = qualityDir.listFiles();
-        if (files == null || files.length == 0) {
-            throw new IOException("No files generated in quality directory: " + qualityDir);
-        }
-
-        List<CompletableFuture<Void>> uploadFutures = new ArrayList<>();
-
-        for (File file : files) {
-            CompletableFuture<Void> uploadFuture = CompletableFuture.runAsync(() -> {
-                String objectKey = s3Prefix + file.getName();
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    minioClient.putObject(PutObjectArgs.builder()
-                            .bucket(bucketName)
-                            .object(objectKey)
-                            .stream(fis, file.length(), -1)
-                            .contentType(getContentType(file.getName()))
-                            .build());
-                    log.debug("Uploaded: {}", objectKey);
-                } catch (Exception e) {
-                    log.error("Failed to upload file: {}", objectKey, e);
-                    throw new RuntimeException("Upload failed: " + objectKey, e);
-                }
-            }, executorService);
+    File prepareQualityDir(Path tempDir, String qualityName) throws IOException {
+        Path qualityPath = tempDir.resolve("hls").resolve(qualityName);
+        cleanupTempDirectory(qualityPath);
 
-            uploadFutures.add(uploadFuture);
+        File qualityDir = qualityPath.toFile();
+        if (!qualityDir.mkdirs() && !qualityDir.exists()) {
+            throw new IOException("Failed to create quality directory: " + qualityDir);
         }
-
-        CompletableFuture.allOf(uploadFutures.toArray(new CompletableFuture[0]))
-                .get(5, TimeUnit.MINUTES);
+        return qualityDir;
     }
 
-    private String uploadMasterPlaylist(String s3PathPrefix, List<String> qualityPlaylists) throws Exception {
+    String uploadMasterPlaylist(String s3PathPrefix, List<String> qualityPlaylists) throws Exception {
         String masterPlaylistContent = generateMasterPlaylist(qualityPlaylists);
         String masterPlaylistKey = s3PathPrefix + "master.m3u8";
 
         byte[] masterBytes = masterPlaylistContent.getBytes();
-        minioClient.putObject(PutObjectArgs.builder()
-                .bucket(bucketName)
-                .object(masterPlaylistKey)
-                .stream(new java.io.ByteArrayInputStream(masterBytes), masterBytes.length, -1)
-                .contentType("application/vnd.apple.mpegurl")
-                .build());
+        long start = System.nanoTime();
+        uploadPipeline.upload(masterBytes, masterPlaylistKey, "application/vnd.apple.mpegurl")
+                .get(5, TimeUnit.MINUTES);
+        recordTime("transcode.master.upload.duration", start);
 
         log.info("Uploaded master playlist: {}", masterPlaylistKey);
         return masterPlaylistKey;
@@ -288,30 +761,56 @@ public class TranscodeService {
     private String generateMasterPlaylist(List<String> qualityLevels) {
         StringBuilder sb = new StringBuilder();
         sb.append("#EXTM3U\n");
-        sb.append("#EXT-X-VERSION:3\n");
+        sb.append("#EXT-X-VERSION:").append(segmentFormat.playlistVersion()).append("\n");
 
         for (String quality : qualityLevels) {
-            int bitrate = QUALITY_BITRATES.get(quality);
-            sb.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(bitrate)
-                    .append(",CODECS=\"mp4a.40.2\",NAME=\"").append(quality).append("\"\n");
+            BitrateLadder.Rung rung = bitrateLadder.rung(quality)
+                    .orElseThrow(() -> new IllegalStateException("Unknown quality in ladder: " + quality));
+            sb.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(rung.bitrate())
+                    .append(",CODECS=\"").append(rung.codecs()).append("\",NAME=\"").append(quality).append("\"\n");
             sb.append(quality).append("/index.m3u8\n");
         }
 
         return sb.toString();
     }
 
-    private String getContentType(String fileName) {
-        if (fileName.endsWith(".m3u8")) {
-            return "application/vnd.apple.mpegurl";
-        } else if (fileName.endsWith(".ts")) {
-            return "video/MP2T";
-        } else if (fileName.endsWith(".aac")) {
-            return "audio/aac";
+    /**
+     * Prefix of a song's rendition: {@code hls/{songId}/}, or {@code hls/{songId}/{revision}/} for a catalog
+     * re-transcode.
+     */
+    public static String outputPrefix(UUID songId, String revision) {
+        return "hls/" + songId + "/" + (revision == null ? "" : revision + "/");
+    }
+
+    /**
+     * Remove the partial rendition, checkpoint and staging objects of a cancelled job. A cancelled re-transcode
+     * only removes its own revision, the song keeps the rendition it is served from.
+     */
+    void removeOutputs(UUID songId, String revision) {
+        removeObjects(outputPrefix(songId, revision));
+        removeObjects(StagedTranscodePipeline.STAGING_PREFIX + songId + "/");
+    }
+
+    private void removeObjects(String prefix) {
+        try {
+            for (Result<Item> result : minioClient.listObjects(ListObjectsArgs.builder()
+                    .bucket(bucketName)
+                    .prefix(prefix)
+                    .recursive(true)
+                    .build())) {
+                String objectKey = result.get().objectName();
+                minioClient.removeObject(RemoveObjectArgs.builder()
+                        .bucket(bucketName)
+                        .object(objectKey)
+                        .build());
+            }
+            log.info("Removed objects under: {}", prefix);
+        } catch (Exception e) {
+            log.warn("Cannot remove objects under: {}. Error: {}", prefix, e.getMessage());
         }
-        return "application/octet-stream";
     }
 
-    private void cleanupTempDirectory(Path tempDir) {
+    void cleanupTempDirectory(Path tempDir) {
         try {
             if (Files.exists(tempDir)) {
                 Files.walkFileTree(tempDir, new SimpleFileVisitor<>() {
@@ -342,28 +841,33 @@ public class TranscodeService {
         return SUPPORTED_EXTENSIONS.contains(extension) ? extension : "mp3";
     }
 
-    private boolean isVideoFormat(String extension) {
-        return Set.of("mp4", "mkv", "avi", "mov", "webm").contains(extension.toLowerCase());
+    /**
+     * Create a builder for the given input, decoding with the job slot's thread count. Remote inputs get
+     * HTTP reconnect options so a dropped connection to MinIO resumes instead of failing the whole encode.
+     */
+    FFmpegBuilder newBuilder(String input, int threads) {
+        FFmpegBuilder builder = new FFmpegBuilder()
+                .addExtraArgs("-threads", String.valueOf(threads));
+        if (isRemoteInput(input)) {
+            builder.addExtraArgs("-reconnect", "1", "-reconnect_streamed", "1", "-reconnect_delay_max", "5");
+        }
+        return builder.setInput(input);
     }
 
-    private File extractAudioFromVideo(File videoFile, Path tempDir, FFmpeg ffmpeg, FFprobe ffprobe) throws Exception {
-        File audioFile = tempDir.resolve("extracted_audio.mp3").toFile();
+    void runFfmpeg(FFmpegBuilder builder) throws IOException {
+        ffmpegExecutor.createJob(builder).run();
+    }
 
-        FFmpegBuilder builder = new FFmpegBuilder()
-                .setInput(videoFile.getAbsolutePath())
-                .addOutput(audioFile.getAbsolutePath())
-                .setFormat("mp3")
-                .setAudioCodec("libmp3lame")
-                .setAudioBitRate(320000)
-                .addExtraArgs("-vn")
-                .setStrict(FFmpegBuilder.Strict.EXPERIMENTAL)
-                .done();
+    HlsSegmentFormat segmentFormat() {
+        return segmentFormat;
+    }
 
-        FFmpegExecutor executor = new FFmpegExecutor(ffmpeg, ffprobe);
-        executor.createJob(builder).run();
+    boolean isProgressiveEnabled() {
+        return progressiveEnabled;
+    }
 
-        log.info("Extracted audio from video: {} -> {}", videoFile.getName(), audioFile.getName());
-        return audioFile;
+    private boolean isRemoteInput(String input) {
+        return input.startsWith("http://") || input.startsWith("https://");
     }
 
     @PreDestroy
@@ -380,6 +884,19 @@ public class TranscodeService {
         }
     }
 
-    public record TranscodeResult(String masterUrl, int duration, List<String> qualityLevels) {
+    record AudioSource(String input, FFmpegProbeResult probe) {
+        int duration() {
+            return (int) probe.getFormat().duration;
+        }
+    }
+
+    /**
+     * @param analysis waveform and loudness of the source, or null when they are not available
+     */
+    public record TranscodeResult(String masterUrl, int duration, List<String> qualityLevels,
+                                  AudioAnalysis.Summary analysis) {
+        public TranscodeResult(String masterUrl, int duration, List<String> qualityLevels) {
+            this(masterUrl, duration, qualityLevels, null);
+        }
     }
 }
\ No newline at end of file
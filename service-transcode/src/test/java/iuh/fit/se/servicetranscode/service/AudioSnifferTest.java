@@ -0,0 +1,207 @@
+package iuh.fit.se.servicetranscode.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AudioSnifferTest {
+
+    private static final byte[] NO_TAIL = new byte[0];
+
+    @Test
+    void wavHeaderGivesTheStreamParameters() {
+        byte[] head = wav(2, 44100, 16, 176400 * 2);
+
+        AudioSniffer.Sniff sniff = AudioSniffer.sniff(head, NO_TAIL, head.length + 176400 * 2);
+
+        assertThat(sniff.format()).isEqualTo("wav");
+        assertThat(sniff.codec()).isEqualTo("pcm_s16le");
+        assertThat(sniff.sampleRate()).isEqualTo(44100);
+        assertThat(sniff.channels()).isEqualTo(2);
+        assertThat(sniff.duration()).isEqualTo(2.0);
+        assertThat(sniff.bitrate()).isEqualTo(1411200);
+        assertThat(AudioSniffer.headerError(head)).isNull();
+    }
+
+    @Test
+    void wavWithoutChannelsIsMalformed() {
+        assertThat(AudioSniffer.headerError(wav(0, 44100, 16, 1024))).isEqualTo("wav fmt chunk");
+    }
+
+    @Test
+    void wavWithDataBeforeFmtIsMalformed() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ascii("RIFF"));
+        out.writeBytes(le32(36));
+        out.writeBytes(ascii("WAVE"));
+        out.writeBytes(ascii("data"));
+        out.writeBytes(le32(16));
+        out.writeBytes(new byte[16]);
+
+        assertThat(AudioSniffer.headerError(out.toByteArray())).isEqualTo("wav without fmt chunk");
+    }
+
+    @Test
+    void flacStreamInfoGivesTheStreamParameters() {
+        byte[] head = flac(0, 34, 48000, 2, 48000L * 90);
+
+        AudioSniffer.Sniff sniff = AudioSniffer.sniff(head, NO_TAIL, 1_000_000);
+
+        assertThat(sniff.format()).isEqualTo("flac");
+        assertThat(sniff.sampleRate()).isEqualTo(48000);
+        assertThat(sniff.channels()).isEqualTo(2);
+        assertThat(sniff.duration()).isEqualTo(90.0);
+        assertThat(AudioSniffer.headerError(head)).isNull();
+    }
+
+    @Test
+    void flacWithoutStreamInfoFirstIsMalformed() {
+        // A VORBIS_COMMENT block where STREAMINFO must be
+        assertThat(AudioSniffer.headerError(flac(4, 34, 48000, 2, 1000))).isEqualTo("flac streaminfo");
+        assertThat(AudioSniffer.headerError(flac(0, 20, 48000, 2, 1000))).isEqualTo("flac streaminfo");
+        assertThat(AudioSniffer.headerError(flac(0, 34, 0, 2, 1000))).isEqualTo("flac sample rate");
+    }
+
+    @Test
+    void mp3FramesAreFoundAfterJunk() {
+        byte[] junk = new byte[1000];
+        Arrays.fill(junk, (byte) 0x20);
+        byte[] head = concat(junk, mp3Frames(4));
+
+        AudioSniffer.Sniff sniff = AudioSniffer.sniff(head, NO_TAIL, head.length);
+
+        assertThat(sniff.format()).isEqualTo("mp3");
+        assertThat(sniff.codec()).isEqualTo("mp3");
+        assertThat(sniff.sampleRate()).isEqualTo(44100);
+        assertThat(sniff.bitrate()).isEqualTo(128000);
+        assertThat(AudioSniffer.headerError(head)).isNull();
+    }
+
+    @Test
+    void junkLongerThanTheHeadIsLeftToTheProbe() {
+        byte[] head = new byte[65536];
+        Arrays.fill(head, (byte) 0x20);
+
+        assertThat(AudioSniffer.sniff(head, NO_TAIL, 10_000_000)).isNull();
+        assertThat(AudioSniffer.headerError(head)).isNull();
+    }
+
+    @Test
+    void quickTimeWithoutFtypIsLeftToTheProbe() {
+        for (String firstBox : new String[]{"wide", "free", "mdat", "moov"}) {
+            byte[] head = concat(box(firstBox, 8), box("mdat", 4096));
+
+            assertThat(AudioSniffer.sniff(head, NO_TAIL, head.length)).isNull();
+            assertThat(AudioSniffer.headerError(head)).as(firstBox).isNull();
+        }
+    }
+
+    @Test
+    void truncatedFtypBoxIsMalformed() {
+        byte[] head = concat(box("ftyp", 8), box("mdat", 64));
+
+        assertThat(AudioSniffer.headerError(head)).isEqualTo("mp4 ftyp box");
+    }
+
+    @Test
+    void id3TagWithoutSynchsafeSizeIsMalformed() {
+        byte[] head = concat(new byte[]{'I', 'D', '3', 4, 0, 0, 0, 0, (byte) 0x80, 0}, mp3Frames(3));
+
+        assertThat(AudioSniffer.headerError(head)).isEqualTo("id3 header");
+    }
+
+    @Test
+    void id3TagIsSkippedToTheFirstFrame() {
+        byte[] tag = new byte[10 + 200];
+        System.arraycopy(new byte[]{'I', 'D', '3', 4, 0, 0, 0, 0, 1, 72}, 0, tag, 0, 10);
+        byte[] head = concat(tag, mp3Frames(3));
+
+        assertThat(AudioSniffer.headerError(head)).isNull();
+        assertThat(AudioSniffer.sniff(head, NO_TAIL, head.length).format()).isEqualTo("mp3");
+    }
+
+    @Test
+    void oggPageWithUnknownVersionIsMalformed() {
+        byte[] head = new byte[64];
+        System.arraycopy(ascii("OggS"), 0, head, 0, 4);
+        head[4] = 1;
+
+        assertThat(AudioSniffer.headerError(head)).isEqualTo("ogg page version");
+    }
+
+    private static byte[] wav(int channels, int sampleRate, int bitsPerSample, int dataSize) {
+        int blockAlign = channels * bitsPerSample / 8;
+        ByteBuffer buffer = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(ascii("RIFF")).putInt(36 + dataSize).put(ascii("WAVE"));
+        buffer.put(ascii("fmt ")).putInt(16)
+                .putShort((short) 1)
+                .putShort((short) channels)
+                .putInt(sampleRate)
+                .putInt(sampleRate * blockAlign)
+                .putShort((short) blockAlign)
+                .putShort((short) bitsPerSample);
+        buffer.put(ascii("data")).putInt(dataSize);
+        return buffer.array();
+    }
+
+    private static byte[] flac(int blockType, int blockLength, int sampleRate, int channels, long totalSamples) {
+        byte[] head = new byte[4 + 4 + 34];
+        System.arraycopy(ascii("fLaC"), 0, head, 0, 4);
+        head[4] = (byte) (0x80 | blockType);
+        head[5] = (byte) (blockLength >> 16);
+        head[6] = (byte) (blockLength >> 8);
+        head[7] = (byte) blockLength;
+        int info = 8;
+        head[info + 10] = (byte) (sampleRate >> 12);
+        head[info + 11] = (byte) (sampleRate >> 4);
+        head[info + 12] = (byte) (((sampleRate & 0x0F) << 4) | ((channels - 1) << 1));
+        head[info + 13] = (byte) (0xF0 | ((totalSamples >> 32) & 0x0F));
+        head[info + 14] = (byte) (totalSamples >> 24);
+        head[info + 15] = (byte) (totalSamples >> 16);
+        head[info + 16] = (byte) (totalSamples >> 8);
+        head[info + 17] = (byte) totalSamples;
+        return head;
+    }
+
+    /**
+     * MPEG-1 layer III frames at 128 kbps, 44.1 kHz, stereo: 417 bytes each without padding.
+     */
+    private static byte[] mp3Frames(int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            byte[] frame = new byte[417];
+            frame[0] = (byte) 0xFF;
+            frame[1] = (byte) 0xFB;
+            frame[2] = (byte) 0x90;
+            frame[3] = 0x00;
+            out.writeBytes(frame);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] box(String type, int size) {
+        byte[] box = new byte[size];
+        ByteBuffer.wrap(box).putInt(size).put(ascii(type));
+        return box;
+    }
+
+    private static byte[] le32(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+}
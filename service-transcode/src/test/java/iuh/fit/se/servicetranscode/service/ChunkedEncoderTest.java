@@ -0,0 +1,96 @@
+package iuh.fit.se.servicetranscode.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ChunkedEncoderTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void copyFramesSkipsLeadingFrames() throws IOException {
+        File chunk = write(frame(1, 10), frame(2, 20), frame(3, 5), frame(4, 0));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedEncoder.copyFrames(chunk, 2, out);
+
+        assertThat(out.toByteArray()).isEqualTo(concat(frame(3, 5), frame(4, 0)));
+    }
+
+    @Test
+    void copyFramesJoinsChunksFrameByFrame() throws IOException {
+        File first = write(frame(1, 8), frame(2, 8));
+        File second = write(frame(9, 8), frame(9, 8), frame(3, 8));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedEncoder.copyFrames(first, 0, out);
+        ChunkedEncoder.copyFrames(second, 2, out);
+
+        assertThat(out.toByteArray()).isEqualTo(concat(frame(1, 8), frame(2, 8), frame(3, 8)));
+    }
+
+    @Test
+    void copyFramesRejectsMissingSyncWord() throws IOException {
+        byte[] broken = frame(2, 4);
+        broken[0] = 0x12;
+        File chunk = write(frame(1, 4), broken);
+
+        assertThatThrownBy(() -> ChunkedEncoder.copyFrames(chunk, 0, new ByteArrayOutputStream()))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Invalid ADTS frame 1");
+    }
+
+    @Test
+    void copyFramesRejectsTruncatedFrame() throws IOException {
+        byte[] frame = frame(1, 16);
+        byte[] truncated = new byte[frame.length - 4];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        File chunk = write(truncated);
+
+        assertThatThrownBy(() -> ChunkedEncoder.copyFrames(chunk, 0, new ByteArrayOutputStream()))
+                .isInstanceOf(IOException.class);
+    }
+
+    /**
+     * An ADTS frame without CRC: a 7-byte header whose frame length covers the payload, filled with {@code fill}.
+     */
+    private static byte[] frame(int fill, int payloadLength) {
+        int length = 7 + payloadLength;
+        byte[] frame = new byte[length];
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xF1;
+        frame[2] = (byte) 0x50;
+        frame[3] = (byte) (0x80 | ((length >> 11) & 0x03));
+        frame[4] = (byte) ((length >> 3) & 0xFF);
+        frame[5] = (byte) (((length & 0x07) << 5) | 0x1F);
+        frame[6] = (byte) 0xFC;
+        for (int i = 7; i < length; i++) {
+            frame[i] = (byte) fill;
+        }
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            out.writeBytes(frame);
+        }
+        return out.toByteArray();
+    }
+
+    private File write(byte[]... frames) throws IOException {
+        Path file = Files.createTempFile(tempDir, "chunk", ".aac");
+        Files.write(file, concat(frames));
+        return file.toFile();
+    }
+}